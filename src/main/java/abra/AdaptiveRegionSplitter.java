@@ -0,0 +1,280 @@
+/* Copyright 2013 University of North Carolina at Chapel Hill.  All rights reserved. */
+package abra;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMFileReader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.ValidationStringency;
+
+/**
+ * Splits target regions into assembly windows sized according to read depth and assembly trigger evidence.
+ *
+ * Regions are first split into the standard overlapping windows.  Consecutive windows without candidate
+ * reads (indels, substantial soft clipping or multiple mismatches) are then re-split into longer windows,
+ * reducing the number of overlapping assemblies in quiet sequence.  Consecutive windows with candidate reads
+ * and high depth are re-split into shorter windows so that assembly graphs remain within the node limit.
+ *
+ * Depth is estimated from the BAM index via RegionCostEstimator.  Candidate reads are identified by
+ * a scan of reads overlapping the targets using CIGAR and NM values only.  Inputs without an index
+ * are not scanned and regions are split using the standard window size.
+ *
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class AdaptiveRegionSplitter {
+
+	static final int QUIET_REGION_LENGTH = 2 * ReAligner.MAX_REGION_LENGTH;
+	static final int DEEP_REGION_LENGTH = ReAligner.MAX_REGION_LENGTH / 2;
+	static final int DEEP_REGION_OVERLAP = ReAligner.REGION_OVERLAP / 2;
+
+	// Windows with estimated depth this many times the median are considered deep
+	private static final double DEEP_REGION_FACTOR = 4.0;
+
+	private static final int MIN_CANDIDATE_MISMATCHES = 3;
+
+	// Window types
+	private static final int QUIET = 0;
+	private static final int STANDARD = 1;
+	private static final int DEEP = 2;
+
+	private int readLength;
+	private int numThreads;
+	private RegionCostEstimator estimator;
+
+	// Sorted start positions of candidate reads by chromosome
+	private Map<String, int[]> candidates = new HashMap<String, int[]>();
+	private Map<String, RegionTracker.PositionList> candidateLists = new HashMap<String, RegionTracker.PositionList>();
+	private boolean isScanned = false;
+
+	private int quietCount = 0;
+	private int deepCount = 0;
+
+	public AdaptiveRegionSplitter(int readLength, int numThreads) {
+		this.readLength = readLength;
+		this.numThreads = numThreads;
+		this.estimator = new RegionCostEstimator(readLength);
+	}
+
+	/**
+	 * Splits the specified collapsed regions using depth and candidate reads from the input BAM files.
+	 */
+	public List<Feature> split(List<Feature> regions, String[] bams) throws IOException, InterruptedException {
+		for (String bam : bams) {
+			estimator.addBam(bam);
+		}
+
+		scan(regions, bams);
+
+		List<Feature> standardRegions = ReAligner.splitRegions(regions);
+		double deepDensity = getDeepDensity(standardRegions);
+
+		List<Feature> splitRegions = new ArrayList<Feature>();
+
+		for (Feature region : regions) {
+			if (!isScanned || region.getLength() <= ReAligner.MAX_REGION_LENGTH + ReAligner.MIN_REGION_REMAINDER) {
+				splitRegions.addAll(ReAligner.splitRegions(Arrays.asList(region)));
+			} else {
+				splitRegion(region, deepDensity, splitRegions);
+			}
+		}
+
+		System.err.println("Adaptive region split.  Standard regions: " + standardRegions.size() + ", adaptive regions: " + splitRegions.size() +
+				", quiet windows: " + quietCount + ", deep windows: " + deepCount);
+
+		return splitRegions;
+	}
+
+	private void splitRegion(Feature region, double deepDensity, List<Feature> splitRegions) {
+		List<Feature> windows = ReAligner.splitWithOverlap(region);
+
+		int runStart = 0;
+		int runType = getWindowType(windows.get(0), deepDensity);
+
+		for (int i=1; i<=windows.size(); i++) {
+			int type = i < windows.size() ? getWindowType(windows.get(i), deepDensity) : -1;
+
+			if (type != runType) {
+				// Consecutive windows of the same type are re-split as a single region
+				Feature run = new Feature(region.getSeqname(), windows.get(runStart).getStart(), windows.get(i-1).getEnd());
+
+				if (runType == QUIET) {
+					quietCount += i - runStart;
+					splitRegions.addAll(ReAligner.splitWithOverlap(run, QUIET_REGION_LENGTH, ReAligner.MIN_REGION_REMAINDER, ReAligner.REGION_OVERLAP));
+				} else if (runType == DEEP) {
+					deepCount += i - runStart;
+					splitRegions.addAll(ReAligner.splitWithOverlap(run, DEEP_REGION_LENGTH, DEEP_REGION_OVERLAP, DEEP_REGION_OVERLAP));
+				} else {
+					splitRegions.addAll(windows.subList(runStart, i));
+				}
+
+				runStart = i;
+				runType = type;
+			}
+		}
+	}
+
+	private int getWindowType(Feature window, double deepDensity) {
+		if (!hasCandidate(window)) {
+			return QUIET;
+		}
+
+		if (deepDensity > 0 && estimator.getDensity(window) > deepDensity) {
+			return DEEP;
+		}
+
+		return STANDARD;
+	}
+
+	// Returns true if any candidate read overlaps the window
+	private boolean hasCandidate(Feature window) {
+		int[] positions = candidates.get(window.getSeqname());
+		if (positions == null) {
+			return false;
+		}
+
+		long first = window.getStart() - readLength;
+		int idx = Arrays.binarySearch(positions, (int) Math.max(first, 0));
+		if (idx < 0) {
+			idx = -idx - 1;
+		}
+
+		return idx < positions.length && positions[idx] <= window.getEnd();
+	}
+
+	private double getDeepDensity(List<Feature> windows) {
+		double[] densities = new double[windows.size()];
+		for (int i=0; i<windows.size(); i++) {
+			densities[i] = estimator.getDensity(windows.get(i));
+		}
+
+		if (densities.length == 0) {
+			return 0;
+		}
+
+		Arrays.sort(densities);
+		return densities[densities.length/2] * DEEP_REGION_FACTOR;
+	}
+
+	/**
+	 * Identifies candidate read positions for regions in all indexed inputs.  Each chromosome
+	 * of each input is scanned on a separate thread.
+	 */
+	private void scan(List<Feature> regions, String[] bams) throws InterruptedException, IOException {
+		Map<String, List<Feature>> chrRegions = new LinkedHashMap<String, List<Feature>>();
+		for (Feature region : regions) {
+			List<Feature> list = chrRegions.get(region.getSeqname());
+			if (list == null) {
+				list = new ArrayList<Feature>();
+				chrRegions.put(region.getSeqname(), list);
+			}
+			list.add(region);
+		}
+
+		for (String bam : bams) {
+			if (!hasIndex(bam)) {
+				System.err.println("No BAM index found for: " + bam + ".  Using standard region splitting.");
+				return;
+			}
+		}
+
+		ThreadManager threadManager = new ThreadManager(numThreads);
+
+		for (final String bam : bams) {
+			for (final List<Feature> chrList : chrRegions.values()) {
+				threadManager.spawnThread(new AbraRunnable(threadManager) {
+					@Override
+					public void go() throws Exception {
+						scan(bam, chrList);
+					}
+				});
+			}
+		}
+
+		threadManager.waitForAllThreadsToComplete();
+
+		for (String chr : candidateLists.keySet()) {
+			candidates.put(chr, candidateLists.get(chr).toSortedArray());
+		}
+		candidateLists = null;
+
+		isScanned = true;
+	}
+
+	private void scan(String bam, List<Feature> regions) {
+		RegionTracker.PositionList positions = new RegionTracker.PositionList();
+
+		SAMFileReader reader = new SAMFileReader(new File(bam));
+		reader.setValidationStringency(ValidationStringency.SILENT);
+
+		try {
+			for (Feature region : regions) {
+				SAMRecordIterator iter = reader.queryOverlapping(region.getSeqname(), (int) region.getStart(), (int) region.getEnd());
+				try {
+					while (iter.hasNext()) {
+						SAMRecord read = iter.next();
+						if (isCandidate(read)) {
+							positions.add(read.getAlignmentStart());
+						}
+					}
+				} finally {
+					iter.close();
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		if (!regions.isEmpty()) {
+			addCandidates(regions.get(0).getSeqname(), positions);
+		}
+	}
+
+	private synchronized void addCandidates(String chr, RegionTracker.PositionList positions) {
+		RegionTracker.PositionList chrPositions = candidateLists.get(chr);
+		if (chrPositions == null) {
+			candidateLists.put(chr, positions);
+		} else {
+			chrPositions.addAll(positions);
+		}
+	}
+
+	// Approximates NativeAssembler's assembly trigger without comparing to the reference.
+	// Soft clipped bases are counted as mismatches.
+	boolean isCandidate(SAMRecord read) {
+		if (read.getReadUnmappedFlag() || read.getDuplicateReadFlag() || !SAMRecordUtils.isPrimary(read)) {
+			return false;
+		}
+
+		int softClipLength = 0;
+		for (CigarElement elem : read.getCigar().getCigarElements()) {
+			CigarOperator op = elem.getOperator();
+			if (op == CigarOperator.I || op == CigarOperator.D) {
+				return true;
+			} else if (op == CigarOperator.S) {
+				softClipLength += elem.getLength();
+			}
+		}
+
+		int mismatches = SAMRecordUtils.getIntAttribute(read, "NM");
+
+		if (softClipLength > 0 && softClipLength + mismatches > readLength/10) {
+			return true;
+		}
+
+		return mismatches >= MIN_CANDIDATE_MISMATCHES;
+	}
+
+	private boolean hasIndex(String bam) {
+		return new File(bam + ".bai").exists() || (bam.endsWith(".bam") && new File(bam.substring(0, bam.length()-4) + ".bai").exists());
+	}
+}
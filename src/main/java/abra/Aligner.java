@@ -29,6 +29,16 @@ public class Aligner {
 		runCommand(cmd);
 	}
 
+	/**
+	 * Aligns the input with output consumed directly by the specified stdout handler.
+	 */
+	public void align(String input, StdoutHandler stdoutHandler) throws IOException, InterruptedException {
+		
+		String cmd = "bwa mem -t " + numThreads + " " + reference + " " + input;
+		
+		runCommand(cmd, stdoutHandler);
+	}
+
 	private void runCommand(String cmd) throws IOException, InterruptedException {
 		runCommand(cmd, null);
 	}
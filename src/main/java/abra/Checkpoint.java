@@ -0,0 +1,145 @@
+/* Copyright 2013 University of North Carolina at Chapel Hill.  All rights reserved. */
+package abra;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tracks completed processing stages and assembled regions within the working directory
+ * so that an interrupted run can be resumed.
+ *
+ * Manifests are append only.  Each line is flushed upon completion of the stage or region
+ * it describes, so a partially written last line indicates incomplete work and is ignored.
+ *
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class Checkpoint {
+
+	private static final String STAGES_FILE = "checkpoint_stages.txt";
+	private static final String REGIONS_FILE = "checkpoint_regions.txt";
+	private static final String END_OF_RECORD = "\tOK";
+
+	private String stagesFile;
+	private String regionsFile;
+
+	private Set<String> completedStages = new HashSet<String>();
+	private Set<String> completedRegions = new HashSet<String>();
+
+	// Contig fasta length as of the last completed region
+	private long contigFastaLength = 0;
+
+	private BufferedWriter regionWriter;
+
+	public Checkpoint(String workingDir) {
+		this.stagesFile = workingDir + "/" + STAGES_FILE;
+		this.regionsFile = workingDir + "/" + REGIONS_FILE;
+	}
+
+	/**
+	 * Loads manifests from a previous run if they exist.
+	 */
+	public void load() throws IOException {
+		for (String line : readRecords(stagesFile)) {
+			completedStages.add(line);
+		}
+
+		// Fasta length is cumulative, so the last record wins
+		for (String line : readRecords(regionsFile)) {
+			String[] fields = line.split("\t");
+			completedRegions.add(fields[0]);
+			contigFastaLength = Long.parseLong(fields[1]);
+		}
+
+		if (!completedStages.isEmpty() || !completedRegions.isEmpty()) {
+			System.err.println("Resuming from checkpoint.  Completed stages: " + completedStages +
+					".  Completed regions: " + completedRegions.size());
+		}
+	}
+
+	public boolean isStageComplete(String stage) {
+		return completedStages.contains(stage);
+	}
+
+	public synchronized void completeStage(String stage) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(stagesFile, true));
+		try {
+			writer.write(stage + END_OF_RECORD + "\n");
+		} finally {
+			writer.close();
+		}
+		completedStages.add(stage);
+	}
+
+	public boolean isRegionComplete(Feature region) {
+		return completedRegions.contains(region.getDescriptor());
+	}
+
+	/**
+	 * Records region completion.  Contig fasta length must reflect all output for the region.
+	 */
+	public synchronized void completeRegion(Feature region, long contigLength) throws IOException {
+		if (regionWriter == null) {
+			regionWriter = new BufferedWriter(new FileWriter(regionsFile, true));
+		}
+
+		regionWriter.write(region.getDescriptor() + "\t" + contigLength + END_OF_RECORD + "\n");
+		regionWriter.flush();
+	}
+
+	public long getContigFastaLength() {
+		return contigFastaLength;
+	}
+
+	public synchronized void close() throws IOException {
+		if (regionWriter != null) {
+			regionWriter.close();
+			regionWriter = null;
+		}
+	}
+
+	/**
+	 * Truncates the specified file to the given length, discarding output from incomplete work.
+	 */
+	public static void truncate(String filename, long length) throws IOException {
+		File file = new File(filename);
+		if (file.exists() && file.length() > length) {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(length);
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+	// Returns all complete records in file order with the end of record marker stripped.
+	private List<String> readRecords(String filename) throws IOException {
+		List<String> records = new ArrayList<String>();
+
+		if (new File(filename).exists()) {
+			BufferedReader reader = new BufferedReader(new FileReader(filename));
+			try {
+				String line = reader.readLine();
+				while (line != null) {
+					if (line.endsWith(END_OF_RECORD)) {
+						records.add(line.substring(0, line.length() - END_OF_RECORD.length()));
+					}
+					line = reader.readLine();
+				}
+			} finally {
+				reader.close();
+			}
+		}
+
+		return records;
+	}
+}
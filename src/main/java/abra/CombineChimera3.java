@@ -44,10 +44,8 @@ public class CombineChimera3 {
 				header, true, new File(output));
 
 		for (List<SAMRecord> readList : reader) {
-			List<SAMRecord> processedReads = processRead(readList);
-			
-			for (SAMRecord read : processedReads) {
-				outputReadsBam.addAlignment(indelShifter.shiftIndelsLeft(read, c2r));
+			for (SAMRecord read : combine(readList, indelShifter, c2r)) {
+				outputReadsBam.addAlignment(read);
 			}
 		}
 		
@@ -57,6 +55,25 @@ public class CombineChimera3 {
 		System.err.println("Done combining chimeric reads.");
 	}
 	
+	/**
+	 * Combines chimeric alignments for a single contig and shifts indels left.
+	 * minIndelBuffer must be set prior to calling.
+	 */
+	public List<SAMRecord> combine(List<SAMRecord> readList, IndelShifter indelShifter, CompareToReference2 c2r) {
+		List<SAMRecord> processedReads = processRead(readList);
+		List<SAMRecord> shiftedReads = new ArrayList<SAMRecord>(processedReads.size());
+		
+		for (SAMRecord read : processedReads) {
+			shiftedReads.add(indelShifter.shiftIndelsLeft(read, c2r));
+		}
+		
+		return shiftedReads;
+	}
+	
+	public void setMinIndelBuffer(int minIndelBuffer) {
+		this.minIndelBuffer = minIndelBuffer;
+	}
+	
 	// SAMRecords in the input represent chimera for the same read
 	protected List<SAMRecord> processRead(List<SAMRecord> readList) {
 		List<SAMRecord> reads = null;
@@ -0,0 +1,136 @@
+package abra;
+
+import htsjdk.samtools.DefaultSAMRecordFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamInputResource;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Consumes contig alignments directly from the aligner's stdout.  Contigs aligned outside of
+ * their assembly region are discarded and chimeric alignments are combined in memory.
+ *
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class ContigAlignerStdoutHandler implements StdoutHandler {
+
+	private Thread draino;
+	private Thread processorThread;
+	private ContigProcessor processor;
+
+	public ContigAlignerStdoutHandler(boolean isTightAlignment, int minIndelBuffer, CompareToReference2 c2r) {
+		processor = new ContigProcessor(isTightAlignment, minIndelBuffer, c2r);
+	}
+
+	@Override
+	public void process(Process proc) throws IOException {
+
+		PipedInputStream pis = new PipedInputStream(MAX_BYTES_TO_BUFFER);
+		PipedOutputStream pos = new PipedOutputStream();
+		pos.connect(pis);
+
+		// Drain stdout and write to the piped output stream
+		draino = new Thread(new Draino(proc.getInputStream(), pos));
+		draino.start();
+
+		final SamReader reader =
+		        SamReaderFactory.make()
+		                .validationStringency(ValidationStringency.SILENT)
+		                .samRecordFactory(DefaultSAMRecordFactory.getInstance())
+		                .open(SamInputResource.of(pis));
+
+		processor.setReader(reader, pis);
+
+		processorThread = new Thread(processor);
+		processorThread.start();
+	}
+
+	@Override
+	public void postProcess() throws InterruptedException {
+		draino.join();
+		processorThread.join();
+
+		if (processor.error != null) {
+			throw new RuntimeException("Error processing contig alignments", processor.error);
+		}
+	}
+
+	/**
+	 * Returns the filtered and combined contig alignments.  Valid after post processing.
+	 */
+	public List<SAMRecord> getContigs() {
+		return processor.contigs;
+	}
+
+	static class ContigProcessor implements Runnable {
+
+		private SamReader reader;
+		private InputStream is;
+		private boolean isTightAlignment;
+		private CompareToReference2 c2r;
+		private CombineChimera3 combiner = new CombineChimera3();
+		private IndelShifter indelShifter = new IndelShifter();
+		private List<SAMRecord> contigs = new ArrayList<SAMRecord>();
+		private Throwable error;
+
+		ContigProcessor(boolean isTightAlignment, int minIndelBuffer, CompareToReference2 c2r) {
+			this.isTightAlignment = isTightAlignment;
+			this.c2r = c2r;
+			combiner.setMinIndelBuffer(minIndelBuffer);
+		}
+
+		void setReader(SamReader reader, InputStream is) {
+			this.reader = reader;
+			this.is = is;
+		}
+
+		@Override
+		public void run() {
+			try {
+				// bwa mem outputs all alignments for a contig consecutively
+				SamMultiMappingReader multiReader = new SamMultiMappingReader(reader);
+
+				for (List<SAMRecord> readList : multiReader) {
+					if (isTightAlignment) {
+						Iterator<SAMRecord> iter = readList.iterator();
+						while (iter.hasNext()) {
+							if (!ReAligner.isAlignedWithinRegion(iter.next())) {
+								iter.remove();
+							}
+						}
+					}
+
+					if (!readList.isEmpty()) {
+						contigs.addAll(combiner.combine(readList, indelShifter, c2r));
+					}
+				}
+
+				multiReader.close();
+			} catch (Throwable t) {
+				t.printStackTrace();
+				error = t;
+				drain();
+			}
+		}
+		
+		// Consume remaining output so the aligner is not blocked on a full pipe
+		private void drain() {
+			try {
+				byte[] buffer = new byte[4096];
+				while (is.read(buffer) >= 0) {
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
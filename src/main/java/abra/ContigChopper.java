@@ -3,11 +3,12 @@ package abra;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import htsjdk.samtools.Cigar;
 import htsjdk.samtools.CigarElement;
@@ -34,31 +35,57 @@ public class ContigChopper {
 
 	private static int chunkIdx = 0;
 	
+	private static final long HASH_BASE = 31;
+	
 
 	//TODO: Merge regions < readLength apart?  Shouldn't matter from accuracy standpoint.
 	private Map<String, SAMRecord> chop(SAMFileReader reader, Feature region) {
-		// Map of bases to SAMRecords.  Used to dedup reads.
-		Map<String, SAMRecord> chunks = new HashMap<String, SAMRecord>();
-		
-		// Map of positions to base strings.  Used to count noise in a chunk region.
-		Map<String, Set<String>> posCounts = new HashMap<String, Set<String>>();
-
 		CloseableIterator<SAMRecord> iter = reader.queryOverlapping(region.getSeqname(), (int) region.getStart(), (int) region.getEnd());
 		
+		List<SAMRecord> contigs = new ArrayList<SAMRecord>();
 		while (iter.hasNext()) {
-			SAMRecord contig = iter.next();
-			
+			contigs.add(iter.next());
+		}
+		
+		iter.close();
+		
+		return chop(contigs);
+	}
+	
+	private Map<String, SAMRecord> chop(List<SAMRecord> contigs) {
+		// Map of bases to SAMRecords.  Used to dedup reads.
+		Map<String, SAMRecord> chunks = new HashMap<String, SAMRecord>();
+		
+		for (SAMRecord contig : contigs) {
 			List<SAMRecord> contigChunks = chunkRead(contig);
 			for (SAMRecord chunk : contigChunks) {
 				chunks.put(chunk.getReadString(), chunk);
 			}
 		}
 		
-		iter.close();
-		
 		return chunks;
 	}
 	
+	/**
+	 * Chops, clops and drops the in memory set of contigs.  Equivalent to the file based
+	 * version, without the need to sort and index contigs.
+	 */
+	public List<SAMRecord> chopClopDrop(List<Feature> regions, Collection<SAMRecord> contigs) {
+		
+		ContigIndex index = new ContigIndex(contigs);
+		List<SAMRecord> output = new ArrayList<SAMRecord>();
+		
+		for (Feature region : regions) {
+			Map<String, SAMRecord> chunks = chop(index.getOverlapping(region));
+			chunks = clop(chunks);
+			chunks = drop(chunks);
+			
+			output.addAll(chunks.values());
+		}
+		
+		return output;
+	}
+	
 	public void chopClopDrop(List<Feature> regions, String input, String output) {
 		
 		SAMFileReader reader = new SAMFileReader(new File(input));
@@ -105,28 +132,97 @@ public class ContigChopper {
 		return filtered;
 	}
 	
-	// Drop reads that are wholly contained within other reads
-	private Map<String, SAMRecord> drop(Map<String, SAMRecord> chunks) {
+	// Drop reads that are wholly contained within other reads.
+	// Longer reads are indexed by a rolling hash of every substring of minimum read length.
+	// Each shorter read is then only compared against locations matching its prefix.
+	Map<String, SAMRecord> drop(Map<String, SAMRecord> chunks) {
 		
-		Set<String> reads = new HashSet<String>();
+		int minLength = Integer.MAX_VALUE;
+		int maxLength = 0;
 		
-		reads.addAll(chunks.keySet());
+		for (String read : chunks.keySet()) {
+			minLength = Math.min(minLength, read.length());
+			maxLength = Math.max(maxLength, read.length());
+		}
 		
-		for (String read : reads) {
-			
-			for (String read2 : chunks.keySet()) {
+		// Reads of equal length cannot contain one another (keys are unique)
+		if (chunks.size() < 2 || minLength == maxLength) {
+			return chunks;
+		}
+		
+		if (minLength == 0) {
+			chunks.remove("");
+			return drop(chunks);
+		}
+		
+		List<String> containers = new ArrayList<String>();
+		Map<Long, List<Integer>> index = new HashMap<Long, List<Integer>>();
+		
+		long power = 1;
+		for (int i=1; i<minLength; i++) {
+			power *= HASH_BASE;
+		}
+		
+		for (String read : chunks.keySet()) {
+			if (read.length() > minLength) {
+				int readIdx = containers.size();
+				containers.add(read);
 				
-				if (read2.length() > read.length()) {
-					if (read2.contains(read)) {
-						chunks.remove(read);
-						break;
+				long hash = hash(read, minLength);
+				addToIndex(index, hash, readIdx, 0);
+				
+				for (int i=minLength; i<read.length(); i++) {
+					hash = (hash - read.charAt(i-minLength) * power) * HASH_BASE + read.charAt(i);
+					addToIndex(index, hash, readIdx, i-minLength+1);
+				}
+			}
+		}
+		
+		List<String> contained = new ArrayList<String>();
+		
+		for (String read : chunks.keySet()) {
+			if (read.length() < maxLength) {
+				List<Integer> locations = index.get(hash(read, minLength));
+				
+				if (locations != null) {
+					for (int i=0; i<locations.size(); i+=2) {
+						String container = containers.get(locations.get(i));
+						if (container.length() > read.length() && container.startsWith(read, locations.get(i+1))) {
+							contained.add(read);
+							break;
+						}
 					}
 				}
 			}
 		}
 		
+		// Containment is transitive, so the longest reads are always retained
+		for (String read : contained) {
+			chunks.remove(read);
+		}
+		
 		return chunks;
 	}
+	
+	private long hash(String read, int length) {
+		long hash = 0;
+		for (int i=0; i<length; i++) {
+			hash = hash * HASH_BASE + read.charAt(i);
+		}
+		
+		return hash;
+	}
+	
+	// Locations are stored as read index, offset pairs
+	private void addToIndex(Map<Long, List<Integer>> index, long hash, int readIdx, int offset) {
+		List<Integer> locations = index.get(hash);
+		if (locations == null) {
+			locations = new ArrayList<Integer>(2);
+			index.put(hash, locations);
+		}
+		locations.add(readIdx);
+		locations.add(offset);
+	}
 		
 	private List<SAMRecord> chunkRead(SAMRecord contig) {
 		List<SAMRecord> chunks = new ArrayList<SAMRecord>();
@@ -222,6 +318,76 @@ public class ContigChopper {
 		return offset;
 	}
 	
+	/**
+	 *  Per chromosome lists of contigs sorted by alignment start.  Supports overlap queries
+	 *  equivalent to querying an indexed BAM.
+	 */
+	static class ContigIndex {
+		private Map<String, List<SAMRecord>> contigsByChromosome = new HashMap<String, List<SAMRecord>>();
+		private Map<String, Integer> maxSpans = new HashMap<String, Integer>();
+		
+		ContigIndex(Collection<SAMRecord> contigs) {
+			for (SAMRecord contig : contigs) {
+				if (contig.getReadUnmappedFlag()) {
+					continue;
+				}
+				
+				String chromosome = contig.getReferenceName();
+				List<SAMRecord> chromosomeContigs = contigsByChromosome.get(chromosome);
+				if (chromosomeContigs == null) {
+					chromosomeContigs = new ArrayList<SAMRecord>();
+					contigsByChromosome.put(chromosome, chromosomeContigs);
+					maxSpans.put(chromosome, 0);
+				}
+				
+				chromosomeContigs.add(contig);
+				int span = contig.getAlignmentEnd() - contig.getAlignmentStart() + 1;
+				if (span > maxSpans.get(chromosome)) {
+					maxSpans.put(chromosome, span);
+				}
+			}
+			
+			for (List<SAMRecord> chromosomeContigs : contigsByChromosome.values()) {
+				Collections.sort(chromosomeContigs, new Comparator<SAMRecord>() {
+					@Override
+					public int compare(SAMRecord contig1, SAMRecord contig2) {
+						return contig1.getAlignmentStart() - contig2.getAlignmentStart();
+					}
+				});
+			}
+		}
+		
+		List<SAMRecord> getOverlapping(Feature region) {
+			List<SAMRecord> overlapping = new ArrayList<SAMRecord>();
+			List<SAMRecord> contigs = contigsByChromosome.get(region.getSeqname());
+			
+			if (contigs != null) {
+				// No contig starting before this point can reach the region
+				long minStart = region.getStart() - maxSpans.get(region.getSeqname());
+				
+				int low = 0;
+				int high = contigs.size();
+				while (low < high) {
+					int mid = (low + high) >>> 1;
+					if (contigs.get(mid).getAlignmentStart() < minStart) {
+						low = mid + 1;
+					} else {
+						high = mid;
+					}
+				}
+				
+				for (int i=low; i<contigs.size() && contigs.get(i).getAlignmentStart() <= region.getEnd(); i++) {
+					SAMRecord contig = contigs.get(i);
+					if (contig.getAlignmentEnd() >= region.getStart()) {
+						overlapping.add(contig);
+					}
+				}
+			}
+			
+			return overlapping;
+		}
+	}
+	
 	public void setReadLength(int len) {
 		this.readLength = len;
 	}
@@ -0,0 +1,157 @@
+/* Copyright 2013 University of North Carolina at Chapel Hill.  All rights reserved. */
+package abra;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent cache of minimum assembly kmer sizes as computed by KmerSizeEvaluator.
+ *
+ * The kmer size depends only upon the reference bases of the assembly region(s) and the read length,
+ * so entries are keyed by a digest of the region bases and the read length.  The cache may be shared
+ * across runs and samples (i.e. those using the same capture kit) and remains valid across references
+ * because a change to the underlying bases produces a different key.
+ *
+ * The cache file is append only.  Each record is written with a single write and records lacking
+ * the end of record marker (i.e. from an interrupted or concurrent writer) are ignored upon load.
+ *
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class KmerSizeCache {
+
+	private static final String END_OF_RECORD = "\tOK";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private String filename;
+	private Map<String, Integer> kmers = new ConcurrentHashMap<String, Integer>();
+	private Writer writer;
+
+	public KmerSizeCache(String filename) {
+		this.filename = filename;
+	}
+
+	/**
+	 * Loads entries from a previous run if the cache file exists.
+	 */
+	public void load() throws IOException {
+		if (new File(filename).exists()) {
+			BufferedReader reader = new BufferedReader(new FileReader(filename));
+			try {
+				String line = reader.readLine();
+				while (line != null) {
+					if (line.endsWith(END_OF_RECORD)) {
+						// digest, read length, kmer, region descriptor
+						String[] fields = line.split("\t");
+						if (fields.length == 5) {
+							try {
+								kmers.put(fields[0] + ":" + fields[1], Integer.parseInt(fields[2]));
+							} catch (NumberFormatException e) {
+								System.err.println("Ignoring invalid kmer cache entry: " + line);
+							}
+						}
+					}
+					line = reader.readLine();
+				}
+			} finally {
+				reader.close();
+			}
+		}
+
+		System.err.println("Loaded " + kmers.size() + " kmer cache entries from: " + filename);
+	}
+
+	/**
+	 * Returns the cached kmer size for the specified region bases or null if not cached.
+	 */
+	public Integer get(List<String> regionBases, int readLength) {
+		return kmers.get(getKey(regionBases, readLength));
+	}
+
+	/**
+	 * Caches the kmer size for the specified region bases.  The descriptor is recorded for readability only.
+	 */
+	public synchronized void put(List<String> regionBases, int readLength, int kmer, String descriptor) throws IOException {
+		String digest = getDigest(regionBases);
+		String key = digest + ":" + readLength;
+
+		if (kmers.containsKey(key)) {
+			return;
+		}
+
+		kmers.put(key, kmer);
+
+		if (writer == null) {
+			boolean isPartialLine = endsWithPartialLine();
+			writer = new FileWriter(filename, true);
+			if (isPartialLine) {
+				// Terminate an interrupted record so that it does not corrupt the next
+				writer.write("\n");
+			}
+		}
+
+		writer.write(digest + "\t" + readLength + "\t" + kmer + "\t" + descriptor + END_OF_RECORD + "\n");
+		writer.flush();
+	}
+
+	public synchronized void close() throws IOException {
+		if (writer != null) {
+			writer.close();
+			writer = null;
+		}
+	}
+
+	private boolean endsWithPartialLine() throws IOException {
+		File file = new File(filename);
+		if (!file.exists() || file.length() == 0) {
+			return false;
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.seek(file.length() - 1);
+			return raf.read() != '\n';
+		} finally {
+			raf.close();
+		}
+	}
+
+	private String getKey(List<String> regionBases, int readLength) {
+		return getDigest(regionBases) + ":" + readLength;
+	}
+
+	// MD5 of region bases.  Regions are delimited so that the boundaries contribute to the digest.
+	static String getDigest(List<String> regionBases) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+
+		for (String bases : regionBases) {
+			for (int i=0; i<bases.length(); i++) {
+				md.update((byte) bases.charAt(i));
+			}
+			md.update((byte) ',');
+		}
+
+		byte[] digest = md.digest();
+		char[] hex = new char[digest.length * 2];
+		for (int i=0; i<digest.length; i++) {
+			hex[i*2] = HEX[(digest[i] >> 4) & 0xF];
+			hex[i*2+1] = HEX[digest[i] & 0xF];
+		}
+
+		return new String(hex);
+	}
+}
@@ -92,22 +92,77 @@ public class KmerSizeEvaluator {
 	}
 	
 	public int identifyMinKmer(int readLength, CompareToReference2 c2r, List<Feature> regions) {
+		return identifyMinKmer(readLength, c2r, regions, null);
+	}
+	
+	/**
+	 * Identifies the minimum kmer size for the specified regions, consulting the cache if non-null.
+	 * Newly computed values are added to the cache.
+	 */
+	public int identifyMinKmer(int readLength, CompareToReference2 c2r, List<Feature> regions, KmerSizeCache cache) {
 		List<String> regionBases = new ArrayList<String>();
 		
 		for (Feature region : regions) {
 			regionBases.add(getBases(region, c2r));
 		}
 		
-		boolean isEditDistanceOK = false;
-		int distKmer = MIN_KMER;
-		while (!isEditDistanceOK && distKmer < readLength) {
-			isEditDistanceOK = isHammingDistanceAtLeast2(regionBases, distKmer);
-			if (!isEditDistanceOK) {
-				distKmer += 2;
+		if (cache != null) {
+			Integer kmer = cache.get(regionBases, readLength);
+			if (kmer != null) {
+				return kmer;
 			}
 		}
-
-		return distKmer;
+		
+		int kmer = identifyMinKmer(readLength, regionBases);
+		
+		if (cache != null) {
+			StringBuffer descriptor = new StringBuffer();
+			for (Feature region : regions) {
+				if (descriptor.length() > 0) {
+					descriptor.append(',');
+				}
+				descriptor.append(region.getDescriptor());
+			}
+			
+			try {
+				cache.put(regionBases, readLength, kmer, descriptor.toString());
+			} catch (IOException e) {
+				// The cache is an optimization only
+				System.err.println("Error updating kmer cache: " + e.getMessage());
+			}
+		}
+		
+		return kmer;
+	}
+	
+	/**
+	 * Returns the smallest kmer size in MIN_KMER, MIN_KMER+2, ... less than readLength for which
+	 * all kmers in the input differ by a hamming distance of at least 2.  If no such kmer size
+	 * exists, the first size in the series greater than or equal to readLength is returned.
+	 * 
+	 * If two kmers of size k+2 are within a hamming distance of 1, so are their k length prefixes.
+	 * A kmer size passing the test implies all larger sizes pass, so the series is binary searched.
+	 */
+	static int identifyMinKmer(int readLength, List<String> regionBases) {
+		
+		// Number of kmer sizes in the series less than readLength
+		int numSizes = readLength > MIN_KMER ? (readLength - MIN_KMER + 1) / 2 : 0;
+		
+		KmerIndex index = new KmerIndex(regionBases);
+		
+		// Invariant: sizes below low fail, sizes at or above high pass.
+		int low = 0;
+		int high = numSizes;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (index.isHammingDistanceAtLeast2(MIN_KMER + 2*mid)) {
+				high = mid;
+			} else {
+				low = mid + 1;
+			}
+		}
+		
+		return MIN_KMER + 2*low;
 	}
 	
 	private void evalRegion(Feature region, String regionBases) {	
@@ -170,41 +225,137 @@ public class KmerSizeEvaluator {
 		return kmers;
 	}
 	
-	// Is the hamming distance between all bases in this region at least 2
-	private boolean isHammingDistanceAtLeast2(List<String> basesList, int k) {
+	/**
+	 * Finds kmers within a hamming distance of 1 of each other across a set of sequences.
+	 * Any such pair must match exactly in at least one half (pigeonhole principle), so kmers
+	 * are hashed by each half and only kmers sharing a hash bucket are compared.
+	 * Prefix hashes are computed once and reused for each kmer size.
+	 */
+	static class KmerIndex {
+		
+		private static final long HASH_BASE = 31;
 		
-		List<String> kmers = new ArrayList<String>();
+		private char[] bases;
 		
-		for (String bases : basesList) {
-			for (int i=0; i<=bases.length()-k; i++) {
-				String kmer = bases.substring(i, i+k);
+		// Offset of each sequence within bases.  The final entry is the total length.
+		private int[] offsets;
+		
+		// Polynomial hash of bases[0, i) within the containing sequence
+		private long[] prefixHashes;
+		private long[] powers;
+		
+		KmerIndex(List<String> sequences) {
+			int length = 0;
+			for (String sequence : sequences) {
+				length += sequence.length();
+			}
+			
+			bases = new char[length];
+			offsets = new int[sequences.size() + 1];
+			prefixHashes = new long[length + sequences.size()];
+			powers = new long[length + 1];
+			
+			powers[0] = 1;
+			for (int i=1; i<powers.length; i++) {
+				powers[i] = powers[i-1] * HASH_BASE;
+			}
+			
+			int offset = 0;
+			for (int i=0; i<sequences.size(); i++) {
+				String sequence = sequences.get(i);
+				sequence.getChars(0, sequence.length(), bases, offset);
+				offsets[i] = offset;
+				offset += sequence.length();
+			}
+			offsets[sequences.size()] = offset;
+			
+			// Each sequence has its own prefix hash array segment of length + 1 entries
+			for (int i=0; i<sequences.size(); i++) {
+				int hashIdx = offsets[i] + i;
+				prefixHashes[hashIdx] = 0;
+				for (int j=offsets[i]; j<offsets[i+1]; j++) {
+					prefixHashes[hashIdx+1] = prefixHashes[hashIdx] * HASH_BASE + bases[j];
+					hashIdx++;
+				}
+			}
+		}
+		
+		// Hash of bases[start, end) within sequence seqIdx
+		private long hash(int seqIdx, int start, int end) {
+			return prefixHashes[end + seqIdx] - prefixHashes[start + seqIdx] * powers[end - start];
+		}
+		
+		boolean isHammingDistanceAtLeast2(int k) {
+			int numKmers = 0;
+			for (int i=0; i<offsets.length-1; i++) {
+				numKmers += Math.max(offsets[i+1] - offsets[i] - k + 1, 0);
+			}
+			
+			if (numKmers < 2) {
+				return true;
+			}
+			
+			int[] starts = new int[numKmers];
+			int[] seqIdxs = new int[numKmers];
+			int idx = 0;
+			for (int i=0; i<offsets.length-1; i++) {
+				for (int start=offsets[i]; start<=offsets[i+1]-k; start++) {
+					starts[idx] = start;
+					seqIdxs[idx] = i;
+					idx++;
+				}
+			}
+			
+			int half = k / 2;
+			
+			return !hasNearDuplicate(starts, seqIdxs, k, 0, half) && !hasNearDuplicate(starts, seqIdxs, k, half, k);
+		}
+		
+		// Returns true if 2 kmers matching in [from, to) are within a hamming distance of 1
+		private boolean hasNearDuplicate(int[] starts, int[] seqIdxs, int k, int from, int to) {
+			int tableSize = Integer.highestOneBit(starts.length) << 2;
+			int mask = tableSize - 1;
+			
+			// Chained hash table.  Entries are kmer index + 1, with 0 indicating empty.
+			int[] heads = new int[tableSize];
+			int[] next = new int[starts.length];
+			long[] hashes = new long[starts.length];
+			
+			for (int i=0; i<starts.length; i++) {
+				long hash = hash(seqIdxs[i], starts[i] + from, starts[i] + to);
+				hashes[i] = hash;
+				int bucket = (int) ((hash ^ (hash >>> 32)) * 0x9E3779B9L >>> 16) & mask;
 				
-				for (String kmer2 : kmers) {
-					if (!isHammingDistanceAtLeast2(kmer, kmer2)) {
-						return false;
+				int entry = heads[bucket];
+				while (entry != 0) {
+					int j = entry - 1;
+					if (hashes[j] == hash && !isHammingDistanceAtLeast2(starts[i], starts[j], k)) {
+						return true;
 					}
+					entry = next[j];
 				}
 				
-				kmers.add(kmer);
+				next[i] = heads[bucket];
+				heads[bucket] = i + 1;
 			}
+			
+			return false;
 		}
 		
-		return true;
-	}
-	
-	private boolean isHammingDistanceAtLeast2(String kmer1, String kmer2) {
-		int dist = 0;
-		for (int i=0; i<kmer1.length(); i++) {
-			if (kmer1.charAt(i) != kmer2.charAt(i)) {
-				dist += 1;
-				
-				if (dist >=2) {
-					return true;
+		private boolean isHammingDistanceAtLeast2(int start1, int start2, int k) {
+			int dist = 0;
+			for (int i=0; i<k; i++) {
+				if (bases[start1+i] != bases[start2+i]) {
+					dist += 1;
+					
+					if (dist >=2) {
+						return true;
+					}
 				}
 			}
+			
+			return false;
 		}
-		
-		return false;
 	}
 	
 	public static void main(String[] args) throws Exception {
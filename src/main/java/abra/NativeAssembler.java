@@ -3,13 +3,15 @@ package abra;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Random;
-import java.util.Set;
+import java.util.Map;
 
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
 import htsjdk.samtools.SAMFileReader;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.ValidationStringency;
@@ -37,7 +39,11 @@ public class NativeAssembler {
 	private int minBaseQuality;
 	private double minReadCandidateFraction;
 	private int maxAverageDepth;
-	List<Position> svCandidates = new ArrayList<Position>();
+	// Discordant mate positions packed as (chromosome index << 32 | position)
+	private long[] svMates = new long[16];
+	private int svMateCount = 0;
+	private List<String> svChromosomes = new ArrayList<String>();
+	private Map<String, Integer> svChromosomeIndices = new HashMap<String, Integer>();
 	List<BreakpointCandidate> svCandidateRegions = new ArrayList<BreakpointCandidate>();
 	private boolean shouldSearchForSv = false;
 	private boolean isCycleExceedingThresholdDetected = false;
@@ -51,18 +57,14 @@ public class NativeAssembler {
 			int kmerSize, int minKmerFreq, int minBaseQuality, double minEdgeRatio, int debug,
 			int maxNodes);
 	
-	private String getIdentifier(SAMRecord read) {
-		String id = read.getReadName();
-		
-		if (read.getReadPairedFlag() && read.getSecondOfPairFlag()) {
-			id += "_2";
+	private boolean isHardClipped(SAMRecord read) {
+		for (CigarElement elem : read.getCigar().getCigarElements()) {
+			if (elem.getOperator() == CigarOperator.H) {
+				return true;
+			}
 		}
 		
-		return id;
-	}
-	
-	private boolean isHardClipped(SAMRecord read) {
-		return read.getCigarString().contains("H");
+		return false;
 	}
 	
 	private void filterPositionList(List<Integer> positions, int currentPos) {
@@ -110,29 +112,33 @@ public class NativeAssembler {
 	}
 	
 	private boolean isAssemblyTriggerCandidate(SAMRecord read, CompareToReference2 c2r) {
-		boolean isCandidate = false;
+		boolean hasSoftClip = false;
+		
+		for (CigarElement elem : read.getCigar().getCigarElements()) {
+			// Increment candidate count for indels
+			if (elem.getOperator() == CigarOperator.I || elem.getOperator() == CigarOperator.D) {
+				return true;
+			} else if (elem.getOperator() == CigarOperator.S) {
+				hasSoftClip = true;
+			}
+		}
 		
-		// Increment candidate count for indels
-		if (read.getCigarString().contains("I") || read.getCigarString().contains("D")) {
-			isCandidate = true;
+		int nm = SAMRecordUtils.getIntAttribute(read, "NM");
+		
+		if (!hasSoftClip && nm < 3) {
+			return false;
 		}
+		
+		int mismatches = c2r.numHighQualityMismatches(read, MIN_CANDIDATE_BASE_QUALITY);
 
 		// Increment candidate count for substantial high quality soft clipping
 		// TODO: Check for chimera directly?
-		if (read.getCigarString().contains("S")) {
-			if (c2r.numHighQualityMismatches(read, MIN_CANDIDATE_BASE_QUALITY) > (readLength/10)) {
-				isCandidate = true;
-			}
+		if (hasSoftClip && mismatches > (readLength/10)) {
+			return true;
 		}
 		
 		// Increment candidate count if read contains at least 3 high quality mismatches
-		if (SAMRecordUtils.getIntAttribute(read, "NM") >= 3) {
-			if (c2r.numHighQualityMismatches(read, MIN_CANDIDATE_BASE_QUALITY) > 3) {
-				isCandidate = true;
-			}
-		}
-
-		return isCandidate;
+		return nm >= 3 && mismatches > 3;
 	}
 	
 	public String simpleAssemble(List<SAMRecord> reads) {
@@ -200,16 +206,16 @@ public class NativeAssembler {
 	}
 	
 	//
-	//  Returns a downsampled set of reads for each sample.
+	//  Returns a downsampled set of reads for each sample.  Assembly trigger and SV candidate status
+	//  is evaluated as reads are sampled.  If c2r is null, trigger status is not evaluated.
 	//
-	private List<List<SAMRecord>> getReads(List<String> inputFiles, List<Feature> regions, ReAligner realigner) {
+	private List<ReadReservoir> getReads(List<String> inputFiles, List<Feature> regions, ReAligner realigner, CompareToReference2 c2r) {
 		
 		int downsampleTarget = desiredNumberOfReads(regions);
-		List<DownsampledReadList> readsList = new ArrayList<DownsampledReadList>();
+		List<ReadReservoir> readsList = new ArrayList<ReadReservoir>();
 
 		for (String input : inputFiles) {
-			Set<String> readIds = new HashSet<String>();
-			DownsampledReadList reads = new DownsampledReadList(downsampleTarget);
+			ReadReservoir reads = new ReadReservoir(downsampleTarget, readLength);
 			readsList.add(reads);
 			
 			for (Feature region : regions) {
@@ -232,23 +238,31 @@ public class NativeAssembler {
 						 (!read.getDuplicateReadFlag()) && 
 						 (!read.getReadFailsVendorQualityCheckFlag()) &&
 						 (read.getMappingQuality() >= realigner.getMinMappingQuality() || read.getReadUnmappedFlag()) &&
-						 (!readIds.contains(getIdentifier(read)))) {
+						 (reads.markSeen(read))) {
 						
-						if (read.getReadString().length() > readLength) {
+						if (read.getReadLength() > readLength) {
 							reader.close();
 							throw new IllegalArgumentException("Maximum read length of: " + readLength +
 									" exceeded for: " + read.getSAMString());
 						}
 						
-						readIds.add(getIdentifier(read));
-												
-						reads.add(read);
+						int slot = reads.nextSlot();
+						if (slot >= 0) {
+							boolean isTriggerCandidate = c2r != null && isAssemblyTriggerCandidate(read, c2r);
+							
+							long svMate = -1;
+							if (shouldSearchForSv && isSvCandidate(read)) {
+								svMate = packSvMate(read.getMateReferenceName(), read.getMateAlignmentStart());
+							}
+							
+							reads.set(slot, read, isTriggerCandidate, svMate);
+						}
 					}
 				}
 				
-				if (reads.getTotalReadCount() != reads.getReads().size()) {
+				if (reads.getTotalReadCount() != reads.size()) {
 					if (isDebug) {
-						System.err.println("downsampled: " + regions.get(0).getDescriptor() + ": " + reads.getTotalReadCount() + " -> " + reads.getReads().size());
+						System.err.println("downsampled: " + regions.get(0).getDescriptor() + ": " + reads.getTotalReadCount() + " -> " + reads.size());
 					}
 				}
 				
@@ -256,28 +270,113 @@ public class NativeAssembler {
 			}
 		}
 		
-		List<List<SAMRecord>> sampleReads = new ArrayList<List<SAMRecord>>();
+		return readsList;
+	}
+	
+	//
+	//  Returns true if enough reads in any sample could possibly trigger assembly.  Reads are filtered as in getReads,
+	//  but only CIGAR and NM values are used, so read bases and qualities are not decoded and no comparison to the
+	//  reference is necessary.
+	//
+	private boolean isPossibleAssemblyCandidate(List<String> inputFiles, List<Feature> regions, ReAligner realigner) {
+		
+		int downsampleTarget = desiredNumberOfReads(regions);
 		
-		for (DownsampledReadList downsampledReads : readsList) {
-			sampleReads.add(downsampledReads.getReads());
+		for (String input : inputFiles) {
+			ReadReservoir.ReadIdSet readIds = new ReadReservoir.ReadIdSet();
+			int readCount = 0;
+			int possibleCandidateCount = 0;
+			
+			for (Feature region : regions) {
+				SAMFileReader reader = new SAMFileReader(new File(input));
+				reader.setValidationStringency(ValidationStringency.SILENT);
+				
+				Iterator<SAMRecord> iter = reader.queryOverlapping(region.getSeqname(), (int) region.getStart(), (int) region.getEnd());
+				
+				while (iter.hasNext()) {
+					SAMRecord read = iter.next();
+					
+					if ( (!realigner.isFiltered(read)) && 
+						 (!read.getDuplicateReadFlag()) && 
+						 (!read.getReadFailsVendorQualityCheckFlag()) &&
+						 (read.getMappingQuality() >= realigner.getMinMappingQuality() || read.getReadUnmappedFlag()) &&
+						 (readIds.add(ReadReservoir.getIdHash(read)))) {
+						
+						readCount += 1;
+						
+						if (isPossibleAssemblyTriggerCandidate(read)) {
+							possibleCandidateCount += 1;
+						}
+					}
+				}
+				
+				reader.close();
+			}
+			
+			// At most all possible candidates survive downsampling
+			int sampleReadCount = Math.min(readCount, downsampleTarget);
+			if (Math.min(possibleCandidateCount, sampleReadCount) > minCandidateCount(sampleReadCount, regions.get(0))) {
+				return true;
+			}
 		}
 		
-		return sampleReads;
+		return false;
+	}
+	
+	//
+	//  Returns false only if isAssemblyTriggerCandidate is false for the read.
+	//  High quality mismatches are bounded by soft clipped bases plus NM.
+	//
+	private boolean isPossibleAssemblyTriggerCandidate(SAMRecord read) {
+		int softClipLength = 0;
+		for (CigarElement elem : read.getCigar().getCigarElements()) {
+			if (elem.getOperator() == CigarOperator.I || elem.getOperator() == CigarOperator.D) {
+				return true;
+			} else if (elem.getOperator() == CigarOperator.S) {
+				softClipLength += elem.getLength();
+			}
+		}
+		
+		if (read.getReadUnmappedFlag()) {
+			// No mismatches are counted for unmapped reads
+			return false;
+		}
+		
+		Integer nm = read.getIntegerAttribute("NM");
+		
+		if (softClipLength > 0) {
+			// Without NM, mismatches within the aligned portion of the read are unknown
+			if (nm == null || softClipLength + nm > readLength/10) {
+				return true;
+			}
+		}
+		
+		return nm != null && nm >= 3 && softClipLength + nm > 3;
 	}
 	
 	public String assembleContigs(List<String> inputFiles, String output, String tempDir, List<Feature> regions, String prefix,
 			boolean checkForDupes, ReAligner realigner, CompareToReference2 c2r) {
 		
+		long start = System.currentTimeMillis();
+		
+		// Skip regions lacking sufficient assembly trigger candidates prior to loading reads or identifying kmer size.
+		// If c2r is null, this is the unaligned region.
+		if (c2r != null && !isPossibleAssemblyCandidate(inputFiles, regions, realigner)) {
+			if (isDebug) {
+				System.err.println("Elapsed_msecs_in_NativeAssembler\tRegion:\t" + regions.get(0).getDescriptor() + "\tLength:\t" + regions.get(0).getLength() +
+						"\tElapsed\t" + (System.currentTimeMillis()-start) + "\tSkipped_by_trigger_scan");
+			}
+			return "";
+		}
+		
 		if ((kmers.length == 0) || (kmers[0] < KmerSizeEvaluator.MIN_KMER)) {
 			KmerSizeEvaluator kmerEval = new KmerSizeEvaluator();
-			int kmer = kmerEval.identifyMinKmer(readLength, c2r, regions);
+			int kmer = kmerEval.identifyMinKmer(readLength, c2r, regions, realigner.getKmerSizeCache());
 			this.kmers = realigner.toKmerArray(kmer, readLength);
 		}
 				
 		String contigs = "";
 		
-		long start = System.currentTimeMillis();
-		
 		int readCount = 0;
 		
 		int minReadCount = Integer.MAX_VALUE;
@@ -287,22 +386,17 @@ public class NativeAssembler {
 		
 		try {
 						
-			List<List<SAMRecord>> readsList = getReads(inputFiles, regions, realigner);
+			List<ReadReservoir> readsList = getReads(inputFiles, regions, realigner, c2r);
 			
-			for (List<SAMRecord> reads : readsList) {
-				int candidateReadCount = 0;
-				for (SAMRecord read : reads) {
-					if (!isAssemblyCandidate && isAssemblyTriggerCandidate(read, c2r)) {
-						candidateReadCount++;
-					}
-					
-					if (shouldSearchForSv && isSvCandidate(read)) {
-						svCandidates.add(new Position(read.getMateReferenceName(), read.getMateAlignmentStart()));
-					}
+			for (ReadReservoir reads : readsList) {
+				if (reads.getTriggerCandidateCount() > minCandidateCount(reads.size(), regions.get(0))) {
+					isAssemblyCandidate = true;
 				}
 				
-				if (candidateReadCount > minCandidateCount(reads.size(), regions.get(0))) {
-					isAssemblyCandidate = true;
+				for (int i=0; i<reads.size(); i++) {
+					if (reads.getSvMate(i) >= 0) {
+						addSvMate(reads.getSvMate(i));
+					}
 				}
 				
 				if (reads.size() < minReadCount) {
@@ -312,46 +406,16 @@ public class NativeAssembler {
 				readCount += reads.size();
 			}
 			
-			StringBuffer readBuffer = new StringBuffer();
+			StringBuilder readBuffer = new StringBuilder();
 			
 			if (isAssemblyCandidate) {
 				
-				int downsampleTarget = desiredNumberOfReads(regions);
+				readBuffer.ensureCapacity(readCount * (2*readLength + 2));
 				
 				char sampleId = 1;
 				
-				for (List<SAMRecord> reads : readsList) {
-					// Default to always keep
-					double keepProbability = 1.1;
-					
-					if (reads.size() > downsampleTarget) {
-						keepProbability = (double) downsampleTarget / (double) reads.size();
-					}
-					
-					Random random = new Random(1);
-					
-					for (SAMRecord read : reads) {
-						if (random.nextDouble() < keepProbability) {
-							readBuffer.append(sampleId);
-							readBuffer.append(read.getReadNegativeStrandFlag() ? "1" : "0");
-							
-							if (read.getReadString().length() == readLength) {
-								readBuffer.append(read.getReadString());
-								readBuffer.append(read.getBaseQualityString());
-							} else {
-								StringBuffer basePadding = new StringBuffer();
-								StringBuffer qualPadding = new StringBuffer();
-								
-								for (int i=0; i<readLength-read.getReadString().length(); i++) {
-									basePadding.append('N');
-									qualPadding.append('!');
-								}
-								
-								readBuffer.append(read.getReadString() + basePadding.toString());
-								readBuffer.append(read.getBaseQualityString() + qualPadding.toString());							
-							}
-						}
-					}
+				for (ReadReservoir reads : readsList) {
+					reads.appendTo(readBuffer, sampleId);
 					
 					// Make this set of reads eligible for GC
 					reads.clear();
@@ -399,57 +463,7 @@ public class NativeAssembler {
 		}
 		
 		if (this.shouldSearchForSv) {
-			
-			Collections.sort(this.svCandidates);
-			Position last = null;
-			String currentFeatureChr = null;
-			int currentFeatureStart = -1;
-			int currentFeatureStop = -1;
-			int currentFeatureCount = 0;
-			
-			// TODO: Calc this dynamically
-			int windowSize = 500;
-			
-			for (Position pos : this.svCandidates) {
-				if ((last != null) && pos.getChromosome().equals(last.getChromosome()) && 
-					 Math.abs(pos.getPosition()-last.getPosition()) < windowSize) {
-					
-					if (currentFeatureChr == null) {
-						currentFeatureChr = pos.getChromosome();
-						currentFeatureStart = last.getPosition();
-						currentFeatureStop = pos.getPosition() + readLength;
-						currentFeatureCount = 1;
-					} else {
-						currentFeatureStop = pos.getPosition() + readLength;
-						currentFeatureCount++;
-					}
-				} else {
-					if (currentFeatureChr != null) {
-						if (currentFeatureCount > (minReadCount/MAX_READ_LENGTHS_PER_REGION) * minReadCandidateFraction) {
-							Feature region = new Feature(currentFeatureChr, currentFeatureStart-readLength, currentFeatureStop+readLength);
-							BreakpointCandidate candidate = new BreakpointCandidate(region, currentFeatureCount);
-							this.svCandidateRegions.add(candidate);
-						}
-						currentFeatureChr = null;
-						currentFeatureStart = -1;
-						currentFeatureStop = -1;
-						currentFeatureCount = 0;
-					} else {
-						currentFeatureChr = pos.getChromosome();
-						currentFeatureStart = pos.getPosition();
-						currentFeatureStop = pos.getPosition() + readLength;
-						currentFeatureCount = 1;
-					}
-				}
-				last = pos;
-			}
-			
-			// Don't forget last SV candidate region
-			if (currentFeatureCount > (minReadCount/MAX_READ_LENGTHS_PER_REGION) * minReadCandidateFraction) {
-				Feature region = new Feature(currentFeatureChr, currentFeatureStart-readLength, currentFeatureStop+readLength);
-				BreakpointCandidate candidate = new BreakpointCandidate(region, currentFeatureCount);
-				this.svCandidateRegions.add(candidate);
-			}
+			clusterSvMates(minReadCount);
 		}
 		
 		long end = System.currentTimeMillis();
@@ -479,6 +493,103 @@ public class NativeAssembler {
 		return result;
 	}
 	
+	private long packSvMate(String chromosome, int position) {
+		Integer idx = svChromosomeIndices.get(chromosome);
+		if (idx == null) {
+			idx = svChromosomes.size();
+			svChromosomes.add(chromosome);
+			svChromosomeIndices.put(chromosome, idx);
+		}
+		
+		return ((long) idx << 32) | (position & 0xFFFFFFFFL);
+	}
+	
+	private void addSvMate(long svMate) {
+		if (svMateCount == svMates.length) {
+			svMates = Arrays.copyOf(svMates, svMateCount * 2);
+		}
+		svMates[svMateCount++] = svMate;
+	}
+	
+	//
+	//  Clusters discordant mate positions into SV candidate regions.
+	//
+	private void clusterSvMates(int minReadCount) {
+		
+		// Re-index chromosomes in name order, so mates are sorted by chromosome name and position
+		List<String> sortedChromosomes = new ArrayList<String>(svChromosomes);
+		Collections.sort(sortedChromosomes);
+		long[] ranks = new long[svChromosomes.size()];
+		for (int i=0; i<svChromosomes.size(); i++) {
+			ranks[i] = Collections.binarySearch(sortedChromosomes, svChromosomes.get(i));
+		}
+		
+		for (int i=0; i<svMateCount; i++) {
+			svMates[i] = (ranks[(int) (svMates[i] >>> 32)] << 32) | (svMates[i] & 0xFFFFFFFFL);
+		}
+		
+		Arrays.sort(svMates, 0, svMateCount);
+		
+		int lastChr = -1;
+		int lastPos = -1;
+		int currentFeatureChr = -1;
+		int currentFeatureStart = -1;
+		int currentFeatureStop = -1;
+		int currentFeatureCount = 0;
+		
+		// TODO: Calc this dynamically
+		int windowSize = 500;
+		
+		for (int i=0; i<svMateCount; i++) {
+			int chr = (int) (svMates[i] >>> 32);
+			int pos = (int) svMates[i];
+			
+			if ((lastChr >= 0) && chr == lastChr && 
+				 Math.abs(pos-lastPos) < windowSize) {
+				
+				if (currentFeatureChr < 0) {
+					currentFeatureChr = chr;
+					currentFeatureStart = lastPos;
+					currentFeatureStop = pos + readLength;
+					currentFeatureCount = 1;
+				} else {
+					currentFeatureStop = pos + readLength;
+					currentFeatureCount++;
+				}
+			} else {
+				if (currentFeatureChr >= 0) {
+					addSvCandidateRegion(sortedChromosomes, currentFeatureChr, currentFeatureStart, currentFeatureStop, currentFeatureCount, minReadCount);
+					currentFeatureChr = -1;
+					currentFeatureStart = -1;
+					currentFeatureStop = -1;
+					currentFeatureCount = 0;
+				} else {
+					currentFeatureChr = chr;
+					currentFeatureStart = pos;
+					currentFeatureStop = pos + readLength;
+					currentFeatureCount = 1;
+				}
+			}
+			lastChr = chr;
+			lastPos = pos;
+		}
+		
+		// Don't forget last SV candidate region
+		if (currentFeatureChr >= 0) {
+			addSvCandidateRegion(sortedChromosomes, currentFeatureChr, currentFeatureStart, currentFeatureStop, currentFeatureCount, minReadCount);
+		}
+		
+		svMateCount = 0;
+	}
+	
+	private void addSvCandidateRegion(List<String> chromosomes, int chr, int start, int stop, int count, int minReadCount) {
+		if (count > (minReadCount/MAX_READ_LENGTHS_PER_REGION) * minReadCandidateFraction) {
+			Feature region = new Feature(chromosomes.get(chr), start-readLength, stop+readLength);
+			BreakpointCandidate candidate = new BreakpointCandidate(region, count);
+			this.svCandidateRegions.add(candidate);
+		}
+	}
+	
 	private boolean isSvCandidate(SAMRecord read) {
 		boolean isCandidate = false;
 		if (!read.getProperPairFlag() && !read.getMateUnmappedFlag()) {
@@ -504,9 +615,15 @@ public class NativeAssembler {
 	}
 	
 	private boolean hasLowQualityBase(SAMRecord read) {
-		//TODO: Don't hardcode phred33
-		for (int i=0; i<read.getBaseQualityString().length(); i++) {
-			if ((read.getBaseQualityString().charAt(i) - '!') < 20) {
+		byte[] quals = read.getBaseQualities();
+		
+		// Missing qualities are rendered as "*" which is treated as low quality
+		if (quals.length == 0) {
+			return true;
+		}
+		
+		for (int i=0; i<quals.length; i++) {
+			if (quals[i] < 20) {
 				return true;
 			}
 		}
@@ -582,37 +699,6 @@ public class NativeAssembler {
 		this.isDebug = isDebug;
 	}
 	
-	static class Position implements Comparable<Position> {
-		private String chromosome;
-		private int position;
-		
-		Position(String chromosome, int position) {
-			this.chromosome = chromosome;
-			this.position = position;
-		}
-		
-		String getChromosome() {
-			return chromosome;
-		}
-		
-		int getPosition() {
-			return position;
-		}
-		
-		public String toString() {
-			return chromosome + ":" + position;
-		}
-
-		@Override
-		public int compareTo(Position that) {
-			int compare = this.chromosome.compareTo(that.chromosome);
-			if (compare == 0) {
-				compare = this.position - that.position;
-			}
-			return compare;
-		}
-	}
-	
 	public static void main(String[] args) throws Exception {
 		
 		NativeLibraryLoader l = new NativeLibraryLoader();
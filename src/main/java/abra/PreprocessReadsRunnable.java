@@ -16,20 +16,31 @@ public class PreprocessReadsRunnable extends AbraRunnable {
 	private CompareToReference2 c2r;
 	private SAMFileWriter finalOutputSam;
 	private ReAligner reAligner;
+	// Non-null if preprocessing completion is to be checkpointed
+	private String checkpointStage;
 	
 	public PreprocessReadsRunnable(ThreadManager threadManager, ReAligner reAligner, String inputSam, String fastq, CompareToReference2 c2r, SAMFileWriter finalOutputSam) {
+		this(threadManager, reAligner, inputSam, fastq, c2r, finalOutputSam, null);
+	}
+	
+	public PreprocessReadsRunnable(ThreadManager threadManager, ReAligner reAligner, String inputSam, String fastq, CompareToReference2 c2r, SAMFileWriter finalOutputSam,
+			String checkpointStage) {
 		super(threadManager);
 		this.inputSam = inputSam;
 		this.fastq = fastq;
 		this.c2r = c2r;
 		this.finalOutputSam = finalOutputSam;
 		this.reAligner = reAligner;
+		this.checkpointStage = checkpointStage;
 	}
 
 	@Override
 	public void go() throws Exception {
 		log("Preprocessing original reads for alignment: " + inputSam);
 		reAligner.sam2Fastq(inputSam, fastq, c2r, finalOutputSam);
+		if (checkpointStage != null) {
+			reAligner.completePreprocessing(checkpointStage, finalOutputSam);
+		}
 		log("Done preprocessing original reads for alignment: " + inputSam);
 	}
 }
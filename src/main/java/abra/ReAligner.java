@@ -10,8 +10,11 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import picard.sam.BuildBamIndex;
 import picard.sam.SortSam;
@@ -35,7 +38,7 @@ public class ReAligner {
 	private static final int DEFAULT_MAX_UNALIGNED_READS = 1000000;
 	
 	public static final int MAX_REGION_LENGTH = 400;
-	private static final int MIN_REGION_REMAINDER = 200;
+	static final int MIN_REGION_REMAINDER = 200;
 	public static final int REGION_OVERLAP = 200;
 
 	private static final int MAX_POTENTIAL_UNALIGNED_CONTIGS = 2000000;
@@ -110,6 +113,26 @@ public class ReAligner {
 	// If true, the input target file specifies kmer values
 	private boolean hasPresetKmers = false;
 	
+	// Predicted assembly cost per region.  Populated prior to region processing.
+	private Map<Feature, Double> regionCosts = new HashMap<Feature, Double>();
+	
+	// Non-null when stage level checkpointing is enabled
+	private Checkpoint checkpoint;
+	private boolean isCheckpointEnabled = false;
+	
+	// Non-null when computed region kmer sizes are persisted across runs
+	private KmerSizeCache kmerSizeCache;
+	private String kmerCacheFile;
+	private boolean isAdaptiveRegions = false;
+	
+	private long contigFastaLength = 0;
+	
+	// Non-null when searching for structural variation
+	private SVCandidateCollector svCandidateCollector;
+	
+	private static final String ASSEMBLY_STAGE = "assembly";
+	private static final String CLEAN_CONTIGS_STAGE = "clean_contigs";
+	
 	public static final int COMPRESSION_LEVEL = 1;
 	
 	public void reAlign(String[] inputFiles, String[] outputFiles) throws Exception {
@@ -141,10 +164,22 @@ public class ReAligner {
 		clock.start();
 		
 		String contigFasta = tempDir + "/" + "all_contigs.fasta";
-		contigWriter = new BufferedWriter(new FileWriter(contigFasta, false));
-		
 		String svContigFasta = tempDir + "/" + "sv_contigs.fasta";
-		svContigWriter = new BufferedWriter(new FileWriter(svContigFasta, false));
+		
+		boolean isAssemblyComplete = isStageComplete(ASSEMBLY_STAGE);
+		
+		if (!isAssemblyComplete) {
+			openContigWriters(contigFasta, svContigFasta);
+			
+			if (this.assemblerSettings.searchForStructuralVariation() && this.isPairedEnd) {
+				svCandidateCollector = new SVCandidateCollector(checkpoint != null ? tempDir + "/sv_candidates.txt" : null);
+				if (checkpoint != null) {
+					svCandidateCollector.load(checkpoint);
+				}
+			}
+		} else {
+			hasContigs = new File(contigFasta).length() > 0;
+		}
 		
 		tempDirs = new String[inputSams.length];
 		
@@ -160,7 +195,9 @@ public class ReAligner {
 		for (int i=0; i<inputSams.length; i++) {
 			// init temp dir
 			String temp = tempDir + "/temp" + (i+1);
-			mkdir(temp);
+			if (checkpoint == null || !new File(temp).exists()) {
+				mkdir(temp);
+			}
 			tempDirs[i] = temp;
 
 			// init BAM writer
@@ -171,26 +208,40 @@ public class ReAligner {
 		// Start pre-processing reads on separate thread for each input file.
 		// This happens in parallel with assembly, provided there are enough threads.
 		for (int i=0; i<inputSams.length; i++) {
-			preProcessReads(inputSams[i], tempDirs[i], writers[i]);
+			preProcessReads(i);
 		}
 		
-		log("Iterating over regions");
-		
-		int count = 0;
-		for (Feature region : regions) {
-			count += 1;
-			spawnRegionThread(region, null);
-			if ((count % 1000) == 0) {
-				System.err.println("Processing region: " + count + " of " + regions.size());
+		if (!isAssemblyComplete) {
+			log("Estimating region costs");
+			List<Feature> orderedRegions = getRegionsByDescendingCost();
+			
+			log("Iterating over regions");
+			
+			int count = 0;
+			for (Feature region : orderedRegions) {
+				count += 1;
+				if (checkpoint == null || !checkpoint.isRegionComplete(region)) {
+					spawnRegionThread(region, null);
+				}
+				if ((count % 1000) == 0) {
+					System.err.println("Processing region: " + count + " of " + regions.size());
+				}
 			}
 		}
 		
-		
 		log("Waiting for all threads to complete");
 		threadManager.waitForAllThreadsToComplete();
 		
-		contigWriter.close();
-		svContigWriter.close();
+		if (!isAssemblyComplete) {
+			if (svCandidateCollector != null) {
+				log("Assembling SV candidates");
+				assembleSvCandidates();
+			}
+			
+			contigWriter.close();
+			svContigWriter.close();
+			completeStage(ASSEMBLY_STAGE);
+		}
 		
 		if (localRepeatWriter != null) {
 			localRepeatWriter.close();
@@ -200,10 +251,14 @@ public class ReAligner {
 		
 		String cleanContigsFasta = null;
 		
-		if (hasContigs) {
+		if (isStageComplete(CLEAN_CONTIGS_STAGE)) {
+			String fasta = getCleanContigsFasta(tempDir);
+			cleanContigsFasta = new File(fasta).length() > 0 ? fasta : null;
+		} else if (hasContigs) {
 			clock = new Clock("Align and clean contigs");
 			clock.start();
 			cleanContigsFasta = alignAndCleanContigs(contigFasta, tempDir, true);
+			completeStage(CLEAN_CONTIGS_STAGE);
 			clock.stopAndPrint();
 		}
 				
@@ -215,6 +270,13 @@ public class ReAligner {
 			
 			clock.stopAndPrint();
 			
+			if (checkpoint != null) {
+				// Reads not eligible for realignment were held aside during preprocessing
+				for (int i=0; i<inputSams.length; i++) {
+					appendSam(getUnmodifiedReadsBam(tempDirs[i]), writers[i]);
+				}
+			}
+			
 			for (SAMFileWriter writer : this.writers) {
 				writer.close();
 			}
@@ -237,16 +299,72 @@ public class ReAligner {
 			clock.stopAndPrint();
 		}
 		
+		if (checkpoint != null) {
+			checkpoint.close();
+		}
+		
+		if (kmerSizeCache != null) {
+			kmerSizeCache.close();
+		}
+		
 		System.err.println("Done.");
 	}
 	
-	private void preProcessReads(String inputSam, String tempDir, SAMFileWriter writer) throws InterruptedException {
+	private void preProcessReads(int sampleIdx) throws InterruptedException {
+		String inputSam = inputSams[sampleIdx];
+		String sampleTempDir = tempDirs[sampleIdx];
+		SAMFileWriter writer = writers[sampleIdx];
+		String stage = null;
+		
+		if (checkpoint != null) {
+			stage = "preprocess_" + (sampleIdx+1);
+			if (checkpoint.isStageComplete(stage)) {
+				log("Preprocessing already complete for: " + inputSam);
+				return;
+			}
+			
+			// The output BAM is rewritten on resume, so hold aside reads that bypass realignment.
+			writer = new SAMFileWriterFactory().makeBAMWriter(samHeaders[sampleIdx], false,
+					new File(getUnmodifiedReadsBam(sampleTempDir)), COMPRESSION_LEVEL);
+		}
+		
 		PreprocessReadsRunnable thread = new PreprocessReadsRunnable(threadManager, this,
-				inputSam, this.getTempReadFile(tempDir), c2r, writer);
+				inputSam, this.getTempReadFile(sampleTempDir), c2r, writer, stage);
 
 		threadManager.spawnThread(thread);
 	}
 	
+	void completePreprocessing(String stage, SAMFileWriter unmodifiedReadsWriter) throws IOException {
+		unmodifiedReadsWriter.close();
+		completeStage(stage);
+	}
+	
+	private boolean isStageComplete(String stage) {
+		return checkpoint != null && checkpoint.isStageComplete(stage);
+	}
+	
+	private void completeStage(String stage) throws IOException {
+		if (checkpoint != null) {
+			checkpoint.completeStage(stage);
+		}
+	}
+	
+	private void openContigWriters(String contigFasta, String svContigFasta) throws IOException {
+		boolean isAppend = false;
+		
+		if (checkpoint != null) {
+			// Discard output from regions that were in flight when the previous run stopped.
+			contigFastaLength = checkpoint.getContigFastaLength();
+			Checkpoint.truncate(contigFasta, contigFastaLength);
+			hasContigs = contigFastaLength > 0;
+			isAppend = true;
+		}
+		
+		contigWriter = new BufferedWriter(new FileWriter(contigFasta, isAppend));
+		// SV candidates are re-assembled in full upon resume, so SV contigs are never appended
+		svContigWriter = new BufferedWriter(new FileWriter(svContigFasta, false));
+	}
+	
 	private void processRna() {
 		/*
 		if (rnaSam != null) {
@@ -293,6 +411,9 @@ public class ReAligner {
 		System.err.println("rna output: " + rnaOutputSam);
 		System.err.println("paired end: " + isPairedEnd);
 		System.err.println("use intermediate bam: " + isOutputIntermediateBam);
+		System.err.println("checkpoint: " + isCheckpointEnabled);
+		System.err.println("kmer cache: " + kmerCacheFile);
+		System.err.println("adaptive regions: " + isAdaptiveRegions);
 		
 		String javaVersion = System.getProperty("java.version");
 		System.err.println("Java version: " + javaVersion);
@@ -370,6 +491,17 @@ public class ReAligner {
 	}
 	*/
 	
+	private void appendSam(String input, SAMFileWriter writer) {
+		SAMFileReader reader = new SAMFileReader(new File(input));
+		reader.setValidationStringency(ValidationStringency.SILENT);
+		
+		for (SAMRecord read : reader) {
+			writer.addAlignment(read);
+		}
+		
+		reader.close();
+	}
+	
 	private void copySam(String input, String output) {
 		
 		SAMFileWriterFactory writerFactory = new SAMFileWriterFactory();
@@ -420,40 +552,30 @@ public class ReAligner {
 		return numIndelBases;
 	}
 
-	private void discardMisalignedContigs(String inputSam, String outputSam) {
-		SAMFileReader reader = new SAMFileReader(new File(inputSam));
-		reader.setValidationStringency(ValidationStringency.SILENT);
+	/**
+	 * Returns true if the contig is aligned near the region it was assembled from.
+	 * The region is identified by the contig name.
+	 */
+	static boolean isAlignedWithinRegion(SAMRecord contig) {
+		String[] fields = contig.getReadName().split("_");
 		
-		SAMFileWriter outputReadsBam = new SAMFileWriterFactory().makeSAMOrBAMWriter(
-				samHeaders[0], true, new File(outputSam));
-
-		for (SAMRecord contig : reader) {
-			String[] fields = contig.getReadName().split("_");
-			
-			String regionChromosome = "";
-			
-			// Loop through fields in case the chromosome name contains
-			// an underscore.
-			for (int i=0; i<fields.length-3; i++) {
-				regionChromosome += fields[i];
-				if (i+1 < fields.length-3) {
-					regionChromosome += "_";
-				}
-			}
-			
-			int regionStart = Integer.parseInt(fields[fields.length-3]) - 1000;
-			int regionStop = Integer.parseInt(fields[fields.length-2]) + 1000;
-						
-			if ((contig.getReferenceName().equals(regionChromosome)) &&
-				(contig.getAlignmentStart() >= regionStart) &&
-				(contig.getAlignmentEnd() <= regionStop)) {
-			
-				outputReadsBam.addAlignment(contig);
+		String regionChromosome = "";
+		
+		// Loop through fields in case the chromosome name contains
+		// an underscore.
+		for (int i=0; i<fields.length-3; i++) {
+			regionChromosome += fields[i];
+			if (i+1 < fields.length-3) {
+				regionChromosome += "_";
 			}
 		}
 		
-		outputReadsBam.close();
-		reader.close();
+		int regionStart = Integer.parseInt(fields[fields.length-3]) - 1000;
+		int regionStop = Integer.parseInt(fields[fields.length-2]) + 1000;
+					
+		return (contig.getReferenceName().equals(regionChromosome)) &&
+			(contig.getAlignmentStart() >= regionStart) &&
+			(contig.getAlignmentEnd() <= regionStop);
 	}
 	
 	void alignStructuralVariantCandidates(String svContigFasta, String svContigsSam) throws InterruptedException, IOException {
@@ -462,48 +584,31 @@ public class ReAligner {
 	}
 	
 	private String alignAndCleanContigs(String contigFasta, String tempDir, boolean isTightAlignment) throws InterruptedException, IOException {
-		log("Aligning contigs");
+		// Contig alignments are filtered, combined, chopped and cleaned in memory as they stream from the aligner.
+		log("Aligning contigs and processing chimeric reads");
 		Aligner aligner = new Aligner(bwaIndex, numThreads);
-		String contigsSam = tempDir + "/" + "all_contigs.sam";
-		aligner.align(contigFasta, contigsSam, false);
-		
-		if (isTightAlignment) {
-			log("Discarding contigs aligned outside of region");
-			String allInRegionSam = tempDir + "/" + "all_contigs_in_region.sam";
-			discardMisalignedContigs(contigsSam, allInRegionSam);
-			contigsSam = allInRegionSam;
-		}
-		
-		log("Processing chimeric reads");
-		CombineChimera3 cc = new CombineChimera3();
-		String contigsWithChim = tempDir + "/" + "all_contigs_chim.bam";
 		int slack = this.readLength / 3;
-		cc.combine(contigsSam, contigsWithChim, isTightAlignment ? slack : 0, c2r);
+		ContigAlignerStdoutHandler stdoutHandler = new ContigAlignerStdoutHandler(isTightAlignment, isTightAlignment ? slack : 0, c2r);
+		aligner.align(contigFasta, stdoutHandler);
+		
+		List<SAMRecord> contigs = stdoutHandler.getContigs();
 		
 		if (isTightAlignment) {
-			// Chop and clop...
-			log("Sorting and indexing for chopper clopper.");
-			String contigsWithChimSorted = tempDir + "/" + "all_contigs_chim_sorted.bam";
-			sortBam(contigsWithChim, contigsWithChimSorted, "coordinate");
-			indexBam(contigsWithChimSorted);
-			
 			log("Chopper clopper start.");
 			ContigChopper chopper = new ContigChopper();
 			chopper.setC2R(c2r);
 			chopper.setReadLength(this.readLength);
 			
-			String contigsWithChimChopped = tempDir + "/" + "all_contigs_chim_chopped.bam";
-			chopper.chopClopDrop(this.regions, contigsWithChimSorted, contigsWithChimChopped);
+			contigs = chopper.chopClopDrop(this.regions, contigs);
 			
 			log("Chopper clopper done.");
-			contigsWithChim = contigsWithChimChopped;
 			
 			chopper = null;
 		}
 		
 		log("Cleaning contigs");
-		String cleanContigsFasta = tempDir + "/" + "clean_contigs.fasta";
-		boolean hasCleanContigs = cleanAndOutputContigs(contigsWithChim, cleanContigsFasta, isTightAlignment);
+		String cleanContigsFasta = getCleanContigsFasta(tempDir);
+		boolean hasCleanContigs = cleanAndOutputContigs(contigs, cleanContigsFasta, isTightAlignment);
 		
 		return hasCleanContigs ? cleanContigsFasta : null;
 	}
@@ -543,6 +648,16 @@ public class ReAligner {
 		}
 	}
 	
+	// Dispatch the most expensive regions first to avoid a long tail of stragglers
+	private List<Feature> getRegionsByDescendingCost() throws IOException {
+		RegionCostEstimator estimator = new RegionCostEstimator(readLength);
+		for (String inputSam : inputSams) {
+			estimator.addBam(inputSam);
+		}
+		
+		return estimator.sortByDescendingCost(regions, regionCosts);
+	}
+	
 	private void spawnRegionThread(Feature region, String inputSam) throws InterruptedException {
 		ReAlignerRunnable thread = new ReAlignerRunnable(threadManager, this, region);
 		threadManager.spawnThread(thread);
@@ -564,9 +679,78 @@ public class ReAligner {
 		return shouldInclude;
 	}
 	
-	private synchronized void appendContigs(String contigs) throws IOException {
-		contigWriter.write(contigs);
-		hasContigs = true;
+	// All contigs for a region are written at once so that checkpointed fasta lengths fall on region boundaries.
+	private synchronized void appendContigs(Feature region, String contigs, List<BreakpointCandidate> svCandidates) throws IOException {
+		if (!contigs.isEmpty()) {
+			contigWriter.write(contigs);
+			contigFastaLength += contigs.length();
+			hasContigs = true;
+		}
+		
+		if (svCandidateCollector != null && !svCandidates.isEmpty()) {
+			svCandidateCollector.add(region, svCandidates);
+		}
+		
+		if (checkpoint != null) {
+			contigWriter.flush();
+			checkpoint.completeRegion(region, contigFastaLength);
+		}
+	}
+	
+	// SV contigs are not checkpointed.  All SV candidates are re-assembled upon resume.
+	private synchronized void appendSvContigs(String svContigs) throws IOException {
+		svContigWriter.write(svContigs);
+	}
+	
+	private List<String> getAssemblyBams() {
+		List<String> bams = new ArrayList<String>(Arrays.asList(this.inputSams));
+		if (shouldReprocessUnaligned) {
+			bams.add(unalignedRegionSam);
+		}
+		return bams;
+	}
+	
+	/**
+	 *  Assembles each distinct SV candidate collected during regional assembly along with its originating region.
+	 */
+	private void assembleSvCandidates() throws InterruptedException, IOException {
+		List<SVCandidateCollector.SVCandidate> candidates = svCandidateCollector.getDistinctCandidates();
+		
+		ThreadManager svThreadManager = new ThreadManager(numThreads);
+		
+		for (final SVCandidateCollector.SVCandidate candidate : candidates) {
+			svThreadManager.spawnThread(new AbraRunnable(svThreadManager) {
+				@Override
+				public void go() throws Exception {
+					assembleSvCandidate(candidate.region, candidate.breakpoint);
+				}
+			});
+		}
+		
+		svThreadManager.waitForAllThreadsToComplete();
+		svCandidateCollector.close();
+	}
+	
+	private void assembleSvCandidate(Feature region, BreakpointCandidate svCandidate) throws Exception {
+		if (isDebug) {
+			System.err.println("SV: " + region.getDescriptor() + "-->" + svCandidate.getRegion().getDescriptor());
+		}
+		
+		List<Feature> svRegions = new ArrayList<Feature>();
+		svRegions.add(region);
+		Feature svCandidateRegion = new Feature(svCandidate.getRegion().getSeqname(), svCandidate.getRegion().getStart(), 
+				Math.min(svCandidate.getRegion().getEnd(), c2r.getReferenceLength(svCandidate.getRegion().getSeqname())-1));
+		
+		svRegions.add(svCandidateRegion);
+		
+		String contigsFasta = tempDir + "/" + region.getDescriptor() + "_contigs.fasta";
+		
+		NativeAssembler svAssem = (NativeAssembler) newAssembler(region);
+		String svContigs = svAssem.assembleContigs(getAssemblyBams(), contigsFasta, tempDir, svRegions, region.getDescriptor() + "__" + svCandidate.getRegion().getDescriptor() + "_" + svCandidate.getSpanningReadPairCount(), true, this, c2r);
+		
+		if (!svContigs.equals("<ERROR>") && !svContigs.equals("<REPEAT>") && !svContigs.isEmpty()) {
+			appendSvContigs(svContigs);
+		}
 	}
 	
 	public void processRegion(Feature region) throws Exception {
@@ -574,13 +758,15 @@ public class ReAligner {
 			log("Processing region: " + region.getDescriptor());
 		}
 		
+		long start = System.currentTimeMillis();
+		
+		StringBuffer regionContigs = new StringBuffer();
+		List<BreakpointCandidate> svCandidates = Collections.emptyList();
+		
 		try {
 			String contigsFasta = tempDir + "/" + region.getDescriptor() + "_contigs.fasta";
 			
-			List<String> bams = new ArrayList<String>(Arrays.asList(this.inputSams));
-			if (shouldReprocessUnaligned) {
-				bams.add(unalignedRegionSam);
-			}
+			List<String> bams = getAssemblyBams();
 			
 			// Assemble contigs
 			if (region.getKmer() > this.readLength-15) {
@@ -592,28 +778,10 @@ public class ReAligner {
 				String contigs = assem.assembleContigs(bams, contigsFasta, tempDir, regions, region.getDescriptor(), true, this, c2r);
 				if (!contigs.equals("<ERROR>") && !contigs.equals("<REPEAT>") && !contigs.isEmpty()) {
 					
-					appendContigs(contigs);
-				
-					List<BreakpointCandidate> svCandidates = assem.getSvCandidateRegions();
-					for (BreakpointCandidate svCandidate : svCandidates) {
-						
-						if (isDebug) {
-							System.err.println("SV: " + region.getDescriptor() + "-->" + svCandidate.getRegion().getDescriptor());
-						}
-						List<Feature> svRegions = new ArrayList<Feature>();
-						svRegions.add(region);
-						Feature svCandidateRegion = new Feature(svCandidate.getRegion().getSeqname(), svCandidate.getRegion().getStart(), 
-								Math.min(svCandidate.getRegion().getEnd(), c2r.getReferenceLength(svCandidate.getRegion().getSeqname())-1));
-						
-						svRegions.add(svCandidateRegion);
-						
-						NativeAssembler svAssem = (NativeAssembler) newAssembler(region);
-						String svContigs = svAssem.assembleContigs(bams, contigsFasta, tempDir, svRegions, region.getDescriptor() + "__" + svCandidate.getRegion().getDescriptor() + "_" + svCandidate.getSpanningReadPairCount(), true, this, c2r);
-						
-						if (!svContigs.equals("<ERROR>") && !svContigs.equals("<REPEAT>") && !svContigs.isEmpty()) {
-							svContigWriter.write(svContigs);
-						}
-					}
+					regionContigs.append(contigs);
+					
+					// SV candidates are assembled once all regions are complete
+					svCandidates = assem.getSvCandidateRegions();
 				}
 				
 				if (assem.isCycleExceedingThresholdDetected() && (bams.size() > 1) && this.localRepeatWriter != null) {
@@ -676,11 +844,18 @@ public class ReAligner {
 					}
 				}
 			}
+			
+			appendContigs(region, regionContigs.toString(), svCandidates);
 		}
 		catch (Exception e) {
 			e.printStackTrace();
 			throw e;
 		}
+		
+		if (isDebug) {
+			long elapsed = System.currentTimeMillis() - start;
+			System.err.println("Region_cost\tRegion:\t" + region.getDescriptor() + "\tPredicted\t" + regionCosts.get(region) + "\tActual_msecs\t" + elapsed);
+		}
 	}
 		
 	private boolean isAnyElementDifferent(List<String> elems) {
@@ -708,8 +883,13 @@ public class ReAligner {
 		return regions;
 	}
 		
-	private void loadRegions() throws IOException {
-		this.regions = getRegions(regionsBed, readLength, hasPresetKmers);
+	private void loadRegions() throws IOException, InterruptedException {
+		if (isAdaptiveRegions && !hasPresetKmers) {
+			List<Feature> targets = RegionLoader.collapseRegions(new RegionLoader().load(regionsBed, false), readLength);
+			this.regions = new AdaptiveRegionSplitter(readLength, numThreads).split(targets, inputSams);
+		} else {
+			this.regions = getRegions(regionsBed, readLength, hasPresetKmers);
+		}
 		
 		System.err.println("Num regions: " + regions.size());
 		if (isDebug) {
@@ -804,18 +984,15 @@ public class ReAligner {
 		log("Done Preprocessing: " + bam);
 	}
 			
-	private boolean cleanAndOutputContigs(String contigsSam, String cleanContigsFasta, boolean shouldRemoveSoftClips) throws IOException {
+	private boolean cleanAndOutputContigs(Iterable<SAMRecord> contigs, String cleanContigsFasta, boolean shouldRemoveSoftClips) throws IOException {
 		
 		boolean hasCleanContigs = false;
 		
 		BufferedWriter writer = new BufferedWriter(new FileWriter(cleanContigsFasta, false));
 		
-		SAMFileReader contigReader = new SAMFileReader(new File(contigsSam));
-		contigReader.setValidationStringency(ValidationStringency.SILENT);
-		
 		int contigCount = 0;
 		
-		for (SAMRecord contigRead : contigReader) {
+		for (SAMRecord contigRead : contigs) {
 			if (contigRead.getMappingQuality() >= this.minContigMapq) {
 				
 				SAMRecordUtils.removeSoftClips(contigRead);
@@ -884,13 +1061,20 @@ public class ReAligner {
 				}
 			}
 		}
-		contigReader.close();
 		
 		writer.close();
 		
 		return hasCleanContigs;
 	}
 	
+	private String getCleanContigsFasta(String tempDir) {
+		return tempDir + "/" + "clean_contigs.fasta";
+	}
+	
+	private String getUnmodifiedReadsBam(String tempDir) {
+		return tempDir + "/" + "unmodified_reads.bam";
+	}
+	
 	private String getPreprocessedBam(String tempDir) {
 		return tempDir + "/" + "original_reads.bam";
 	}
@@ -908,11 +1092,11 @@ public class ReAligner {
 	}
 
 	SVReadCounter alignToSVContigs(String tempDir, String alignedToContigSam,
-			String contigFasta, SAMFileWriter writer, SAMFileHeader header) throws IOException, InterruptedException {
+			String contigFasta, SVReadCounter.BreakpointIndex breakpoints, int alignerThreads) throws IOException, InterruptedException {
 		
-		SVAlignerStdoutHandler stdoutHandler = new SVAlignerStdoutHandler(readLength, header);
+		SVAlignerStdoutHandler stdoutHandler = new SVAlignerStdoutHandler(readLength, breakpoints);
 
-		alignToContigs(tempDir, alignedToContigSam, contigFasta, writer, header, stdoutHandler);
+		alignToContigs(tempDir, alignedToContigSam, contigFasta, stdoutHandler, alignerThreads);
 		
 		return stdoutHandler.getCounter();
 	}
@@ -927,15 +1111,15 @@ public class ReAligner {
 		
 		AlignerStdoutHandler stdoutHandler = new AlignerStdoutHandler(readQueueRunnable);
 
-		alignToContigs(tempDir, alignedToContigSam, contigFasta, writer, header, stdoutHandler);
+		alignToContigs(tempDir, alignedToContigSam, contigFasta, stdoutHandler, numThreads);
 	}
 	
 	void alignToContigs(String tempDir, String alignedToContigSam,
-			String contigFasta, SAMFileWriter writer, SAMFileHeader header, StdoutHandler stdoutHandler) throws IOException, InterruptedException {
+			String contigFasta, StdoutHandler stdoutHandler, int alignerThreads) throws IOException, InterruptedException {
 		
 		String bam = getTempReadFile(tempDir);
 		
-		Aligner contigAligner = new Aligner(contigFasta, numThreads);
+		Aligner contigAligner = new Aligner(contigFasta, alignerThreads);
 		
 		// Align region fastq against assembled contigs
 		contigAligner.shortAlign(bam, alignedToContigSam, stdoutHandler, isOutputIntermediateBam);
@@ -1010,6 +1194,10 @@ public class ReAligner {
 		return regions;
 	}
 	
+	KmerSizeCache getKmerSizeCache() {
+		return kmerSizeCache;
+	}
+	
 	int[] getKmers(Feature region) {
 		int[] kmerSizes = null;
 		
@@ -1097,20 +1285,35 @@ public class ReAligner {
 		
 		
 		File workingDir = new File(tempDir);
-		if (workingDir.exists()) {
-			if (!workingDir.delete()) {
-				throw new IllegalStateException("Unable to delete: " + tempDir);
+		
+		if (isCheckpointEnabled && workingDir.exists()) {
+			log("Attempting to resume from working dir: " + tempDir);
+		} else {
+			if (workingDir.exists()) {
+				if (!workingDir.delete()) {
+					throw new IllegalStateException("Unable to delete: " + tempDir);
+				}
+			}
+	
+			if (!workingDir.mkdir()) {
+				throw new IllegalStateException("Unable to create: " + tempDir);
+			}
+			
+			File unalignedTempDir = new File(tempDir + "/unaligned");
+			
+			if (!unalignedTempDir.mkdir()) {
+				throw new IllegalStateException("Unable to create: " + tempDir + "/unaligned");
 			}
-		}
-
-		if (!workingDir.mkdir()) {
-			throw new IllegalStateException("Unable to create: " + tempDir);
 		}
 		
-		File unalignedTempDir = new File(tempDir + "/unaligned");
+		if (isCheckpointEnabled) {
+			checkpoint = new Checkpoint(tempDir);
+			checkpoint.load();
+		}
 		
-		if (!unalignedTempDir.mkdir()) {
-			throw new IllegalStateException("Unable to create: " + tempDir + "/unaligned");
+		if (kmerCacheFile != null) {
+			kmerSizeCache = new KmerSizeCache(kmerCacheFile);
+			kmerSizeCache.load();
 		}
 		
 		new NativeLibraryLoader().load(tempDir);
@@ -1165,6 +1368,10 @@ public class ReAligner {
 		return this.c2r;
 	}
 	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	
 	public int getMinMappingQuality() {
 		return this.minMappingQuality;
 	}
@@ -1196,7 +1403,17 @@ public class ReAligner {
 		ReAlignerOptions options = new ReAlignerOptions();
 		options.parseOptions(args);
 
-		if (options.isValid()) {
+		if (options.isValid() && (options.getNumShards() > 1 || !options.getShardStep().equals(ShardedReAligner.STEP_ALL))) {
+			
+			long s = System.currentTimeMillis();
+			
+			new ShardedReAligner(args, options).run();
+			
+			long e = System.currentTimeMillis();
+
+			System.err.println("Elapsed seconds: " + (e - s) / 1000);
+			
+		} else if (options.isValid()) {
 
 			AssemblerSettings assemblerSettings = new AssemblerSettings();
 
@@ -1234,6 +1451,9 @@ public class ReAligner {
 			realigner.hasPresetKmers = options.hasPresetKmers();
 			realigner.isOutputIntermediateBam = options.useIntermediateBam();
 			realigner.isDebug = options.isDebug();
+			realigner.isCheckpointEnabled = options.isCheckpointEnabled();
+			realigner.kmerCacheFile = options.getKmerCacheFile();
+			realigner.isAdaptiveRegions = options.isAdaptiveRegions();
 
 			long s = System.currentTimeMillis();
 			
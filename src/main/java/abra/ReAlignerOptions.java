@@ -1,6 +1,9 @@
 /* Copyright 2013 University of North Carolina at Chapel Hill.  All rights reserved. */
 package abra;
 
+import java.util.Arrays;
+import java.util.List;
+
 import joptsimple.OptionParser;
 
 /**
@@ -40,6 +43,12 @@ public class ReAlignerOptions extends Options {
 	private static final String USE_INTERMEDIATE_BAM = "ib";
 	private static final String NO_DEBUG = "no-debug";
 	private static final String MAX_NODES = "maxn";
+	private static final String CHECKPOINT = "checkpoint";
+	private static final String KMER_CACHE = "kmer-cache";
+	private static final String ADAPTIVE_REGIONS = "adaptive-regions";
+	private static final String NUM_SHARDS = "shards";
+	private static final String NUM_SHARD_PROCESSES = "shard-procs";
+	private static final String SHARD_STEP = "shard-step";
 	
 	private OptionParser parser;
 	private boolean isValid;
@@ -54,7 +63,7 @@ public class ReAlignerOptions extends Options {
             parser.accepts(BWA_INDEX, "BWA index prefix.  Use this only if the bwa index prefix does not match the ref option.").withRequiredArg().ofType(String.class);
             parser.accepts(TARGET_REGIONS, "BED file containing target regions").withRequiredArg().ofType(String.class);
             parser.accepts(TARGET_REGIONS_WITH_KMERS, "BED-like file containing target regions with per region kmer sizes in 4th column").withRequiredArg().ofType(String.class);
-            parser.accepts(WORKING_DIR, "Working directory for intermediate output.  Must not already exist").withRequiredArg().ofType(String.class);
+            parser.accepts(WORKING_DIR, "Working directory for intermediate output.  Must not already exist unless resuming from a checkpoint").withRequiredArg().ofType(String.class);
             parser.accepts(KMER_SIZE, "Optional assembly kmer size(delimit with commas if multiple sizes specified)").withOptionalArg().ofType(String.class);
             parser.accepts(MIN_NODE_FREQUENCY, "Assembly minimum node frequency").withRequiredArg().ofType(Integer.class).defaultsTo(2);
             parser.accepts(MIN_UNALIGNED_NODE_FREQUENCY, "Assembly minimum unaligned node frequency").withOptionalArg().ofType(Integer.class).defaultsTo(2);
@@ -78,6 +87,12 @@ public class ReAlignerOptions extends Options {
             parser.accepts(USE_INTERMEDIATE_BAM, "If specified, write intermediate data to BAM file using the intel deflator when available.  Use this to speed up processing.");
             parser.accepts(NO_DEBUG, "Throttle down debug logging");
             parser.accepts(MAX_NODES, "Maximum pre-pruned nodes in regional assembly").withOptionalArg().ofType(Integer.class).defaultsTo(9000);
+            parser.accepts(NUM_SHARDS, "Partition targets and reads by chromosome into the specified number of shards, each processed by a separate ABRA process").withRequiredArg().ofType(Integer.class).defaultsTo(1);
+            parser.accepts(NUM_SHARD_PROCESSES, "Maximum number of concurrent local shard processes.  Threads are divided evenly across processes.  Defaults to number of shards").withRequiredArg().ofType(Integer.class);
+            parser.accepts(SHARD_STEP, "Sharding step to run.  One of: all, split, merge.  split writes per shard commands to the working directory for external execution").withRequiredArg().ofType(String.class).defaultsTo(ShardedReAligner.STEP_ALL);
+            parser.accepts(CHECKPOINT, "Record stage and region level checkpoints in the working directory.  If the working directory exists, resume from the last completed stage / region.");
+            parser.accepts(KMER_CACHE, "File caching computed region kmer sizes across runs.  May be shared by runs using the same targets and read length").withRequiredArg().ofType(String.class);
+            parser.accepts(ADAPTIVE_REGIONS, "Size assembly regions using read depth and a scan for assembly candidate reads.  Requires indexed input BAMs");
     	}
     	
     	return parser;
@@ -126,6 +141,22 @@ public class ReAlignerOptions extends Options {
 			System.err.println("Num threads must be greater than zero.");
 		}
 		
+		if ((Integer) getOptions().valueOf(NUM_SHARDS) < 1) {
+			isValid = false;
+			System.err.println("Num shards must be greater than zero.");
+		}
+		
+		if (getOptions().hasArgument(NUM_SHARD_PROCESSES) && (Integer) getOptions().valueOf(NUM_SHARD_PROCESSES) < 1) {
+			isValid = false;
+			System.err.println("Num shard processes must be greater than zero.");
+		}
+		
+		String step = (String) getOptions().valueOf(SHARD_STEP);
+		if (!step.equals(ShardedReAligner.STEP_ALL) && !step.equals(ShardedReAligner.STEP_SPLIT) && !step.equals(ShardedReAligner.STEP_MERGE)) {
+			isValid = false;
+			System.err.println("Invalid shard step: " + step);
+		}
+		
         if (!isValid) {
             printHelp();
         }
@@ -295,6 +326,37 @@ public class ReAlignerOptions extends Options {
 		return isValid;
 	}
 	
+	public int getNumShards() {
+		return (Integer) getOptions().valueOf(NUM_SHARDS);
+	}
+	
+	public int getNumShardProcesses() {
+		return getOptions().hasArgument(NUM_SHARD_PROCESSES) ? (Integer) getOptions().valueOf(NUM_SHARD_PROCESSES) : getNumShards();
+	}
+	
+	public String getShardStep() {
+		return (String) getOptions().valueOf(SHARD_STEP);
+	}
+	
+	/**
+	 * Options specific to the sharding driver that are not passed on to individual shards.
+	 */
+	public List<String> getShardingOptions() {
+		return Arrays.asList(NUM_SHARDS, NUM_SHARD_PROCESSES, SHARD_STEP);
+	}
+	
+	public boolean isCheckpointEnabled() {
+		return getOptions().has(CHECKPOINT);
+	}
+	
+	public String getKmerCacheFile() {
+		return (String) getOptions().valueOf(KMER_CACHE);
+	}
+	
+	public boolean isAdaptiveRegions() {
+		return getOptions().has(ADAPTIVE_REGIONS);
+	}
+	
 	public int getMaxNodes() {
 		return (Integer) getOptions().valueOf(MAX_NODES);
 	}
@@ -0,0 +1,215 @@
+/* Copyright 2013 University of North Carolina at Chapel Hill.  All rights reserved. */
+package abra;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import htsjdk.samtools.SAMRecord;
+
+/**
+ * Reservoir sample of reads for a single sample in the native assembler input format.
+ *
+ * Only strand, bases and phred33 qualities are retained for each sampled read.  These are packed
+ * into a single byte arena with one fixed length slot per read, padded to the read length.  Per read
+ * assembly trigger and SV candidate information is computed by the caller as reads are sampled.
+ *
+ * Reads are de-duplicated using 64 bit hashes of the read name and pair number.
+ *
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class ReadReservoir {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private Random random = new Random(1);
+	private int maxReads;
+	private int readLength;
+	private int slotLength;
+	private int totalReads = 0;
+	private int size = 0;
+
+	private byte[] arena;
+	private boolean[] isTriggerCandidate;
+	private long[] svMates;
+
+	private ReadIdSet readIds = new ReadIdSet();
+
+	public ReadReservoir(int maxReads, int readLength) {
+		this.maxReads = maxReads;
+		this.readLength = readLength;
+		// strand + bases + quals
+		this.slotLength = 1 + 2 * readLength;
+
+		int capacity = Math.max(Math.min(maxReads, INITIAL_CAPACITY), 1);
+		arena = new byte[capacity * slotLength];
+		isTriggerCandidate = new boolean[capacity];
+		svMates = new long[capacity];
+	}
+
+	/**
+	 * Returns true if the read has not previously been seen.  The read is recorded as seen.
+	 */
+	public boolean markSeen(SAMRecord read) {
+		return readIds.add(getIdHash(read));
+	}
+
+	/**
+	 * Counts the read and returns the slot in which it is to be stored, or -1 if the read is not sampled.
+	 */
+	public int nextSlot() {
+		totalReads += 1;
+		if (size < maxReads) {
+			ensureCapacity(size + 1);
+			return size++;
+		} else {
+			int slot = random.nextInt(totalReads);
+			return slot < maxReads ? slot : -1;
+		}
+	}
+
+	/**
+	 * Stores the read in the specified slot, replacing any read previously stored there.
+	 * svMate is the packed mate position of an SV candidate or -1 if the read is not an SV candidate.
+	 */
+	public void set(int slot, SAMRecord read, boolean isTriggerCandidate, long svMate) {
+		int offset = slot * slotLength;
+		arena[offset++] = (byte) (read.getReadNegativeStrandFlag() ? '1' : '0');
+
+		byte[] bases = read.getReadBases();
+		int baseCount = Math.min(bases.length, readLength);
+		System.arraycopy(bases, 0, arena, offset, baseCount);
+		Arrays.fill(arena, offset + baseCount, offset + readLength, (byte) 'N');
+		offset += readLength;
+
+		byte[] quals = read.getBaseQualities();
+		int qualCount = Math.min(quals.length, readLength);
+		for (int i=0; i<qualCount; i++) {
+			arena[offset + i] = (byte) (quals[i] + '!');
+		}
+		Arrays.fill(arena, offset + qualCount, offset + readLength, (byte) '!');
+
+		this.isTriggerCandidate[slot] = isTriggerCandidate;
+		this.svMates[slot] = svMate;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getTotalReadCount() {
+		return totalReads;
+	}
+
+	public int getTriggerCandidateCount() {
+		int count = 0;
+		for (int i=0; i<size; i++) {
+			if (isTriggerCandidate[i]) {
+				count += 1;
+			}
+		}
+		return count;
+	}
+
+	public long getSvMate(int slot) {
+		return svMates[slot];
+	}
+
+	/**
+	 * Appends all sampled reads to the assembler input.
+	 */
+	public void appendTo(StringBuilder buf, char sampleId) {
+		for (int i=0; i<size; i++) {
+			buf.append(sampleId);
+			int offset = i * slotLength;
+			for (int j=0; j<slotLength; j++) {
+				buf.append((char) arena[offset + j]);
+			}
+		}
+	}
+
+	/**
+	 * Releases sampled reads.
+	 */
+	public void clear() {
+		arena = null;
+		size = 0;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > isTriggerCandidate.length) {
+			int newCapacity = (int) Math.min((long) isTriggerCandidate.length * 2, maxReads);
+			arena = Arrays.copyOf(arena, newCapacity * slotLength);
+			isTriggerCandidate = Arrays.copyOf(isTriggerCandidate, newCapacity);
+			svMates = Arrays.copyOf(svMates, newCapacity);
+		}
+	}
+
+	// FNV-1a hash of the read name distinguishing second of pair
+	static long getIdHash(SAMRecord read) {
+		String name = read.getReadName();
+		long hash = 0xcbf29ce484222325L;
+		for (int i=0; i<name.length(); i++) {
+			hash ^= name.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+
+		if (read.getReadPairedFlag() && read.getSecondOfPairFlag()) {
+			hash ^= '2';
+			hash *= 0x100000001b3L;
+		}
+
+		return hash;
+	}
+
+	/**
+	 * Open addressing set of read id hashes.
+	 */
+	static class ReadIdSet {
+		// 0 is reserved as the empty marker
+		private static final long EMPTY = 0;
+
+		private long[] hashes = new long[256];
+		private int count = 0;
+		private boolean hasZero = false;
+
+		boolean add(long hash) {
+			if (hash == EMPTY) {
+				boolean isNew = !hasZero;
+				hasZero = true;
+				return isNew;
+			}
+
+			if ((count + 1) * 2 > hashes.length) {
+				resize();
+			}
+
+			int mask = hashes.length - 1;
+			int idx = (int) (hash ^ (hash >>> 32)) & mask;
+			while (hashes[idx] != EMPTY) {
+				if (hashes[idx] == hash) {
+					return false;
+				}
+				idx = (idx + 1) & mask;
+			}
+
+			hashes[idx] = hash;
+			count += 1;
+			return true;
+		}
+
+		private void resize() {
+			long[] old = hashes;
+			hashes = new long[old.length * 2];
+			int mask = hashes.length - 1;
+			for (long hash : old) {
+				if (hash != EMPTY) {
+					int idx = (int) (hash ^ (hash >>> 32)) & mask;
+					while (hashes[idx] != EMPTY) {
+						idx = (idx + 1) & mask;
+					}
+					hashes[idx] = hash;
+				}
+			}
+		}
+	}
+}
@@ -1,17 +1,20 @@
+/* Copyright 2013 University of North Carolina at Chapel Hill.  All rights reserved. */
 package abra;
 
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Produces BED files indicating genomic windows that lend themselves to assembly.
+ *
+ * Windows are evaluated in fixed size chunks which are pulled by worker threads as they become
+ * available.  Chunk results are written in reference order as soon as all preceding chunks complete,
+ * so overlapping windows of the same type are merged without retaining regions in memory.
  *  
  * @author Lisle E. Mose (lmose at unc dot edu)
  */
@@ -23,13 +26,23 @@ public class ReferenceEvaluator {
 	private String in;
 	private String out;
 	private String qualities;
-	private BufferedWriter include;
-	private BufferedWriter exclude;
-	private Set<Feature> includeRegions;
-	private Set<Feature> excludeRegions;
-	private ThreadManager threadManager;
-	
+	private int numThreads;
+	private CompareToReference2 c2r;
+
+	private List<Chunk> chunks = new ArrayList<Chunk>();
+	private AtomicInteger nextChunk = new AtomicInteger(0);
+	private byte[][] results;
+
+	private AtomicLong uniqueCount = new AtomicLong(0);
+	private AtomicLong assembledCount = new AtomicLong(0);
+
 	private static final int MAX_NODES = 9000;
+
+	// Number of windows evaluated per unit of work
+	static final int WINDOWS_PER_CHUNK = 512;
+
+	private static final byte EXCLUDE = 1;
+	private static final byte INCLUDE = 2;
 	
 	public ReferenceEvaluator(int readLength, String reference, int[] kmers, String in, String out, int numThreads) {
 		this.readLength = readLength;
@@ -37,120 +50,300 @@ public class ReferenceEvaluator {
 		this.kmers = kmers;
 		this.in = in;
 		this.out = out;
-		
-		this.qualities = new String();
+		this.numThreads = numThreads;
+
+		StringBuffer quals = new StringBuffer(readLength);
 		for (int i=0; i<readLength; i++) {
-			qualities += "H";
+			quals.append('H');
 		}
-		
-		this.threadManager = new ThreadManager(numThreads);
+		this.qualities = quals.toString();
 	}
 	
 	public void run() throws IOException, InterruptedException {
 		new NativeLibraryLoader().load(".");
-		CompareToReference2 c2r = new CompareToReference2();
+		c2r = new CompareToReference2();
 		c2r.init8bit(reference);
-		
-		include = new BufferedWriter(new FileWriter(in, false));
-		exclude = new BufferedWriter(new FileWriter(out, false));
-		
+
 		for (String chr : c2r.getChromosomes()) {
-			includeRegions = Collections.synchronizedSortedSet(new TreeSet<Feature>(new RegionComparator()));
-			excludeRegions = Collections.synchronizedSortedSet(new TreeSet<Feature>(new RegionComparator()));
-			int i = 0;
-			int chromosomeLength = c2r.getReferenceLength(chr);
-			while (i < chromosomeLength - ReAligner.MAX_REGION_LENGTH) {
-				int regionStart = i;
-				int regionStop = i + ReAligner.MAX_REGION_LENGTH;
-				int start = Math.max(regionStart - readLength, 0);
-				int stop = Math.min(regionStop + readLength, chromosomeLength-1); 
-				String regionBases = c2r.getSequence(chr, start+1, stop-start);
-				Feature region = new Feature(chr, regionStart, regionStop);
-				
-				//TODO: Handle other ambiguous bases
-				if (!regionBases.contains("N")) {
-					threadManager.spawnThread(new EvalRunnable(threadManager, this, region, regionBases));
+			int numWindows = getNumWindows(c2r.getReferenceLength(chr));
+			for (int i=0; i<numWindows; i+=WINDOWS_PER_CHUNK) {
+				chunks.add(new Chunk(chr, i, Math.min(WINDOWS_PER_CHUNK, numWindows-i)));
+			}
+		}
+
+		System.err.println("Evaluating " + chunks.size() + " chunks");
+
+		results = new byte[chunks.size()][];
+
+		ThreadManager threadManager = new ThreadManager(numThreads);
+		for (int i=0; i<numThreads; i++) {
+			threadManager.spawnThread(new EvalRunnable(threadManager, this));
+		}
+
+		BufferedWriter include = new BufferedWriter(new FileWriter(in, false));
+		BufferedWriter exclude = new BufferedWriter(new FileWriter(out, false));
+
+		RegionWriter includeWriter = new RegionWriter(include);
+		RegionWriter excludeWriter = new RegionWriter(exclude);
+
+		String currChr = null;
+
+		for (int i=0; i<chunks.size(); i++) {
+			Chunk chunk = chunks.get(i);
+			byte[] chunkResults = waitForResults(i);
+
+			if (!chunk.chr.equals(currChr)) {
+				includeWriter.flush();
+				excludeWriter.flush();
+				currChr = chunk.chr;
+			}
+
+			for (int j=0; j<chunkResults.length; j++) {
+				int regionStart = (chunk.firstWindow + j) * ReAligner.REGION_OVERLAP;
+				int regionStop = regionStart + ReAligner.MAX_REGION_LENGTH;
+
+				//TODO: Because assembly regions are overlapped, there is overlap between final include/exclude output
+				if (chunkResults[j] == INCLUDE) {
+					includeWriter.add(chunk.chr, regionStart, regionStop);
 				} else {
-					
-					excludeRegions.add(region);
+					excludeWriter.add(chunk.chr, regionStart, regionStop);
 				}
-				
-				i += ReAligner.REGION_OVERLAP;
 			}
-			
-			threadManager.waitForAllThreadsToComplete();
-			
-			//TODO: Because assembly regions are overlapped, there is overlap between final include/exclude output
-			outputRegions(include, includeRegions);
-			outputRegions(exclude, excludeRegions);
 		}
+
+		includeWriter.flush();
+		excludeWriter.flush();
+
+		threadManager.waitForAllThreadsToComplete();
 		
 		include.close();
 		exclude.close();
 		
+		System.err.println("Unique windows: " + uniqueCount.get() + ", assembled windows: " + assembledCount.get());
 		System.err.println("Done.");
 	}
 	
-	private void evalRegion(Feature region, String regionBases) {
-		boolean shouldInclude = false;
-		NativeAssembler assembler = new NativeAssembler();
-		StringBuffer readBuf = new StringBuffer((ReAligner.MAX_REGION_LENGTH + 2*readLength) * readLength);
-		for (int j=0; j<=regionBases.length() - readLength; j++) {
-			readBuf.append("0");  // forward strand only
-			String read = regionBases.substring(j, j+readLength);						
-			readBuf.append(read);
-			readBuf.append(qualities);
+	static int getNumWindows(int chromosomeLength) {
+		int span = chromosomeLength - ReAligner.MAX_REGION_LENGTH;
+		return span > 0 ? (span + ReAligner.REGION_OVERLAP - 1) / ReAligner.REGION_OVERLAP : 0;
+	}
+
+	private synchronized byte[] waitForResults(int chunkIdx) throws InterruptedException {
+		while (results[chunkIdx] == null) {
+			wait();
 		}
-		
-		String contig = assembler.nativeAssemble(readBuf.toString(), region.getDescriptor(), "eval", 0, 1, (ReAligner.MAX_REGION_LENGTH + 2*readLength)*2, readLength, kmers, 1, 0, .01, 1, MAX_NODES);
-		int basesIdx = contig.indexOf('\n') + 1;
-		if (basesIdx < contig.length()) {
-			String contigBases = contig.substring(basesIdx, contig.length()-1);
-			if (regionBases.equals(contigBases)) {
-				shouldInclude = true;
+
+		byte[] chunkResults = results[chunkIdx];
+		results[chunkIdx] = null;
+		return chunkResults;
+	}
+
+	private synchronized void setResults(int chunkIdx, byte[] chunkResults) {
+		results[chunkIdx] = chunkResults;
+		notifyAll();
+	}
+
+	// Pulls chunks until none remain
+	private void evalChunks() {
+		Evaluator evaluator = new Evaluator();
+
+		int chunkIdx = nextChunk.getAndIncrement();
+		while (chunkIdx < chunks.size()) {
+			setResults(chunkIdx, evaluator.evalChunk(chunks.get(chunkIdx)));
+			chunkIdx = nextChunk.getAndIncrement();
+		}
+	}
+
+	/**
+	 * Per thread evaluation state.  Buffers are reused across windows.
+	 */
+	class Evaluator {
+		private NativeAssembler assembler = new NativeAssembler();
+		private StringBuilder readBuf = new StringBuilder((ReAligner.MAX_REGION_LENGTH + 2*readLength) * (2*readLength+2));
+		private KmerSet kmerSet = new KmerSet(ReAligner.MAX_REGION_LENGTH + 2*readLength);
+
+		byte[] evalChunk(Chunk chunk) {
+			byte[] chunkResults = new byte[chunk.numWindows];
+			int chromosomeLength = c2r.getReferenceLength(chunk.chr);
+
+			// Load bases for all windows in the chunk at once
+			int chunkStart = Math.max(chunk.firstWindow * ReAligner.REGION_OVERLAP - readLength, 0);
+			int chunkStop = Math.min((chunk.firstWindow + chunk.numWindows - 1) * ReAligner.REGION_OVERLAP + ReAligner.MAX_REGION_LENGTH + readLength, chromosomeLength-1);
+			String chunkBases = c2r.getSequence(chunk.chr, chunkStart+1, chunkStop-chunkStart);
+
+			for (int j=0; j<chunk.numWindows; j++) {
+				int regionStart = (chunk.firstWindow + j) * ReAligner.REGION_OVERLAP;
+				int regionStop = regionStart + ReAligner.MAX_REGION_LENGTH;
+				int start = Math.max(regionStart - readLength, 0);
+				int stop = Math.min(regionStop + readLength, chromosomeLength-1);
+				String regionBases = chunkBases.substring(start-chunkStart, stop-chunkStart);
+
+				//TODO: Handle other ambiguous bases
+				if (regionBases.contains("N")) {
+					chunkResults[j] = EXCLUDE;
+				} else if (isUnique(regionBases)) {
+					uniqueCount.incrementAndGet();
+					chunkResults[j] = INCLUDE;
+				} else {
+					assembledCount.incrementAndGet();
+					Feature region = new Feature(chunk.chr, regionStart, regionStop);
+					chunkResults[j] = evalRegion(region, regionBases) ? INCLUDE : EXCLUDE;
+				}
 			}
+
+			return chunkResults;
 		}
 
-		if (shouldInclude) {
-			includeRegions.add(region);
-		} else {
-			excludeRegions.add(region);
+		// If all kmers are unique, the assembly graph for the smallest kmer is a single path
+		// spanning the region and assembly will reproduce the region bases.
+		private boolean isUnique(String regionBases) {
+			int kmer = kmers[0];
+			return kmer < readLength && regionBases.length() >= readLength && kmerSet.isUnique(regionBases, kmer);
+		}
+
+		private boolean evalRegion(Feature region, String regionBases) {
+			readBuf.setLength(0);
+			for (int j=0; j<=regionBases.length() - readLength; j++) {
+				readBuf.append((char) 1);  // sample id
+				readBuf.append('0');  // forward strand only
+				readBuf.append(regionBases, j, j+readLength);
+				readBuf.append(qualities);
+			}
+
+			String contig = assembler.nativeAssemble(readBuf.toString(), region.getDescriptor(), "eval", 0, 1, (ReAligner.MAX_REGION_LENGTH + 2*readLength)*2, readLength, kmers, 1, 0, .01, 1, MAX_NODES);
+			int basesIdx = contig.indexOf('\n') + 1;
+			if (basesIdx < contig.length()) {
+				String contigBases = contig.substring(basesIdx, contig.length()-1);
+				return regionBases.equals(contigBases);
+			}
+
+			return false;
 		}
 	}
-	
-	private void outputRegions(BufferedWriter writer, Collection<Feature> regions) throws IOException {
-		List<Feature> mergedRegions = RegionLoader.collapseRegions(regions, 0);
-		
-		for (Feature region : mergedRegions) {
-			writer.write(region.getSeqname() + "\t" + region.getStart() + "\t" + region.getEnd() + "\n");
+
+	/**
+	 * Open addressing set of kmer hashes used to check a sequence for repeated kmers.
+	 * Hash collisions are reported as repeats, so a sequence may only be falsely identified as repetitive.
+	 */
+	static class KmerSet {
+		private static final long HASH_BASE = 1000003;
+
+		private long[] hashes;
+		private int[] stamps;
+		private int stamp = 0;
+		private int mask;
+
+		KmerSet(int maxKmers) {
+			int size = Integer.highestOneBit(Math.max(maxKmers, 1)) * 4;
+			hashes = new long[size];
+			stamps = new int[size];
+			mask = size - 1;
+		}
+
+		boolean isUnique(String bases, int kmer) {
+			int numKmers = bases.length() - kmer + 1;
+			if (numKmers * 2 > hashes.length) {
+				KmerSet larger = new KmerSet(numKmers);
+				hashes = larger.hashes;
+				stamps = larger.stamps;
+				mask = larger.mask;
+				stamp = 0;
+			}
+
+			// A new stamp invalidates all previous entries
+			stamp += 1;
+
+			long highPower = 1;
+			for (int i=1; i<kmer; i++) {
+				highPower *= HASH_BASE;
+			}
+
+			long hash = 0;
+			for (int i=0; i<bases.length(); i++) {
+				if (i >= kmer) {
+					hash -= bases.charAt(i-kmer) * highPower;
+				}
+				hash = hash * HASH_BASE + bases.charAt(i);
+
+				if (i >= kmer-1 && !add(hash)) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		// Returns false if the hash is already present
+		private boolean add(long hash) {
+			int idx = (int) (hash ^ (hash >>> 32)) & mask;
+			while (stamps[idx] == stamp) {
+				if (hashes[idx] == hash) {
+					return false;
+				}
+				idx = (idx + 1) & mask;
+			}
+
+			stamps[idx] = stamp;
+			hashes[idx] = hash;
+			return true;
+		}
+	}
+
+	/**
+	 * Merges overlapping regions written in order for a single chromosome.
+	 */
+	static class RegionWriter {
+		private BufferedWriter writer;
+		private String chr;
+		private int start;
+		private int end;
+
+		RegionWriter(BufferedWriter writer) {
+			this.writer = writer;
+		}
+
+		void add(String chr, int start, int end) throws IOException {
+			if (this.chr != null && this.end >= start) {
+				this.end = end;
+			} else {
+				flush();
+				this.chr = chr;
+				this.start = start;
+				this.end = end;
+			}
+		}
+
+		void flush() throws IOException {
+			if (chr != null) {
+				writer.write(chr + "\t" + start + "\t" + end + "\n");
+				chr = null;
+			}
 		}
 	}
 	
-	// Basic Region comparator.  Only considers start position, so must not
-	// be used across chromosomes.
-	static class RegionComparator implements Comparator<Feature> {
+	static class Chunk {
+		String chr;
+		int firstWindow;
+		int numWindows;
 
-		@Override
-		public int compare(Feature region1, Feature region2) {
-			return (int) (region1.getStart() - region2.getStart());
+		Chunk(String chr, int firstWindow, int numWindows) {
+			this.chr = chr;
+			this.firstWindow = firstWindow;
+			this.numWindows = numWindows;
 		}
 	}
 	
 	static class EvalRunnable extends AbraRunnable {
 		private ReferenceEvaluator evaluator;
-		private Feature region;
-		private String regionBases;
 
-		public EvalRunnable(ThreadManager threadManager, ReferenceEvaluator evaluator, Feature region, String regionBases) {
+		public EvalRunnable(ThreadManager threadManager, ReferenceEvaluator evaluator) {
 			super(threadManager);
 			this.evaluator = evaluator;
-			this.region = region;
-			this.regionBases = regionBases;
 		}
 
 		@Override
 		public void go() throws Exception {
-			evaluator.evalRegion(region, regionBases);
+			evaluator.evalChunks();
 		}
 	}
 	
@@ -0,0 +1,216 @@
+/* Copyright 2013 University of North Carolina at Chapel Hill.  All rights reserved. */
+package abra;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import htsjdk.samtools.SAMFileReader;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.ValidationStringency;
+
+/**
+ * Estimates relative per region assembly cost prior to assembly so that the
+ * most expensive regions can be dispatched first (longest processing time first).
+ *
+ * Read depth is approximated using the BAM index linear index, which records the
+ * first file offset of reads overlapping each 16kb window.  The compressed bytes
+ * between consecutive windows are proportional to the number of reads in the window.
+ *
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class RegionCostEstimator {
+
+	// Linear index window size is 2^14 (16kb)
+	private static final int LINEAR_INDEX_SHIFT = 14;
+	private static final int LINEAR_INDEX_WINDOW = 1 << LINEAR_INDEX_SHIFT;
+
+	// Compressed bytes per base, keyed by chromosome.  One array entry per linear index window.
+	private Map<String, double[]> bytesPerBase = new HashMap<String, double[]>();
+
+	private int readLength;
+
+	private boolean hasIndexData = false;
+
+	public RegionCostEstimator(int readLength) {
+		this.readLength = readLength;
+	}
+
+	/**
+	 * Loads index data for the specified BAM file.  Depth is summed across all inputs.
+	 * BAM files without an index only contribute region length to the cost.
+	 */
+	public void addBam(String bam) throws IOException {
+		File index = getIndexFile(bam);
+
+		if (index == null) {
+			System.err.println("No BAM index found for: " + bam + ".  Region cost estimates will not consider depth.");
+			return;
+		}
+
+		List<String> chromosomes = new ArrayList<String>();
+		SAMFileReader reader = new SAMFileReader(new File(bam));
+		try {
+			reader.setValidationStringency(ValidationStringency.SILENT);
+			for (SAMSequenceRecord seq : reader.getFileHeader().getSequenceDictionary().getSequences()) {
+				chromosomes.add(seq.getSequenceName());
+			}
+		} finally {
+			reader.close();
+		}
+
+		DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+		try {
+			byte[] magic = new byte[4];
+			is.readFully(magic);
+			if (magic[0] != 'B' || magic[1] != 'A' || magic[2] != 'I' || magic[3] != 1) {
+				throw new IOException("Invalid BAM index file: " + index);
+			}
+
+			int numRefs = readInt(is);
+			for (int ref=0; ref<numRefs; ref++) {
+				skipBins(is);
+
+				int numIntervals = readInt(is);
+				long[] offsets = new long[numIntervals];
+				for (int i=0; i<numIntervals; i++) {
+					offsets[i] = readLong(is);
+				}
+
+				if (ref < chromosomes.size()) {
+					addOffsets(chromosomes.get(ref), offsets);
+				}
+			}
+		} finally {
+			is.close();
+		}
+
+		hasIndexData = true;
+	}
+
+	private void addOffsets(String chromosome, long[] offsets) {
+		double[] density = bytesPerBase.get(chromosome);
+		if (density == null || density.length < offsets.length) {
+			double[] expanded = new double[offsets.length];
+			if (density != null) {
+				System.arraycopy(density, 0, expanded, 0, density.length);
+			}
+			density = expanded;
+			bytesPerBase.put(chromosome, density);
+		}
+
+		for (int i=0; i<offsets.length-1; i++) {
+			// Compressed block address is stored in the upper 48 bits of the virtual file offset.
+			long start = offsets[i] >>> 16;
+			long next = offsets[i+1] >>> 16;
+
+			// Empty windows are filled with the offset of the previous window
+			if (start > 0 && next > start) {
+				density[i] += (double) (next - start) / (double) LINEAR_INDEX_WINDOW;
+			}
+		}
+	}
+
+	/**
+	 * Returns the estimated relative cost of assembling the specified region.
+	 */
+	public double estimateCost(Feature region) {
+		// Reads overlapping region ends are included in assembly.
+		double length = region.getLength() + 2 * readLength;
+		double cost = length;
+
+		if (hasIndexData) {
+			// Fall back to length for windows sharing a single compressed block
+			cost = length * (1.0 + getDensity(region));
+		}
+
+		// A preset kmer (i.e. from KmerSizeEvaluator) larger than the minimum indicates
+		// a repetitive region that is more likely to escalate through kmer sizes.
+		if (region.getKmer() > KmerSizeEvaluator.MIN_KMER && readLength > 0) {
+			cost *= 1.0 + (double) region.getKmer() / (double) readLength;
+		}
+
+		return cost;
+	}
+
+	// Average compressed bytes per base across windows spanned by the region.
+	double getDensity(Feature region) {
+		double[] density = bytesPerBase.get(region.getSeqname());
+
+		if (density == null || density.length == 0) {
+			return 0;
+		}
+
+		int first = (int) Math.max(region.getStart() - readLength, 0) >> LINEAR_INDEX_SHIFT;
+		int last = (int) (region.getEnd() + readLength) >> LINEAR_INDEX_SHIFT;
+
+		double total = 0;
+		int count = 0;
+		for (int i=first; i<=last && i<density.length; i++) {
+			total += density[i];
+			count += 1;
+		}
+
+		return count > 0 ? total / count : 0;
+	}
+
+	/**
+	 * Returns a copy of the input regions sorted by descending estimated cost.
+	 * Ties retain input order.
+	 */
+	public List<Feature> sortByDescendingCost(List<Feature> regions, final Map<Feature, Double> costs) {
+		for (Feature region : regions) {
+			costs.put(region, estimateCost(region));
+		}
+
+		List<Feature> sorted = new ArrayList<Feature>(regions);
+
+		Collections.sort(sorted, new Comparator<Feature>() {
+			@Override
+			public int compare(Feature region1, Feature region2) {
+				return Double.compare(costs.get(region2), costs.get(region1));
+			}
+		});
+
+		return sorted;
+	}
+
+	private File getIndexFile(String bam) {
+		File index = new File(bam + ".bai");
+		if (!index.exists() && bam.endsWith(".bam")) {
+			index = new File(bam.substring(0, bam.length()-4) + ".bai");
+		}
+
+		return index.exists() ? index : null;
+	}
+
+	private void skipBins(DataInputStream is) throws IOException {
+		int numBins = readInt(is);
+		for (int i=0; i<numBins; i++) {
+			// bin number
+			readInt(is);
+			int numChunks = readInt(is);
+			// 2 virtual file offsets per chunk
+			for (int j=0; j<numChunks*2; j++) {
+				readLong(is);
+			}
+		}
+	}
+
+	// BAM index values are little endian
+	private int readInt(DataInputStream is) throws IOException {
+		return Integer.reverseBytes(is.readInt());
+	}
+
+	private long readLong(DataInputStream is) throws IOException {
+		return Long.reverseBytes(is.readLong());
+	}
+}
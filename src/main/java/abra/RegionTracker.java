@@ -2,69 +2,66 @@ package abra;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
-import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMFileReader;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.ValidationStringency;
 
 /**
- * Keeps track of current region and provides
+ * Per chromosome index of regions providing
  * utility methods on reads related to regions.
+ *
+ * Regions are held in arrays sorted by start position along with the running
+ * maximum end position, so overlap queries are O(log n) and reads may be queried
+ * in any order.  The index is immutable and may be shared across threads.
  * 
  * @author Lisle E. Mose (lmose at unc dot edu)
  */
 public class RegionTracker {
 	
-	private List<Feature> regions;
-	private Feature currentRegion;
-	private Iterator<Feature> regionIter;
-	private SAMFileHeader header;
-
-	public RegionTracker(List<Feature> regions, SAMFileHeader header) {
-		this.regions = regions;
-		this.header = header;
-		init();
-	}
-	
-	public void init() {
-		regionIter = regions.iterator();
-        if (regionIter.hasNext()) {
-        	currentRegion = regionIter.next();
-        }		
+	private Map<String, ChromosomeRegions> regionsByChr = new HashMap<String, ChromosomeRegions>();
+
+	public RegionTracker(List<Feature> regions) {
+		Map<String, List<Feature>> chrRegions = new HashMap<String, List<Feature>>();
+		for (Feature region : regions) {
+			List<Feature> list = chrRegions.get(region.getSeqname());
+			if (list == null) {
+				list = new ArrayList<Feature>();
+				chrRegions.put(region.getSeqname(), list);
+			}
+			list.add(region);
+		}
+
+		for (String chr : chrRegions.keySet()) {
+			regionsByChr.put(chr, new ChromosomeRegions(chrRegions.get(chr)));
+		}
 	}
 	
 	public boolean isInRegion(SAMRecord read) {
-		
-		while ((currentRegion != null) &&
-			   (!currentRegion.overlapsRead(read)) &&
-			   (!isRegionBeyondRead(header, currentRegion, read))) {
-			
-			if (regionIter.hasNext()) {
-				currentRegion = (Feature) regionIter.next();
-			} else {
-				currentRegion = null;
-			}
-		}
-		
-		return (currentRegion != null) && (currentRegion.overlapsRead(read));
+		return isInRegion(read.getReferenceName(), read.getAlignmentStart(), read.getAlignmentEnd());
+	}
+
+	/**
+	 * Returns true if any region overlaps the specified inclusive interval.
+	 */
+	public boolean isInRegion(String chromosome, long start, long end) {
+		ChromosomeRegions chrRegions = regionsByChr.get(chromosome);
+		return chrRegions != null && chrRegions.overlaps(start, end);
 	}
 	
 	public List<Feature> identifyTargetRegions(List<String> files, int minBaseQuality, 
 			int readLength, CompareToReference2 c2r) {
 		
-		Map<String, List<Integer>> locations = new HashMap<String, List<Integer>>();
+		Map<String, PositionList> locations = new HashMap<String, PositionList>();
 		
 		for (String file : files) {
 	        SAMFileReader reader = new SAMFileReader(new File(file));
 	        reader.setValidationStringency(ValidationStringency.SILENT);
-
-	        header = reader.getFileHeader();
-	        init();
 	        
 	        for (SAMRecord read : reader) {
 	        	if (isInRegion(read)) {
@@ -82,14 +79,15 @@ public class RegionTracker {
 		return locationsToRegions(locations, readLength);
 	}
 	
-	private List<Feature> locationsToRegions(Map<String, List<Integer>> locations, int readLength) {
+	private List<Feature> locationsToRegions(Map<String, PositionList> locations, int readLength) {
 		List<Feature> regions = new ArrayList<Feature>();
 		
 		for (String chr : locations.keySet()) {
 			int prev = -readLength;
 			int start = -readLength;
 			
-			List<Integer> positions = locations.get(chr);
+			// Positions from multiple input files are interleaved
+			int[] positions = locations.get(chr).toSortedArray();
 			
 			for (int pos : positions) {
 				
@@ -117,28 +115,86 @@ public class RegionTracker {
 		return regions;
 	}
 	
-	private void addLocation(SAMRecord read, Map<String, List<Integer>> locations) {
-		if (!locations.containsKey(read.getReferenceName())) {
-			locations.put(read.getReferenceName(), new ArrayList<Integer>());
+	private void addLocation(SAMRecord read, Map<String, PositionList> locations) {
+		PositionList positions = locations.get(read.getReferenceName());
+		if (positions == null) {
+			positions = new PositionList();
+			locations.put(read.getReferenceName(), positions);
 		}
-		
-		locations.get(read.getReferenceName()).add(read.getAlignmentStart());
+
+		positions.add(read.getAlignmentStart());
 	}
-	
-	private boolean isRegionBeyondRead(SAMFileHeader header, Feature region, SAMRecord read) {
-		boolean isRegionBeyond = false;
-		
-		int regionChrIdx = header.getSequenceIndex(region.getSeqname());
-		int readChrIdx = header.getSequenceIndex(read.getReferenceName());
-		
-		if (regionChrIdx > readChrIdx) {
-			isRegionBeyond = true;
-		} else if (regionChrIdx < readChrIdx) {
-			isRegionBeyond = false;
-		} else {
-			isRegionBeyond = (region.getStart() > read.getAlignmentEnd());
+
+	/**
+	 * Regions for a single chromosome sorted by start position.
+	 */
+	static class ChromosomeRegions {
+		private long[] starts;
+		// Maximum end position of all regions up to and including the current index
+		private long[] maxEnds;
+
+		ChromosomeRegions(List<Feature> regions) {
+			Feature[] sorted = regions.toArray(new Feature[regions.size()]);
+			Arrays.sort(sorted, new Comparator<Feature>() {
+				@Override
+				public int compare(Feature f1, Feature f2) {
+					return f1.getStart() < f2.getStart() ? -1 : (f1.getStart() > f2.getStart() ? 1 : 0);
+				}
+			});
+
+			starts = new long[sorted.length];
+			maxEnds = new long[sorted.length];
+			long maxEnd = Long.MIN_VALUE;
+			for (int i=0; i<sorted.length; i++) {
+				starts[i] = sorted[i].getStart();
+				maxEnd = Math.max(maxEnd, sorted[i].getEnd());
+				maxEnds[i] = maxEnd;
+			}
+		}
+
+		boolean overlaps(long start, long end) {
+			// Index of the last region starting at or before the end of the interval
+			int low = 0;
+			int high = starts.length - 1;
+			int idx = -1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (starts[mid] <= end) {
+					idx = mid;
+					low = mid + 1;
+				} else {
+					high = mid - 1;
+				}
+			}
+
+			return idx >= 0 && maxEnds[idx] >= start;
+		}
+	}
+
+	/**
+	 * Growable list of positions that avoids boxing.
+	 */
+	static class PositionList {
+		private int[] positions = new int[16];
+		private int size = 0;
+
+		void add(int pos) {
+			if (size == positions.length) {
+				positions = Arrays.copyOf(positions, size * 2);
+			}
+			positions[size++] = pos;
+		}
+
+		void addAll(PositionList other) {
+			for (int i=0; i<other.size; i++) {
+				add(other.positions[i]);
+			}
+		}
+
+		int[] toSortedArray() {
+			int[] sorted = Arrays.copyOf(positions, size);
+			Arrays.sort(sorted);
+			return sorted;
 		}
-		
-		return isRegionBeyond;
 	}
 }
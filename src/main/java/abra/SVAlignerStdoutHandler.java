@@ -1,7 +1,6 @@
 package abra;
 
 import htsjdk.samtools.DefaultSAMRecordFactory;
-import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SamInputResource;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
@@ -15,13 +14,13 @@ public class SVAlignerStdoutHandler implements StdoutHandler{
 	
 	private Thread draino;
 	private int readLength;
-	private SAMFileHeader header;
+	private SVReadCounter.BreakpointIndex breakpoints;
 	private Thread counterThread;
 	private SVReadCounterRunnable counter; 
 	
-	public SVAlignerStdoutHandler(int readLength, SAMFileHeader header) {
+	public SVAlignerStdoutHandler(int readLength, SVReadCounter.BreakpointIndex breakpoints) {
 		this.readLength = readLength;
-		this.header = header;
+		this.breakpoints = breakpoints;
 	}
 
 	@Override
@@ -41,7 +40,7 @@ public class SVAlignerStdoutHandler implements StdoutHandler{
 		                .samRecordFactory(DefaultSAMRecordFactory.getInstance())
 		                .open(SamInputResource.of(pis));
 		
-		counter = new SVReadCounterRunnable(reader, readLength, header);
+		counter = new SVReadCounterRunnable(reader, readLength, breakpoints);
 		
 		counterThread = new Thread(counter);
 		counterThread.start();
@@ -0,0 +1,183 @@
+/* Copyright 2013 University of North Carolina at Chapel Hill.  All rights reserved. */
+package abra;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects SV breakpoint candidates identified during regional assembly across all regions so that
+ * each candidate is assembled once after regional assembly completes.
+ *
+ * Overlapping assembly regions frequently identify the same partner region.  Candidates are considered
+ * duplicates when both their assembly regions and partner regions overlap, in which case only the
+ * candidate with the most spanning read pairs is retained.
+ *
+ * When checkpointing, candidates are also appended to a file in the working directory so that candidates
+ * from regions completed prior to an interruption are available upon resume.
+ *
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class SVCandidateCollector {
+
+	private static final String END_OF_RECORD = "\tOK";
+
+	private List<SVCandidate> candidates = new ArrayList<SVCandidate>();
+	private String filename;
+	private Writer writer;
+
+	/**
+	 * @param filename candidate file or null if candidates are not persisted.
+	 */
+	public SVCandidateCollector(String filename) {
+		this.filename = filename;
+	}
+
+	/**
+	 * Loads candidates for regions completed according to the checkpoint.
+	 */
+	public void load(Checkpoint checkpoint) throws IOException {
+		if (filename != null && new File(filename).exists()) {
+			BufferedReader reader = new BufferedReader(new FileReader(filename));
+			try {
+				String line = reader.readLine();
+				while (line != null) {
+					if (line.endsWith(END_OF_RECORD)) {
+						String[] fields = line.split("\t");
+						Feature region = new Feature(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+						region.setKmer(Integer.parseInt(fields[3]));
+						if (checkpoint.isRegionComplete(region)) {
+							Feature partner = new Feature(fields[4], Long.parseLong(fields[5]), Long.parseLong(fields[6]));
+							candidates.add(new SVCandidate(region, new BreakpointCandidate(partner, Integer.parseInt(fields[7]))));
+						}
+					}
+					line = reader.readLine();
+				}
+			} finally {
+				reader.close();
+			}
+
+			System.err.println("Loaded " + candidates.size() + " SV candidates from: " + filename);
+		}
+	}
+
+	/**
+	 * Adds candidates identified while assembling the specified region.
+	 */
+	public synchronized void add(Feature region, List<BreakpointCandidate> breakpoints) throws IOException {
+		StringBuffer records = new StringBuffer();
+
+		for (BreakpointCandidate breakpoint : breakpoints) {
+			candidates.add(new SVCandidate(region, breakpoint));
+
+			Feature partner = breakpoint.getRegion();
+			records.append(region.getSeqname() + "\t" + region.getStart() + "\t" + region.getEnd() + "\t" + region.getKmer() + "\t" +
+					partner.getSeqname() + "\t" + partner.getStart() + "\t" + partner.getEnd() + "\t" +
+					breakpoint.getSpanningReadPairCount() + END_OF_RECORD + "\n");
+		}
+
+		if (filename != null && records.length() > 0) {
+			if (writer == null) {
+				writer = new FileWriter(filename, true);
+			}
+			writer.write(records.toString());
+			writer.flush();
+		}
+	}
+
+	/**
+	 * Returns candidates with duplicates removed, ordered by descending spanning read pair count.
+	 */
+	public synchronized List<SVCandidate> getDistinctCandidates() {
+		List<SVCandidate> sorted = new ArrayList<SVCandidate>(candidates);
+		Collections.sort(sorted, new Comparator<SVCandidate>() {
+			@Override
+			public int compare(SVCandidate c1, SVCandidate c2) {
+				int compare = c2.breakpoint.getSpanningReadPairCount() - c1.breakpoint.getSpanningReadPairCount();
+				if (compare == 0) {
+					compare = compareRegions(c1.region, c2.region);
+				}
+				if (compare == 0) {
+					compare = compareRegions(c1.breakpoint.getRegion(), c2.breakpoint.getRegion());
+				}
+				return compare;
+			}
+		});
+
+		// Retained candidates by partner chromosome
+		Map<String, List<SVCandidate>> retained = new HashMap<String, List<SVCandidate>>();
+		List<SVCandidate> distinct = new ArrayList<SVCandidate>();
+
+		for (SVCandidate candidate : sorted) {
+			Feature partner = candidate.breakpoint.getRegion();
+			List<SVCandidate> chrCandidates = retained.get(partner.getSeqname());
+			if (chrCandidates == null) {
+				chrCandidates = new ArrayList<SVCandidate>();
+				retained.put(partner.getSeqname(), chrCandidates);
+			}
+
+			if (!isDuplicate(candidate, chrCandidates)) {
+				chrCandidates.add(candidate);
+				distinct.add(candidate);
+			}
+		}
+
+		System.err.println("SV candidates: " + candidates.size() + ", distinct: " + distinct.size());
+
+		return distinct;
+	}
+
+	private boolean isDuplicate(SVCandidate candidate, List<SVCandidate> retained) {
+		Feature region = candidate.region;
+		Feature partner = candidate.breakpoint.getRegion();
+
+		for (SVCandidate other : retained) {
+			if (other.region.overlaps(region.getSeqname(), (int) region.getStart(), (int) region.getEnd()) &&
+				other.breakpoint.getRegion().overlaps(partner.getSeqname(), (int) partner.getStart(), (int) partner.getEnd())) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static int compareRegions(Feature region1, Feature region2) {
+		int compare = region1.getSeqname().compareTo(region2.getSeqname());
+		if (compare == 0) {
+			compare = Long.valueOf(region1.getStart()).compareTo(region2.getStart());
+		}
+		if (compare == 0) {
+			compare = Long.valueOf(region1.getEnd()).compareTo(region2.getEnd());
+		}
+		return compare;
+	}
+
+	public synchronized void close() throws IOException {
+		if (writer != null) {
+			writer.close();
+			writer = null;
+		}
+	}
+
+	/**
+	 * An assembly region paired with a breakpoint candidate.
+	 */
+	static class SVCandidate {
+		Feature region;
+		BreakpointCandidate breakpoint;
+
+		SVCandidate(Feature region, BreakpointCandidate breakpoint) {
+			this.region = region;
+			this.breakpoint = breakpoint;
+		}
+	}
+}
@@ -1,19 +1,18 @@
 package abra;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
 import htsjdk.samtools.SAMFileHeader;
 
 public class SVEvaluator {
 
-	public void evaluateAndOutput(String svContigFasta, ReAligner realigner, String tempDir, int readLength, String[] inputSams, String[] tempDirs,
+	public void evaluateAndOutput(String svContigFasta, final ReAligner realigner, String tempDir, int readLength, String[] inputSams, String[] tempDirs,
 			SAMFileHeader[] samHeaders, String structuralVariantFile) throws IOException, InterruptedException {
 		
 		String svContigsSam = tempDir + "/" + "sv_contigs.sam";
@@ -21,51 +20,78 @@ public class SVEvaluator {
 		
 		// Extract Breakpoint candidates
 		SVHandler svHandler = new SVHandler(readLength, realigner.getMinMappingQuality());
-		String svCandidates = tempDir + "/" + "sv_candidates.fa";
+		final String svCandidates = tempDir + "/" + "sv_candidates.fa";
 		boolean hasCandidates = svHandler.identifySVCandidates(svContigsSam, svCandidates);
 		
 		if (hasCandidates) {
 			Aligner aligner = new Aligner(svCandidates, 1);
 			aligner.index();
 			
-			String[] svSams = new String[inputSams.length];
-
-			List<Map<String, Integer>> svCounts = new ArrayList<Map<String, Integer>>();
-			Set<String> breakpointIds = new HashSet<String>();
+			final SVReadCounter.BreakpointIndex breakpoints = new SVReadCounter.BreakpointIndex(getContigNames(svCandidates));
+			
+			final String[] svSams = new String[inputSams.length];
+			final SVReadCounter[] svReadCounters = new SVReadCounter[inputSams.length];
+			
+			// Align and count each sample concurrently, dividing aligner threads among samples
+			final int alignerThreads = Math.max(realigner.getNumThreads() / inputSams.length, 1);
+			
+			ThreadManager threadManager = new ThreadManager(Math.min(inputSams.length, realigner.getNumThreads()));
 			
 			for (int i=0; i<inputSams.length; i++) {
 				svSams[i] = tempDirs[i] + "/" + "sv_aligned_to_contig.sam";
 				
-				SVReadCounter svReadCounter = realigner.alignToSVContigs(tempDirs[i], svSams[i], svCandidates, null, samHeaders[i]);
-				svCounts.add(svReadCounter.getCounts());
-				breakpointIds.addAll(svReadCounter.getCounts().keySet());
-//				realigner.alignToContigs(tempDirs[i], svSams[i], svCandidates, null, null);
+				final int sampleIdx = i;
+				final String sampleTempDir = tempDirs[i];
+				threadManager.spawnThread(new AbraRunnable(threadManager) {
+					@Override
+					public void go() throws Exception {
+						svReadCounters[sampleIdx] = realigner.alignToSVContigs(sampleTempDir, svSams[sampleIdx], svCandidates, breakpoints, alignerThreads);
+					}
+				});
 			}
 			
-			/*
-			for (int i=0; i<svSams.length; i++) {
-				SVReadCounter svReadCounter = new SVReadCounter();
-				Map<String, Integer> counts = svReadCounter.countReadsSupportingBreakpoints(svSams[i], readLength, samHeaders[i]);
-				svCounts.add(counts);
-				breakpointIds.addAll(counts.keySet());
-			}
-			*/
+			threadManager.waitForAllThreadsToComplete();
 			
 			BufferedWriter writer = new BufferedWriter(new FileWriter(structuralVariantFile, false));
-			for (String breakpointId : breakpointIds) {
-				writer.append(breakpointId.replace("+", "_"));
-				for (Map<String, Integer> counts : svCounts) {
-					writer.append('\t');
-					if (counts.containsKey(breakpointId)) {
-						writer.append(String.valueOf(counts.get(breakpointId)));
-					} else {
-						writer.append("0");
+			for (int id=0; id<breakpoints.size(); id++) {
+				boolean hasReads = false;
+				for (SVReadCounter counter : svReadCounters) {
+					hasReads |= counter.getCounts()[id] > 0;
+				}
+				
+				// Only breakpoints with supporting reads are output
+				if (hasReads) {
+					writer.append(breakpoints.getBreakpoint(id).replace("+", "_"));
+					for (SVReadCounter counter : svReadCounters) {
+						writer.append('\t');
+						writer.append(String.valueOf(counter.getCounts()[id]));
 					}
+					writer.append('\n');
 				}
-				writer.append('\n');
 			}
 			
 			writer.close();
 		}
 	}
+	
+	// Returns contig names from the breakpoint fasta in file order
+	private List<String> getContigNames(String fasta) throws IOException {
+		List<String> names = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(fasta));
+		
+		try {
+			String line = reader.readLine();
+			while (line != null) {
+				if (line.startsWith(">")) {
+					// Aligner reference names end at the first whitespace
+					names.add(line.substring(1).split("\\s")[0]);
+				}
+				line = reader.readLine();
+			}
+		} finally {
+			reader.close();
+		}
+		
+		return names;
+	}
 }
@@ -1,11 +1,13 @@
 package abra;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import htsjdk.samtools.DefaultSAMRecordFactory;
 import htsjdk.samtools.SAMFileHeader;
-import htsjdk.samtools.SAMLineParser;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamInputResource;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
@@ -14,19 +16,28 @@ import htsjdk.samtools.SAMRecord;
 
 public class SVReadCounter {
 	
-	private Map<String, Integer> breakpointCounts = new HashMap<String, Integer>();
-	
 	private static final int MAX_EDIT_DISTANCE = 5;
-	
-	private SAMLineParser parser;
-	
-	private Map<String, Integer> counts;
 
-	public Map<String, Integer> countReadsSupportingBreakpoints(SamReader reader, int readLength, SAMFileHeader samHeader) {
-		
-		parser = new SAMLineParser(new DefaultSAMRecordFactory(),
-                ValidationStringency.SILENT, samHeader,
-                null, null);
+	private static final String ORIG_EDIT_DISTANCE_TAG = Sam2Fastq.FIELD_DELIMITER + "YX:i:";
+
+	private BreakpointIndex breakpoints;
+
+	// Read counts indexed by breakpoint id
+	private int[] counts;
+
+	public SVReadCounter(BreakpointIndex breakpoints) {
+		this.breakpoints = breakpoints;
+		this.counts = new int[breakpoints.size()];
+	}
+
+	public int[] countReadsSupportingBreakpoints(SamReader reader, int readLength) {
+
+		// Breakpoint id by reference index of the aligned output
+		SAMFileHeader header = reader.getFileHeader();
+		int[] refBreakpoints = new int[header.getSequenceDictionary().size()];
+		for (SAMSequenceRecord seq : header.getSequenceDictionary().getSequences()) {
+			refBreakpoints[seq.getSequenceIndex()] = breakpoints.getBreakpointId(seq.getSequenceName());
+		}
 		
 		String fullMatch = readLength + "M";
 		
@@ -41,54 +52,13 @@ public class SVReadCounter {
 					int editDistance = SAMRecordUtils.getIntAttribute(read, "NM");
 					
 					if (editDistance <= MAX_EDIT_DISTANCE) {
-						SAMRecord orig = getOrigRecord(read, samHeader);
-						int origEditDistance = SAMRecordUtils.getIntAttribute(orig, "YX");
+						int origEditDistance = getOrigEditDistance(read.getReadName());
 						if (editDistance < origEditDistance) {
 							//TODO: Inspect alternate alignments
-							/*
-							String[] regions = read.getReferenceName().split("__");
-							if (regions.length == 2) {
-								String[] region1 = regions[0].split("_");
-								String[] region2 = regions[1].split("_");
-								if (region1.length >= 3 && region2.length >= 5) {
-									int region1IdxPad = region1.length - 3; // Adjustment for underscore in chromosome name
-									int region2IdxPad = region2.length - 5; // Adjustment for underscore in chromosome name
-									
-									String chr1 = region1[0];
-									for (int i=1; i<=region1IdxPad; i++) {
-										chr1 += "_";
-										chr1 += region1[i];
-									}
-									int start1 = Integer.parseInt(region1[1 + region1IdxPad]);
-									int stop1 = Integer.parseInt(region1[2 + region1IdxPad]);
-									
-									String chr2 = region2[0];
-									for (int i=1; i<=region2IdxPad; i++) {
-										chr1 += "_";
-										chr2 += region2[i];
-									}
-									int start2 = Integer.parseInt(region2[1 + region2IdxPad]);
-									int stop2 = Integer.parseInt(region2[2 + region2IdxPad]);
-								}
-							}
-							*/
-							
-							String[] refFields = read.getReferenceName().split("_");
-							if (refFields.length >= 8) {
-//								String breakpointGroupId = refFields[0] + "_" + refFields[1] + "\t" + refFields[2] + ":" + refFields[3] + "\t" +
-//										refFields[4] + ":" + refFields[5];
-
-								
-								String breakpointGroupId = refFields[0] + "_" + refFields[1] + "\t" + refFields[2] + ":" + refFields[3] + "\t" +
-										refFields[4] + ":" + refFields[5] + "\t" + refFields[refFields.length-2] + "\t" + refFields[refFields.length-1];
-								
-
-								Integer count = breakpointCounts.get(breakpointGroupId);
-								if (count == null) {
-									breakpointCounts.put(breakpointGroupId, 1);
-								} else {
-									breakpointCounts.put(breakpointGroupId, count + 1);
-								}
+
+							int breakpointId = refBreakpoints[read.getReferenceIndex()];
+							if (breakpointId >= 0) {
+								counts[breakpointId] += 1;
 							} else {
 								System.err.println("Error analyzing breakpoint for: " + read.getSAMString());
 							}
@@ -98,31 +68,81 @@ public class SVReadCounter {
 			}
 		}
 		
-		this.counts = breakpointCounts;
-		
-		return breakpointCounts;
+		return counts;
 	}
-	
-	private SAMRecord getOrigRecord(SAMRecord read, SAMFileHeader samHeader) {
-		String origSamStr = read.getReadName();
-		origSamStr = origSamStr.replace(Sam2Fastq.FIELD_DELIMITER, "\t");
-		SAMRecord orig;
-		try {
-			orig = parser.parseLine(origSamStr);
-		} catch (RuntimeException e) {
-			System.err.println("Error processing: [" + origSamStr + "]");
-			System.err.println("Contig read: [" + read.getSAMString() + "]");
-			e.printStackTrace();
-			throw e;
+
+	// Returns the YX tag value of the original read encoded in the read name, or 0 if not present.
+	// This avoids parsing the full original SAM record for each read.
+	static int getOrigEditDistance(String readName) {
+		int idx = readName.indexOf(ORIG_EDIT_DISTANCE_TAG);
+		if (idx < 0) {
+			return 0;
+		}
+
+		idx += ORIG_EDIT_DISTANCE_TAG.length();
+		int end = readName.indexOf(Sam2Fastq.FIELD_DELIMITER, idx);
+		if (end < 0) {
+			end = readName.length();
 		}
-		orig.setHeader(samHeader);
 
-		return orig;
+		return Integer.parseInt(readName.substring(idx, end));
 	}
-	
-	public Map<String, Integer> getCounts() {
+
+	public int[] getCounts() {
 		return counts;
 	}
+
+	/**
+	 * Dense integer ids for breakpoint groups identified from breakpoint contig names.
+	 * Multiple contigs may belong to the same breakpoint group.
+	 */
+	static class BreakpointIndex {
+		private Map<String, Integer> contigBreakpoints = new HashMap<String, Integer>();
+		private List<String> breakpointIds = new ArrayList<String>();
+
+		BreakpointIndex(List<String> contigNames) {
+			Map<String, Integer> ids = new HashMap<String, Integer>();
+
+			for (String contigName : contigNames) {
+				String breakpointId = getBreakpointGroupId(contigName);
+				if (breakpointId != null) {
+					Integer id = ids.get(breakpointId);
+					if (id == null) {
+						id = breakpointIds.size();
+						breakpointIds.add(breakpointId);
+						ids.put(breakpointId, id);
+					}
+					contigBreakpoints.put(contigName, id);
+				}
+			}
+		}
+
+		/**
+		 * Returns the breakpoint id for the specified contig or -1 if the contig name cannot be parsed.
+		 */
+		int getBreakpointId(String contigName) {
+			Integer id = contigBreakpoints.get(contigName);
+			return id != null ? id : -1;
+		}
+
+		String getBreakpoint(int id) {
+			return breakpointIds.get(id);
+		}
+
+		int size() {
+			return breakpointIds.size();
+		}
+
+		private static String getBreakpointGroupId(String contigName) {
+			String[] refFields = contigName.split("_");
+			if (refFields.length >= 8) {
+				return refFields[0] + "_" + refFields[1] + "\t" + refFields[2] + ":" + refFields[3] + "\t" +
+						refFields[4] + ":" + refFields[5] + "\t" + refFields[refFields.length-2] + "\t" + refFields[refFields.length-1];
+			} else {
+				return null;
+			}
+		}
+	}
 	
 	public static void main(String[] args) throws Exception {
 		String file = "/home/lmose/dev/abra/sv/virus_test2/t.sv.bam";
@@ -137,10 +157,18 @@ public class SVReadCounter {
 		
 		System.err.println("header: " + header);
 
-		SVReadCounter counter = new SVReadCounter();
-		Map<String, Integer> counts = counter.countReadsSupportingBreakpoints(reader, 100, header);
+		List<String> contigNames = new ArrayList<String>();
+		for (SAMSequenceRecord seq : header.getSequenceDictionary().getSequences()) {
+			contigNames.add(seq.getSequenceName());
+		}
+		BreakpointIndex breakpoints = new BreakpointIndex(contigNames);
+
+		SVReadCounter counter = new SVReadCounter(breakpoints);
+		int[] counts = counter.countReadsSupportingBreakpoints(reader, 100);
 		reader.close();
-		
-		System.err.println(counts);
+
+		for (int i=0; i<counts.length; i++) {
+			System.err.println(breakpoints.getBreakpoint(i) + "\t" + counts[i]);
+		}
 	}
 }
@@ -1,26 +1,23 @@
 package abra;
 
 
-import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SamReader;
 
 public class SVReadCounterRunnable implements Runnable {
 
 	private int readLength;
-	private SAMFileHeader header;
 	private SamReader reader;
 	private SVReadCounter counter;
 	
-	public SVReadCounterRunnable(SamReader reader, int readLength, SAMFileHeader header) {
+	public SVReadCounterRunnable(SamReader reader, int readLength, SVReadCounter.BreakpointIndex breakpoints) {
 		this.readLength = readLength;
-		this.header = header;
 		this.reader = reader;
+		this.counter = new SVReadCounter(breakpoints);
 	}
 	
 	@Override
 	public void run() {
-		counter = new SVReadCounter();
-		counter.countReadsSupportingBreakpoints(reader, readLength, header);
+		counter.countReadsSupportingBreakpoints(reader, readLength);
 	}
 
 	public SVReadCounter getCounter() {
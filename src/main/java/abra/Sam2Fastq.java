@@ -67,7 +67,7 @@ public class Sam2Fastq {
         
         int lineCnt = 0;
         
-        this.regionTracker = new RegionTracker(regions, reader.getFileHeader());
+        this.regionTracker = new RegionTracker(regions);
         
         for (SAMRecord read : reader) {
         	if (!SAMRecordUtils.isPrimary(read)) {
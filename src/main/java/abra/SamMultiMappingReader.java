@@ -2,12 +2,14 @@
 package abra;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMFileReader;
+import htsjdk.samtools.SamReader;
 import htsjdk.samtools.ValidationStringency;
 import htsjdk.samtools.SAMRecord;
 
@@ -19,7 +21,7 @@ import htsjdk.samtools.SAMRecord;
  */
 public class SamMultiMappingReader implements Iterable<List<SAMRecord>> {
 	
-	private SAMFileReader inputSam;
+	private SamReader inputSam;
 	private Iterator<SAMRecord> iter;
 	private SAMRecord cachedRead;
 	private int numRecords = 0;
@@ -27,12 +29,21 @@ public class SamMultiMappingReader implements Iterable<List<SAMRecord>> {
     public SamMultiMappingReader(String filename) {
         File inputFile = new File(filename);
         
-        inputSam = new SAMFileReader(inputFile);
-        inputSam.setValidationStringency(ValidationStringency.SILENT);
+        SAMFileReader reader = new SAMFileReader(inputFile);
+        reader.setValidationStringency(ValidationStringency.SILENT);
+        inputSam = reader;
   
         iter = inputSam.iterator();
     }
     
+    /**
+     * Iterates over an already open reader.  i.e. a SAM stream from an aligner
+     */
+    public SamMultiMappingReader(SamReader reader) {
+    	inputSam = reader;
+    	iter = inputSam.iterator();
+    }
+    
     public SAMFileHeader getFileHeader() {
     	return inputSam.getFileHeader();
     }
@@ -94,7 +105,12 @@ public class SamMultiMappingReader implements Iterable<List<SAMRecord>> {
 	}
     
     public void close() {
-    	inputSam.close();
+    	try {
+    		inputSam.close();
+    	} catch (IOException e) {
+    		e.printStackTrace();
+    		throw new RuntimeException(e);
+    	}
     }
 
 	private static class SamMultiMappingIterator implements Iterator<List<SAMRecord>> {
@@ -0,0 +1,502 @@
+/* Copyright 2013 University of North Carolina at Chapel Hill.  All rights reserved. */
+package abra;
+
+import static abra.Logger.log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileReader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.ValidationStringency;
+
+/**
+ * Runs ABRA as independent shards, each in its own process and working directory.
+ * Targets and reads are partitioned by chromosome, with chromosomes assigned to shards
+ * so as to balance total target length.  Shard outputs are merged in shard order.
+ *
+ * Reads on chromosomes without targets and reads without a placed mate are passed
+ * directly through to the merged output.
+ *
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class ShardedReAligner {
+
+	public static final String STEP_ALL = "all";
+	public static final String STEP_SPLIT = "split";
+	public static final String STEP_MERGE = "merge";
+
+	private static final String COMMANDS_FILE = "shard_commands.txt";
+
+	// ABRA options rewritten for each shard
+	private static final String[] SHARD_SPECIFIC_OPTIONS = { "in", "out", "targets", "target-kmers", "working", "threads", "sv", "lr" };
+
+	private String[] args;
+	private ReAlignerOptions options;
+	private String workingDir;
+	private int numShards;
+
+	// Chromosome -> shard index.  Chromosomes without targets are not included.
+	private Map<String, Integer> chromosomeShards = new HashMap<String, Integer>();
+
+	public ShardedReAligner(String[] args, ReAlignerOptions options) {
+		this.args = args;
+		this.options = options;
+		this.workingDir = options.getWorkingDir();
+		this.numShards = options.getNumShards();
+	}
+
+	public void run() throws Exception {
+		String step = options.getShardStep();
+
+		// Partitioning is deterministic, so is recomputed for the merge step.
+		List<List<Feature>> shardTargets = partitionTargets();
+
+		if (STEP_ALL.equals(step) || STEP_SPLIT.equals(step)) {
+			File dir = new File(workingDir);
+			if (dir.exists() || !dir.mkdir()) {
+				throw new IllegalStateException("Unable to create: " + workingDir);
+			}
+
+			Clock clock = new Clock("Shard split");
+			clock.start();
+			writeShardTargets(shardTargets);
+			splitReads();
+			List<String> commands = writeShardCommands();
+			clock.stopAndPrint();
+
+			if (STEP_ALL.equals(step)) {
+				clock = new Clock("Shard processing");
+				clock.start();
+				runShards(commands);
+				clock.stopAndPrint();
+			} else {
+				log("Shard commands written to: " + workingDir + "/" + COMMANDS_FILE);
+			}
+		}
+
+		if (STEP_ALL.equals(step) || STEP_MERGE.equals(step)) {
+			Clock clock = new Clock("Shard merge");
+			clock.start();
+			merge();
+			clock.stopAndPrint();
+		}
+	}
+
+	// Assign chromosomes to shards, largest total target length first, each to the lightest shard.
+	private List<List<Feature>> partitionTargets() throws IOException {
+		List<Feature> targets = new RegionLoader().load(options.getTargetRegionFile(), options.hasPresetKmers());
+
+		final Map<String, List<Feature>> chromosomeTargets = new LinkedHashMap<String, List<Feature>>();
+		final Map<String, Long> chromosomeLengths = new HashMap<String, Long>();
+
+		for (Feature target : targets) {
+			List<Feature> features = chromosomeTargets.get(target.getSeqname());
+			if (features == null) {
+				features = new ArrayList<Feature>();
+				chromosomeTargets.put(target.getSeqname(), features);
+				chromosomeLengths.put(target.getSeqname(), 0L);
+			}
+			features.add(target);
+			chromosomeLengths.put(target.getSeqname(), chromosomeLengths.get(target.getSeqname()) + target.getLength() + 1);
+		}
+
+		List<String> chromosomes = new ArrayList<String>(chromosomeTargets.keySet());
+
+		// Stable sort retains BED order for ties.
+		Collections.sort(chromosomes, new Comparator<String>() {
+			@Override
+			public int compare(String chr1, String chr2) {
+				return chromosomeLengths.get(chr2).compareTo(chromosomeLengths.get(chr1));
+			}
+		});
+
+		if (chromosomes.size() < numShards) {
+			System.err.println("Reducing number of shards to number of target chromosomes: " + chromosomes.size());
+			numShards = chromosomes.size();
+		}
+
+		long[] shardLengths = new long[numShards];
+		for (String chromosome : chromosomes) {
+			int lightest = 0;
+			for (int i=1; i<numShards; i++) {
+				if (shardLengths[i] < shardLengths[lightest]) {
+					lightest = i;
+				}
+			}
+
+			chromosomeShards.put(chromosome, lightest);
+			shardLengths[lightest] += chromosomeLengths.get(chromosome);
+		}
+
+		// Targets within each shard retain BED order
+		List<List<Feature>> shardTargets = new ArrayList<List<Feature>>();
+		for (int i=0; i<numShards; i++) {
+			shardTargets.add(new ArrayList<Feature>());
+		}
+
+		for (String chromosome : chromosomeTargets.keySet()) {
+			shardTargets.get(chromosomeShards.get(chromosome)).addAll(chromosomeTargets.get(chromosome));
+		}
+
+		for (int i=0; i<numShards; i++) {
+			System.err.println("Shard " + (i+1) + " target length: " + shardLengths[i]);
+		}
+
+		return shardTargets;
+	}
+
+	private void writeShardTargets(List<List<Feature>> shardTargets) throws IOException {
+		for (int i=0; i<numShards; i++) {
+			if (!new File(getShardDir(i)).mkdir()) {
+				throw new IllegalStateException("Unable to create: " + getShardDir(i));
+			}
+
+			BufferedWriter writer = new BufferedWriter(new FileWriter(getShardTargets(i), false));
+			try {
+				for (Feature target : shardTargets.get(i)) {
+					writer.write(target.getSeqname() + "\t" + target.getStart() + "\t" + target.getEnd());
+					if (options.hasPresetKmers()) {
+						writer.write("\t" + target.getKmer());
+					}
+					writer.write("\n");
+				}
+			} finally {
+				writer.close();
+			}
+		}
+	}
+
+	private void splitReads() throws InterruptedException, IOException {
+		ThreadManager threadManager = new ThreadManager(options.getNumThreads());
+
+		String[] inputs = options.getInputFiles();
+		for (int i=0; i<inputs.length; i++) {
+			threadManager.spawnThread(new SplitRunnable(threadManager, this, i, inputs[i]));
+		}
+
+		threadManager.waitForAllThreadsToComplete();
+	}
+
+	private Integer getShard(String chromosome) {
+		return chromosomeShards.get(chromosome);
+	}
+
+	void splitReads(int sampleIdx, String input) {
+		log("Splitting reads for: " + input);
+
+		SAMFileReader reader = new SAMFileReader(new File(input));
+		reader.setValidationStringency(ValidationStringency.SILENT);
+
+		// Shard inputs must be sorted and indexed for regional queries.
+		// Unplaced reads sort last, so a coordinate sorted input yields coordinate sorted shards.
+		boolean isPresorted = reader.getFileHeader().getSortOrder() == SAMFileHeader.SortOrder.coordinate;
+		SAMFileHeader header = reader.getFileHeader().clone();
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+
+		SAMFileWriterFactory writerFactory = new SAMFileWriterFactory();
+		writerFactory.setCreateIndex(true);
+		writerFactory.setTempDirectory(new File(workingDir));
+
+		SAMFileWriter[] writers = new SAMFileWriter[numShards];
+		for (int i=0; i<numShards; i++) {
+			writers[i] = writerFactory.makeBAMWriter(header, isPresorted, new File(getShardInput(i, sampleIdx)), ReAligner.COMPRESSION_LEVEL);
+		}
+
+		SAMFileHeader passThroughHeader = reader.getFileHeader().clone();
+		passThroughHeader.setSortOrder(SAMFileHeader.SortOrder.unsorted);
+		SAMFileWriter passThrough = new SAMFileWriterFactory().makeBAMWriter(passThroughHeader, false,
+				new File(getPassThroughBam(sampleIdx)), ReAligner.COMPRESSION_LEVEL);
+
+		for (SAMRecord read : reader) {
+			Integer shard = null;
+
+			// Unmapped reads with a placed mate go to the mate's shard
+			if (read.getReferenceIndex() != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+				shard = getShard(read.getReferenceName());
+			} else if (read.getReadPairedFlag() && read.getMateReferenceIndex() != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+				shard = getShard(read.getMateReferenceName());
+			}
+
+			if (shard != null) {
+				writers[shard].addAlignment(read);
+			} else {
+				passThrough.addAlignment(read);
+			}
+		}
+
+		for (SAMFileWriter writer : writers) {
+			writer.close();
+		}
+
+		passThrough.close();
+		reader.close();
+
+		log("Done splitting reads for: " + input);
+	}
+
+	private List<String> writeShardCommands() throws IOException {
+		List<String> commands = new ArrayList<String>();
+
+		BufferedWriter writer = new BufferedWriter(new FileWriter(workingDir + "/" + COMMANDS_FILE, false));
+		try {
+			for (int i=0; i<numShards; i++) {
+				String command = getShardCommand(i);
+				commands.add(command);
+				writer.write(command);
+				writer.write("\n");
+			}
+		} finally {
+			writer.close();
+		}
+
+		return commands;
+	}
+
+	private String getShardCommand(int shard) {
+		int numInputs = options.getInputFiles().length;
+		String[] shardInputs = new String[numInputs];
+		String[] shardOutputs = new String[numInputs];
+
+		for (int i=0; i<numInputs; i++) {
+			shardInputs[i] = getShardInput(shard, i);
+			shardOutputs[i] = getShardOutput(shard, i);
+		}
+
+		int threadsPerShard = Math.max(options.getNumThreads() / getNumShardProcesses(), 1);
+
+		Map<String, String> shardOptions = new HashMap<String, String>();
+		shardOptions.put("in", join(shardInputs));
+		shardOptions.put("out", join(shardOutputs));
+		shardOptions.put(options.hasPresetKmers() ? "target-kmers" : "targets", getShardTargets(shard));
+		shardOptions.put("working", getShardDir(shard) + "/work");
+		shardOptions.put("threads", String.valueOf(threadsPerShard));
+
+		if (options.getStructuralVariantFile() != null) {
+			shardOptions.put("sv", getShardDir(shard) + "/sv.txt");
+		}
+
+		if (options.getLocalRepeatFile() != null) {
+			shardOptions.put("lr", getShardDir(shard) + "/local_repeats.txt");
+		}
+
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + "/bin/java");
+		command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(Abra.class.getName());
+		command.addAll(getShardArgs(shardOptions));
+
+		StringBuffer cmd = new StringBuffer();
+		for (String arg : command) {
+			cmd.append(quote(arg));
+			cmd.append(' ');
+		}
+
+		cmd.append("> " + quote(getShardDir(shard) + "/abra.log") + " 2>&1");
+
+		return cmd.toString();
+	}
+
+	// Original args with shard specific options replaced and sharding options removed.
+	private List<String> getShardArgs(Map<String, String> shardOptions) {
+		List<String> shardArgs = new ArrayList<String>();
+		List<String> replaced = Arrays.asList(SHARD_SPECIFIC_OPTIONS);
+		List<String> shardingOptions = options.getShardingOptions();
+
+		for (int i=0; i<args.length; i++) {
+			String arg = args[i];
+			String name = arg.replaceFirst("^--?", "");
+			boolean hasInlineValue = name.contains("=");
+			if (hasInlineValue) {
+				name = name.substring(0, name.indexOf('='));
+			}
+
+			if (arg.startsWith("-") && (replaced.contains(name) || shardingOptions.contains(name))) {
+				// All of these options require a value.  Skip it if it is a separate arg.
+				if (!hasInlineValue) {
+					i += 1;
+				}
+			} else {
+				shardArgs.add(arg);
+			}
+		}
+
+		for (String name : shardOptions.keySet()) {
+			shardArgs.add("--" + name);
+			shardArgs.add(shardOptions.get(name));
+		}
+
+		return shardArgs;
+	}
+
+	private void runShards(List<String> commands) throws InterruptedException, IOException {
+		ThreadManager threadManager = new ThreadManager(getNumShardProcesses());
+
+		for (String command : commands) {
+			threadManager.spawnThread(new ShardRunnable(threadManager, command));
+		}
+
+		threadManager.waitForAllThreadsToComplete();
+	}
+
+	private int getNumShardProcesses() {
+		return Math.min(options.getNumShardProcesses(), numShards);
+	}
+
+	private void merge() throws IOException {
+		String[] inputs = options.getInputFiles();
+		String[] outputs = options.getOutputFiles();
+
+		SAMFileWriterFactory writerFactory = new SAMFileWriterFactory();
+
+		for (int i=0; i<inputs.length; i++) {
+			log("Merging shards for: " + outputs[i]);
+
+			SAMFileReader inputReader = new SAMFileReader(new File(inputs[i]));
+			SAMFileHeader header = inputReader.getFileHeader();
+			header.setSortOrder(SAMFileHeader.SortOrder.unsorted);
+			inputReader.close();
+
+			SAMFileWriter writer = writerFactory.makeBAMWriter(header, false, new File(outputs[i]), ReAligner.COMPRESSION_LEVEL);
+
+			for (int shard=0; shard<numShards; shard++) {
+				appendSam(getShardOutput(shard, i), writer);
+			}
+
+			appendSam(getPassThroughBam(i), writer);
+
+			writer.close();
+		}
+
+		if (options.getStructuralVariantFile() != null) {
+			mergeText(options.getStructuralVariantFile(), "sv.txt");
+		}
+
+		if (options.getLocalRepeatFile() != null) {
+			mergeText(options.getLocalRepeatFile(), "local_repeats.txt");
+		}
+	}
+
+	private void appendSam(String input, SAMFileWriter writer) {
+		SAMFileReader reader = new SAMFileReader(new File(input));
+		reader.setValidationStringency(ValidationStringency.SILENT);
+
+		for (SAMRecord read : reader) {
+			writer.addAlignment(read);
+		}
+
+		reader.close();
+	}
+
+	private void mergeText(String output, String shardFilename) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(output, false));
+		try {
+			for (int shard=0; shard<numShards; shard++) {
+				File file = new File(getShardDir(shard) + "/" + shardFilename);
+				if (file.exists()) {
+					BufferedReader reader = new BufferedReader(new FileReader(file));
+					try {
+						String line = reader.readLine();
+						while (line != null) {
+							writer.write(line);
+							writer.write("\n");
+							line = reader.readLine();
+						}
+					} finally {
+						reader.close();
+					}
+				}
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	private String getShardDir(int shard) {
+		return workingDir + "/shard" + (shard+1);
+	}
+
+	private String getShardTargets(int shard) {
+		return getShardDir(shard) + "/targets.bed";
+	}
+
+	private String getShardInput(int shard, int sampleIdx) {
+		return getShardDir(shard) + "/input" + (sampleIdx+1) + ".bam";
+	}
+
+	private String getShardOutput(int shard, int sampleIdx) {
+		return getShardDir(shard) + "/output" + (sampleIdx+1) + ".bam";
+	}
+
+	private String getPassThroughBam(int sampleIdx) {
+		return workingDir + "/passthrough" + (sampleIdx+1) + ".bam";
+	}
+
+	private String join(String[] values) {
+		StringBuffer buf = new StringBuffer();
+		for (String value : values) {
+			if (buf.length() > 0) {
+				buf.append(',');
+			}
+			buf.append(value);
+		}
+		return buf.toString();
+	}
+
+	private String quote(String arg) {
+		if (arg.matches("[A-Za-z0-9_/.,=:+-]+")) {
+			return arg;
+		}
+		return "'" + arg.replace("'", "'\\''") + "'";
+	}
+
+	static class SplitRunnable extends AbraRunnable {
+		private ShardedReAligner sharder;
+		private int sampleIdx;
+		private String input;
+
+		public SplitRunnable(ThreadManager threadManager, ShardedReAligner sharder, int sampleIdx, String input) {
+			super(threadManager);
+			this.sharder = sharder;
+			this.sampleIdx = sampleIdx;
+			this.input = input;
+		}
+
+		@Override
+		public void go() throws Exception {
+			sharder.splitReads(sampleIdx, input);
+		}
+	}
+
+	static class ShardRunnable extends AbraRunnable {
+		private String command;
+
+		public ShardRunnable(ThreadManager threadManager, String command) {
+			super(threadManager);
+			this.command = command;
+		}
+
+		@Override
+		public void go() throws Exception {
+			OperatingSystemCommand.runCommand(new String[] { "bash", "-c", command });
+		}
+	}
+}
@@ -1,18 +1,25 @@
 package abra.cadabra;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import abra.CompareToReference2;
+import abra.Feature;
 import abra.ReadAdjuster;
+import abra.ThreadManager;
 
 import htsjdk.samtools.Cigar;
 import htsjdk.samtools.CigarElement;
 import htsjdk.samtools.CigarOperator;
 import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.TextCigarCodec;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
 
 public class Cadabra {
 
@@ -21,19 +28,106 @@ public class Cadabra {
 	private static final double MAX_NORMAL_OBS_AS_FRACTION_OF_TUMOR_OBS = 0.1;
 	private static final double MIN_TUMOR_FRACTION = 0.02;
 	
-	private ReadLocusReader normal;
-	private ReadLocusReader tumor;
+	// Genome partition size used when calling with multiple threads
+	private static final int PARTITION_SIZE = 10000000;
+	
 	private CompareToReference2 c2r;
 
-	public void callSomatic(String reference, String normal, String tumor) throws IOException {
+	public void callSomatic(String reference, String normal, String tumor) throws IOException, InterruptedException {
+		callSomatic(reference, normal, tumor, 1);
+	}
+	
+	/**
+	 * Calls somatic indels.  If multiple threads are specified, the genome is partitioned
+	 * and each partition is processed independently using indexed queries.  Output is
+	 * written in partition order, so is identical to single threaded output.
+	 * 
+	 * When the inputs are indexed, only windows around candidate tumor indels are walked.
+	 */
+	public void callSomatic(String reference, String normal, String tumor, int numThreads) throws IOException, InterruptedException {
 		c2r = new CompareToReference2();
 		c2r.init(reference);
 		
-		this.normal = new ReadLocusReader(normal);
-		this.tumor = new ReadLocusReader(tumor);
-		
 		outputHeader();
-		process();
+		
+		if (numThreads > 1) {
+			callSomaticByPartition(normal, tumor, numThreads);
+		} else {
+			ReadLocusReader normalReader = new ReadLocusReader(normal);
+			ReadLocusReader tumorReader = new ReadLocusReader(tumor);
+			
+			if (normalReader.hasIndex() && tumorReader.hasIndex()) {
+				processCandidates(normalReader, tumorReader, tumor, null, System.out);
+			} else {
+				System.err.println("BAM index not found.  Processing all loci.");
+				process(normalReader, tumorReader, null, System.out);
+			}
+			
+			normalReader.close();
+			tumorReader.close();
+		}
+	}
+	
+	private void callSomaticByPartition(String normal, String tumor, int numThreads) throws IOException, InterruptedException {
+		
+		ReadLocusReader reader = new ReadLocusReader(normal);
+		List<Feature> partitions = getPartitions(reader.getSamHeader().getSequenceDictionary(), PARTITION_SIZE);
+		reader.close();
+		
+		System.err.println("Calling somatic indels in " + partitions.size() + " partitions using " + numThreads + " threads");
+		
+		ThreadManager threadManager = new ThreadManager(numThreads);
+		ByteArrayOutputStream[] outputs = new ByteArrayOutputStream[partitions.size()];
+		
+		for (int i=0; i<partitions.size(); i++) {
+			outputs[i] = new ByteArrayOutputStream();
+			threadManager.spawnThread(new CadabraRunnable(threadManager, this, normal, tumor, partitions.get(i), outputs[i]));
+		}
+		
+		threadManager.waitForAllThreadsToComplete();
+		
+		for (ByteArrayOutputStream output : outputs) {
+			output.writeTo(System.out);
+		}
+		
+		System.out.flush();
+	}
+	
+	static List<Feature> getPartitions(SAMSequenceDictionary dict, int partitionSize) {
+		List<Feature> partitions = new ArrayList<Feature>();
+		
+		for (SAMSequenceRecord seq : dict.getSequences()) {
+			for (int start=1; start<=seq.getSequenceLength(); start+=partitionSize) {
+				int end = Math.min(start + partitionSize - 1, seq.getSequenceLength());
+				partitions.add(new Feature(seq.getSequenceName(), start, end));
+			}
+		}
+		
+		return partitions;
+	}
+	
+	void callSomatic(String normal, String tumor, Feature region, PrintStream output) {
+		ReadLocusReader normalReader = new ReadLocusReader(normal);
+		ReadLocusReader tumorReader = new ReadLocusReader(tumor);
+		processCandidates(normalReader, tumorReader, tumor, region, output);
+		normalReader.close();
+		tumorReader.close();
+	}
+	
+	// Walk loci only within windows containing candidate tumor indels.
+	// All other loci are skipped without building pileups.
+	private void processCandidates(ReadLocusReader normalReader, ReadLocusReader tumorReader, String tumor,
+			Feature region, PrintStream output) {
+		
+		List<Feature> windows = new IndelCandidateScanner().scan(tumor, region);
+		
+		System.err.println("Candidate windows: " + windows.size() + (region != null ? " in: " + region.getDescriptor() : ""));
+		
+		for (Feature window : windows) {
+			normalReader.setRegion(window);
+			tumorReader.setRegion(window);
+			process(normalReader, tumorReader, window, output);
+		}
 	}
 	
 	private void outputHeader() {
@@ -41,9 +135,12 @@ public class Cadabra {
 		System.out.println("#CHROM	POS	ID	REF	ALT	QUAL	FILTER	INFO	FORMAT	NORMAL	TUMOR");
 	}
 	
-	private void process() {
+	// Process loci in lock step across normal and tumor.  If region is specified,
+	// only loci within the region are processed.
+	private void process(ReadLocusReader normal, ReadLocusReader tumor, Feature region, PrintStream output) {
 		Iterator<ReadsAtLocus> normalIter = normal.iterator();
 		Iterator<ReadsAtLocus> tumorIter = tumor.iterator();
+		SAMSequenceDictionary dict = normal.getSamHeader().getSequenceDictionary();
 		
 		ReadsAtLocus normalReads = null;
 		ReadsAtLocus tumorReads = null;
@@ -52,19 +149,21 @@ public class Cadabra {
 		
 		while (normalIter.hasNext() && tumorIter.hasNext()) {
 			if (normalReads != null && tumorReads != null) {
-				int compare = normalReads.compareLoci(tumorReads, normal.getSamHeader().getSequenceDictionary());
+				int compare = normalReads.compareLoci(tumorReads, dict);
 				
 				if (compare < 0) {
 					normalReads = normalIter.next();
 				} else if (compare > 0) {
 					tumorReads = tumorIter.next();
 				} else {
-					processLocus(normalReads, tumorReads);
+					if (region == null || isInRegion(normalReads, region)) {
+						processLocus(normalReads, tumorReads, output);
+					}
 					normalReads = normalIter.next();
 					tumorReads = tumorIter.next();
 				}
 				
-				if ((count % 1000000) == 0) {
+				if (count > 0 && (count % 1000000) == 0) {
 					System.err.println("Position: " + normalReads.getChromosome() + ":" + normalReads.getPosition());
 				}
 				
@@ -76,13 +175,23 @@ public class Cadabra {
 		}
 	}
 	
-	private Character getBaseAtPosition(SAMRecord read, int refPos) {
-		int readPos = 0;
-		int refPosInRead = read.getAlignmentStart();
-		int cigarElementIdx = 0;
-		
-		while (refPosInRead <= refPos && cigarElementIdx < read.getCigar().numCigarElements() && readPos < read.getReadLength()) {
-			CigarElement elem = read.getCigar().getCigarElement(cigarElementIdx++);
+	private boolean isInRegion(ReadsAtLocus locus, Feature region) {
+		return locus.getPosition() >= region.getStart() && locus.getPosition() <= region.getEnd() &&
+				locus.getChromosome().equals(region.getSeqname());
+	}
+	
+	private Character getBaseAtPosition(ReadCursor cursor, int refPos) {
+		SAMRecord read = cursor.getRead();
+		List<CigarElement> elements = cursor.getCigarElements();
+		
+		// Resume from the cursor rather than walking the Cigar from the start
+		cursor.advance(refPos);
+		int readPos = cursor.getReadIndex();
+		int refPosInRead = cursor.getReferencePositionWithSkips();
+		int cigarElementIdx = cursor.getElementIndex();
+		
+		while (refPosInRead <= refPos && cigarElementIdx < elements.size() && readPos < read.getReadLength()) {
+			CigarElement elem = elements.get(cigarElementIdx++);
 			
 			switch(elem.getOperator()) {
 				case H: //NOOP
@@ -100,7 +209,7 @@ public class Cadabra {
 						readPos += refPos - refPosInRead;
 						if (readPos < read.getReadLength()) {
 							// Found the base.  Return it
-							return read.getReadString().charAt(readPos);
+							return (char) read.getReadBases()[readPos];
 						}
 					} else {
 						readPos += elem.getLength();
@@ -115,21 +224,20 @@ public class Cadabra {
 		return null;
 	}
 	
-	private boolean matchesReference(SAMRecord read, int refPos) {
+	private boolean matchesReference(ReadCursor cursor, int refPos, char refBase) {
 		boolean isMatch = false;
 	
-		if (!read.getReadUnmappedFlag()) {
-			Character base = getBaseAtPosition(read, refPos);
+		if (!cursor.getRead().getReadUnmappedFlag()) {
+			Character base = getBaseAtPosition(cursor, refPos);
 			if (base != null) {
-				String seq = c2r.getSequence(read.getReferenceName(), refPos, 1);
-				isMatch = base.charValue() == seq.charAt(0); 
+				isMatch = base.charValue() == refBase; 
 			}
 		}
 		
 		return isMatch;
 	}
 	
-	private void processLocus(ReadsAtLocus normalReads, ReadsAtLocus tumorReads) {
+	private void processLocus(ReadsAtLocus normalReads, ReadsAtLocus tumorReads, PrintStream output) {
 		String chromosome = normalReads.getChromosome();
 		int position = normalReads.getPosition();
 		
@@ -148,10 +256,15 @@ public class Cadabra {
 		
 		Map<String, Integer> insertBasesMap = new HashMap<String, Integer>();
 		
-		for (SAMRecord read : tumorReads.getReads()) {
+		// Reference base is shared by all reads at this locus
+		String refSeq = c2r.getSequence(chromosome, position, 1);
+		char refBase = refSeq.length() > 0 ? refSeq.charAt(0) : 'N';
+		
+		for (ReadCursor cursor : tumorReads.getReads()) {
+			SAMRecord read = cursor.getRead();
 			if (!read.getDuplicateReadFlag()) {
 			
-				IndelInfo readElement = checkForIndelAtLocus(read, position);
+				IndelInfo readElement = checkForIndelAtLocus(cursor, position);
 				
 				if (readElement != null) {
 					Integer ymInt = (Integer) read.getAttribute(ReadAdjuster.MISMATCHES_TO_CONTIG_TAG);
@@ -165,7 +278,7 @@ public class Cadabra {
 						}
 						totalMismatchCount += ym;
 					}
-				} else if (matchesReference(read, position)) {
+				} else if (matchesReference(cursor, position, refBase)) {
 					tumorRefCount += 1;
 				}
 				
@@ -207,13 +320,14 @@ public class Cadabra {
 		
 		if (tumorCount >= MIN_SUPPORTING_READS && hasSufficientDistanceFromReadEnd && tumorFraction >= MIN_TUMOR_FRACTION) {
 			
-			for (SAMRecord read : normalReads.getReads()) {
+			for (ReadCursor cursor : normalReads.getReads()) {
+				SAMRecord read = cursor.getRead();
 				if (!read.getDuplicateReadFlag()) {
-					IndelInfo normalInfo = checkForIndelAtLocus(read.getAlignmentStart(), read.getCigar(), position);
+					IndelInfo normalInfo = checkForReadIndelAtLocus(cursor, position);
 					
 					if (normalInfo != null && sufficientDistanceFromReadEnd(read, normalInfo.getReadIndex())) {
 						normalCount += 1;					
-					} else if (normalInfo == null && matchesReference(read, position)) {
+					} else if (normalInfo == null && matchesReference(cursor, position, refBase)) {
 						normalRefCount += 1;
 					}
 				}
@@ -237,7 +351,7 @@ public class Cadabra {
 			
 			outputRecord(chromosome, position, normalReads, tumorReads, tumorIndel,
 					tumorCount, tumorRefCount, insertBases, maxContigMapq, mismatch0Count, mismatch1Count, totalMismatchCount, minReadIndex, maxReadIndex,
-					normalCount, normalRefCount, repeatPeriod, qual);
+					normalCount, normalRefCount, repeatPeriod, qual, output);
 		}
 	}
 	
@@ -345,7 +459,7 @@ public class Cadabra {
 			ReadsAtLocus normalReads, ReadsAtLocus tumorReads, CigarElement indel,
 			int tumorObs, int tumorRefObs, String insertBases, int maxContigMapq, int ym0, int ym1, int totalYm,
 			int minReadIndex, int maxReadIndex, int normalObs, int normalRefObs, int repeatPeriod,
-			double qual) {
+			double qual, PrintStream output) {
 		
 		int normalDepth = normalReads.getReads().size();
 		int tumorDepth = tumorReads.getReads().size();
@@ -401,29 +515,22 @@ public class Cadabra {
 		buf.append(':');
 		buf.append(maxReadIndex);
 		
-		System.out.println(buf.toString());
+		output.println(buf.toString());
 	}
 	
 
-	private IndelInfo checkForIndelAtLocus(SAMRecord read, int refPos) {
+	private IndelInfo checkForIndelAtLocus(ReadCursor cursor, int refPos) {
 		IndelInfo elem = null;
+		SAMRecord read = cursor.getRead();
 		
-		String contigInfo = read.getStringAttribute("YA");
-		if (contigInfo != null) {
-			// Get assembled contig info.
-			String[] fields = contigInfo.split(":");
-			int contigPos = Integer.parseInt(fields[1]);
-			
-//			Cigar contigCigar = TextCigarCodec.getSingleton().decode(fields[2]);
-			Cigar contigCigar = TextCigarCodec.decode(fields[2]);
-			
+		// Assembled contig info is parsed once per read
+		if (cursor.hasContig()) {
 			// Check to see if contig contains indel at current locus
-			elem = checkForIndelAtLocus(contigPos, contigCigar, refPos);
+			elem = checkForIndelAtLocus(cursor.getContigPosition(), cursor.getContigCigar(), refPos);
 			
 			if (elem != null) {
 				// Now check to see if this read supports the indel
-				IndelInfo readElem = checkForIndelAtLocus(read.getAlignmentStart(),
-						read.getCigar(), refPos);
+				IndelInfo readElem = checkForReadIndelAtLocus(cursor, refPos);
 				
 				// Allow partially overlapping indels to support contig
 				// (Should only matter for inserts)
@@ -449,12 +556,21 @@ public class Cadabra {
 	
 	
 	private IndelInfo checkForIndelAtLocus(int alignmentStart, Cigar cigar, int refPos) {
+		return checkForIndelAtLocus(cigar.getCigarElements(), 0, 0, alignmentStart, refPos);
+	}
+	
+	private IndelInfo checkForReadIndelAtLocus(ReadCursor cursor, int refPos) {
+		cursor.advance(refPos);
+		return checkForIndelAtLocus(cursor.getCigarElements(), cursor.getElementIndex(), cursor.getReadIndex(),
+				cursor.getReferencePosition(), refPos);
+	}
+	
+	private IndelInfo checkForIndelAtLocus(List<CigarElement> elements, int elementIdx, int readIdx, int currRefPos, int refPos) {
 		
 		IndelInfo ret = null;
 		
-		int readIdx = 0;
-		int currRefPos = alignmentStart;
-		for (CigarElement element : cigar.getCigarElements()) {
+		for (int i=elementIdx; i<elements.size(); i++) {
+			CigarElement element = elements.get(i);
 			if (element.getOperator() == CigarOperator.M) {
 				readIdx += element.getLength();
 				currRefPos += element.getLength();
@@ -504,14 +620,15 @@ public class Cadabra {
 //		String tumor = "/home/lmose/dev/abra/cadabra/ins/ttest.bam";
 		
 		if (args.length < 3) {
-			System.out.println("Usage: java -cp abra.jar abra.cadabra.Cadabra <reference> <normal_bam> <tumor_bam>");
+			System.out.println("Usage: java -cp abra.jar abra.cadabra.Cadabra <reference> <normal_bam> <tumor_bam> [num_threads]");
 			System.exit(-1);
 		}
 		
 		String reference = args[0];
 		String normal = args[1];
 		String tumor = args[2];
+		int numThreads = args.length > 3 ? Integer.parseInt(args[3]) : 1;
 		
-		new Cadabra().callSomatic(reference, normal, tumor);
+		new Cadabra().callSomatic(reference, normal, tumor, numThreads);
 	}
 }
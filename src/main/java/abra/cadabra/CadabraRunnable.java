@@ -0,0 +1,39 @@
+package abra.cadabra;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import abra.AbraRunnable;
+import abra.Feature;
+import abra.ThreadManager;
+
+/**
+ * Calls somatic indels within a single genome partition.
+ * 
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class CadabraRunnable extends AbraRunnable {
+	
+	private Cadabra cadabra;
+	private String normal;
+	private String tumor;
+	private Feature region;
+	private ByteArrayOutputStream output;
+
+	public CadabraRunnable(ThreadManager threadManager, Cadabra cadabra, String normal, String tumor,
+			Feature region, ByteArrayOutputStream output) {
+		super(threadManager);
+		this.cadabra = cadabra;
+		this.normal = normal;
+		this.tumor = tumor;
+		this.region = region;
+		this.output = output;
+	}
+
+	@Override
+	public void go() throws Exception {
+		PrintStream out = new PrintStream(output);
+		cadabra.callSomatic(normal, tumor, region, out);
+		out.flush();
+	}
+}
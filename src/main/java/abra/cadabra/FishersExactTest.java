@@ -1,54 +1,161 @@
 package abra.cadabra;
 
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Basic Fisher's exact test implementation.
  * 
  * Caches factorial values in log space across calculations, thus speeding things up (a bit).
+ * The cache grows on demand, so tables of any size are evaluated exactly.  Beyond MAX_CACHE_SIZE
+ * log factorials are computed using Stirling's series.
+ * 
+ * p-values are memoized by contingency table, as the same count combinations recur frequently.
  *  
  * @author lmose
  */
 public class FishersExactTest {
 
-	private static int MAX_SIZE = 5000;
+	private static final int INITIAL_SIZE = 5000;
+	
+	// Upper bound on the factorial cache (8MB)
+	private static final int MAX_CACHE_SIZE = 1 << 20;
+	
+	// Memoized p-values are discarded once this many tables have been cached
+	private static final int MAX_MEMO_SIZE = 100000;
 	
 	// Cache of factorial values in log space
-	private static double[] factorialCache = new double[MAX_SIZE+1];
+	private static volatile double[] factorialCache = buildCache(new double[0], INITIAL_SIZE+1);
+	
+	private static ConcurrentMap<Table, Double> oneTailedMemo = new ConcurrentHashMap<Table, Double>();
+	private static ConcurrentMap<Table, Double> twoTailedMemo = new ConcurrentHashMap<Table, Double>();
+	
+	private static double[] buildCache(double[] cache, int size) {
+		double[] updated = new double[size];
+		System.arraycopy(cache, 0, updated, 0, cache.length);
+		
+		for (int i=Math.max(cache.length, 1); i<size; i++) {
+			updated[i] = updated[i-1] + Math.log(i);
+		}
+		
+		return updated;
+	}
 	
-	static {
-		init();
+	// Grows the cache to accommodate n if needed.
+	private static synchronized void ensureCapacity(int n) {
+		if (n >= factorialCache.length && factorialCache.length < MAX_CACHE_SIZE) {
+			int size = Math.min(Math.max(n+1, factorialCache.length * 2), MAX_CACHE_SIZE);
+			factorialCache = buildCache(factorialCache, size);
+		}
 	}
 	
-	private static void init() {
-		for (int i=1; i<=MAX_SIZE; i++) {
-			factorialCache[i] = factorialCache[i-1] + Math.log(i);
+	static double logFactorial(int n) {
+		double[] cache = factorialCache;
+		
+		if (n < cache.length) {
+			return cache[n];
+		}
+		
+		if (n < MAX_CACHE_SIZE) {
+			ensureCapacity(n);
+			return factorialCache[n];
 		}
+		
+		// Stirling's series for ln(n!).  Error is negligible at this size.
+		double x = n;
+		return x * Math.log(x) - x + 0.5 * Math.log(2 * Math.PI * x) + 1.0 / (12.0 * x) - 1.0 / (360.0 * x * x * x);
 	}
 	
 	public double oneTailedTest(int normalRef, int normalAlt, int tumorRef, int tumorAlt) {
+		Table table = new Table(normalRef, normalAlt, tumorRef, tumorAlt);
+		
+		Double pValue = oneTailedMemo.get(table);
+		
+		if (pValue == null) {
+			pValue = calcOneTailed(normalRef, normalAlt, tumorRef, tumorAlt);
+			memoize(oneTailedMemo, table, pValue);
+		}
+		
+		return pValue;
+	}
+	
+	public double twoTailedTest(int normalRef, int normalAlt, int tumorRef, int tumorAlt) {
+		Table table = new Table(normalRef, normalAlt, tumorRef, tumorAlt);
+		
+		Double pValue = twoTailedMemo.get(table);
+		
+		if (pValue == null) {
+			pValue = calcTwoTailed(normalRef, normalAlt, tumorRef, tumorAlt);
+			memoize(twoTailedMemo, table, pValue);
+		}
+		
+		return pValue;
+	}
+	
+	/**
+	 * Evaluates the one tailed test for many tables.  Index i of each input array describes table i.
+	 */
+	public double[] oneTailedTest(int[] normalRef, int[] normalAlt, int[] tumorRef, int[] tumorAlt) {
+		ensureCapacity(getMaxSize(normalRef, normalAlt, tumorRef, tumorAlt));
+		
+		double[] pValues = new double[normalRef.length];
+		for (int i=0; i<pValues.length; i++) {
+			pValues[i] = oneTailedTest(normalRef[i], normalAlt[i], tumorRef[i], tumorAlt[i]);
+		}
+		
+		return pValues;
+	}
+	
+	/**
+	 * Evaluates the two tailed test for many tables.  Index i of each input array describes table i.
+	 */
+	public double[] twoTailedTest(int[] normalRef, int[] normalAlt, int[] tumorRef, int[] tumorAlt) {
+		ensureCapacity(getMaxSize(normalRef, normalAlt, tumorRef, tumorAlt));
+		
+		double[] pValues = new double[normalRef.length];
+		for (int i=0; i<pValues.length; i++) {
+			pValues[i] = twoTailedTest(normalRef[i], normalAlt[i], tumorRef[i], tumorAlt[i]);
+		}
+		
+		return pValues;
+	}
+	
+	private int getMaxSize(int[] normalRef, int[] normalAlt, int[] tumorRef, int[] tumorAlt) {
+		if (normalAlt.length != normalRef.length || tumorRef.length != normalRef.length || tumorAlt.length != normalRef.length) {
+			throw new IllegalArgumentException("Contingency table arrays must be of equal length");
+		}
+		
+		int max = 0;
+		for (int i=0; i<normalRef.length; i++) {
+			max = Math.max(max, normalRef[i] + normalAlt[i] + tumorRef[i] + tumorAlt[i]);
+		}
+		
+		return max;
+	}
+	
+	private void memoize(ConcurrentMap<Table, Double> memo, Table table, double pValue) {
+		if (memo.size() >= MAX_MEMO_SIZE) {
+			memo.clear();
+		}
+		
+		memo.put(table, pValue);
+	}
+	
+	private double calcOneTailed(int normalRef, int normalAlt, int tumorRef, int tumorAlt) {
 		int row1Col1 = normalRef;
 		int row1Col2 = normalAlt;
 		int row2Col1 = tumorRef;
 		int row2Col2 = tumorAlt;
 		
 		int n = row1Col1 + row1Col2 + row2Col1 + row2Col2;
-		if (n > MAX_SIZE) {
-			double scale = (double) MAX_SIZE / (double) n;
-			row1Col1 = (int) (row1Col1 * scale);
-			row1Col2 = (int) (row1Col2 * scale);
-			row2Col1 = (int) (row2Col1 * scale);
-			row2Col2 = (int) (row2Col2 * scale);
-			
-			n = row1Col1 + row1Col2 + row2Col1 + row2Col2;
-		}
 
 		int row1Sum = row1Col1 + row1Col2;
 		int row2Sum = row2Col1 + row2Col2;
 		int col1Sum = row1Col1 + row2Col1;
 		int col2Sum = row1Col2 + row2Col2;
 		
-		double numerator = factorialCache[row1Sum] + factorialCache[row2Sum] + factorialCache[col1Sum] + factorialCache[col2Sum];
+		double numerator = logFactorial(row1Sum) + logFactorial(row2Sum) + logFactorial(col1Sum) + logFactorial(col2Sum);
 		
 		double pObserved = getPForTable(row1Col1, row1Col2, row2Col1, row2Col2, n, numerator);
 		double pValue = pObserved;
@@ -71,22 +178,13 @@ public class FishersExactTest {
 	}
 	
 	//TODO: Extract shared code
-	public double twoTailedTest(int normalRef, int normalAlt, int tumorRef, int tumorAlt) {
+	private double calcTwoTailed(int normalRef, int normalAlt, int tumorRef, int tumorAlt) {
 		int row1Col1 = normalRef;
 		int row1Col2 = normalAlt;
 		int row2Col1 = tumorRef;
 		int row2Col2 = tumorAlt;
 		
 		int n = row1Col1 + row1Col2 + row2Col1 + row2Col2;
-		if (n > MAX_SIZE) {
-			double scale = (double) MAX_SIZE / (double) n;
-			row1Col1 = (int) (row1Col1 * scale);
-			row1Col2 = (int) (row1Col2 * scale);
-			row2Col1 = (int) (row2Col1 * scale);
-			row2Col2 = (int) (row2Col2 * scale);
-			
-			n = row1Col1 + row1Col2 + row2Col1 + row2Col2;
-		}
 		
 		int row1Col1Start = row1Col1;
 		int row1Col2Start = row1Col2;
@@ -98,7 +196,7 @@ public class FishersExactTest {
 		int col1Sum = row1Col1 + row2Col1;
 		int col2Sum = row1Col2 + row2Col2;
 		
-		double numerator = factorialCache[row1Sum] + factorialCache[row2Sum] + factorialCache[col1Sum] + factorialCache[col2Sum];
+		double numerator = logFactorial(row1Sum) + logFactorial(row2Sum) + logFactorial(col1Sum) + logFactorial(col2Sum);
 		
 		double pObserved = getPForTable(row1Col1, row1Col2, row2Col1, row2Col2, n, numerator);
 		double pValue = pObserved;
@@ -141,13 +239,44 @@ public class FishersExactTest {
 	}
 	
 	private double getPForTable(int r1c1, int r1c2, int r2c1, int r2c2, int n, double numerator) {
-		//TODO: Remove this as optimization
-		if ((r1c1 + r1c2 + r2c1 + r2c2) != n) throw new IllegalArgumentException("Invalid contigency table");
-		
-		double denominator = factorialCache[r1c1] + factorialCache[r1c2] + factorialCache[r2c1] + factorialCache[r2c2] + factorialCache[n];  
+		double denominator = logFactorial(r1c1) + logFactorial(r1c2) + logFactorial(r2c1) + logFactorial(r2c2) + logFactorial(n);  
 		return Math.exp(numerator - denominator);
 	}
 	
+	// Memoization key
+	static class Table {
+		private int r1c1;
+		private int r1c2;
+		private int r2c1;
+		private int r2c2;
+		
+		Table(int r1c1, int r1c2, int r2c1, int r2c2) {
+			this.r1c1 = r1c1;
+			this.r1c2 = r1c2;
+			this.r2c1 = r2c1;
+			this.r2c2 = r2c2;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = 31 + r1c1;
+			result = 31 * result + r1c2;
+			result = 31 * result + r2c1;
+			result = 31 * result + r2c2;
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Table))
+				return false;
+			Table other = (Table) obj;
+			return r1c1 == other.r1c1 && r1c2 == other.r1c2 && r2c1 == other.r2c1 && r2c2 == other.r2c2;
+		}
+	}
+	
 	private static int nextRand(Random r) {
 		return r.nextInt(10000);
 	}
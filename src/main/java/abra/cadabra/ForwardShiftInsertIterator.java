@@ -1,8 +1,9 @@
 package abra.cadabra;
 
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.Iterator;
-import java.util.NavigableSet;
-import java.util.TreeSet;
 
 import htsjdk.samtools.CigarOperator;
 import htsjdk.samtools.SAMRecord;
@@ -11,16 +12,33 @@ public class ForwardShiftInsertIterator implements Iterator<SAMRecord> {
 	
 	private Iterator<SAMRecord> iter;
 	
-	// Cached reads sorted by adjusted alignment start position.
-	private NavigableSet<InsertShiftSAMRecord> cache = new TreeSet<InsertShiftSAMRecord>();
+	// Reads with a leading insertion are shifted back by one base, so reads are only
+	// ever out of order by a few bases.  Cached reads are held in a ring of buckets,
+	// one per adjusted alignment start, indexed by adjustedStart - cacheStart.
+	private static final int MAX_CACHE_SPAN = 16;
+	
+	private ReadBucket[] buckets = new ReadBucket[MAX_CACHE_SPAN];
+	private int head = 0;
+	private int span = 0;
+	private int cacheStart;
+	private int cacheReferenceIndex;
+	private int size = 0;
+	
+	// Reads on another reference or too far ahead of the ring, in input order.
+	private Deque<SAMRecord> pending = new ArrayDeque<SAMRecord>();
+	
+	private SAMRecord last;
 
 	public ForwardShiftInsertIterator(Iterator<SAMRecord> iter) {
 		this.iter = iter;
+		for (int i=0; i<buckets.length; i++) {
+			buckets[i] = new ReadBucket();
+		}
 	}
 	
 	@Override
 	public boolean hasNext() {
-		return !cache.isEmpty() || iter.hasNext();
+		return size > 0 || !pending.isEmpty() || iter.hasNext();
 	}
 
 	@Override
@@ -28,30 +46,128 @@ public class ForwardShiftInsertIterator implements Iterator<SAMRecord> {
 
 		SAMRecord read = null;
 		boolean isCacheUpToDate = false;
-		if (!cache.isEmpty()) {
-			InsertShiftSAMRecord first = cache.first();
-			InsertShiftSAMRecord last = cache.last();
+		if (size > 0 || !pending.isEmpty()) {
+			SAMRecord first = peekFirst();
 			
 			// Don't seek too far ahead
-			if (last.read.getAlignmentStart() > first.read.getAlignmentStart()+2 || !last.read.getReferenceName().equals(first.read.getReferenceName())) {
+			if (last.getAlignmentStart() > first.getAlignmentStart()+2 || last.getReferenceIndex() != first.getReferenceIndex()) {
 				isCacheUpToDate = true;
 			}
 			
-			read = first.read;
+			read = first;
 		} else {
 			read = iter.next();
-			cache.add(new InsertShiftSAMRecord(read));
+			add(read);
 		}
 		
-		int cacheStart = read.getAlignmentStart() + 1;
-		String cacheChromosome = read.getReferenceName();
+		int nextStart = read.getAlignmentStart() + 1;
+		int nextReferenceIndex = read.getReferenceIndex();
 		
-		while (!isCacheUpToDate && iter.hasNext() && read.getAlignmentStart() <= cacheStart+1 && read.getReferenceName().equals(cacheChromosome)) {
+		while (!isCacheUpToDate && iter.hasNext() && read.getAlignmentStart() <= nextStart+1 && read.getReferenceIndex() == nextReferenceIndex) {
 			read = iter.next();
-			cache.add(new InsertShiftSAMRecord(read));
+			add(read);
+		}
+		
+		return pollFirst();
+	}
+	
+	private void add(SAMRecord read) {
+		last = read;
+		
+		if (!pending.isEmpty()) {
+			pending.add(read);
+			return;
+		}
+		
+		int start = getAdjustedStart(read);
+		
+		if (size == 0) {
+			// Allow for a subsequent read at the same position shifted back by a leading insertion.
+			rebase(read.getReferenceIndex(), start-1);
+		}
+		
+		int offset = start - cacheStart;
+		
+		if (read.getReferenceIndex() != cacheReferenceIndex || offset >= MAX_CACHE_SPAN) {
+			pending.add(read);
+			return;
+		}
+		
+		if (offset < 0) {
+			// Shifted before the first cached position, extend the ring backwards.
+			if (span - offset > MAX_CACHE_SPAN) {
+				pending.add(read);
+				return;
+			}
+			head = (head + offset + MAX_CACHE_SPAN) % MAX_CACHE_SPAN;
+			span -= offset;
+			cacheStart = start;
+			offset = 0;
+		}
+		
+		ReadBucket bucket = getBucket(offset);
+		
+		// A read with a leading insertion may duplicate a read cached at the shifted position.
+		if (start != read.getAlignmentStart() && bucket.contains(read)) {
+			return;
 		}
 		
-		return cache.pollFirst().read;
+		bucket.add(read);
+		span = Math.max(span, offset+1);
+		size += 1;
+	}
+	
+	private void rebase(int referenceIndex, int start) {
+		for (int i=0; i<span; i++) {
+			getBucket(i).clear();
+		}
+		head = 0;
+		span = 0;
+		cacheStart = start;
+		cacheReferenceIndex = referenceIndex;
+	}
+	
+	private ReadBucket getBucket(int offset) {
+		return buckets[(head + offset) % MAX_CACHE_SPAN];
+	}
+	
+	// Skips empty buckets at the head of the ring, refilling from pending reads when the ring is empty.
+	private void advance() {
+		while (size == 0 && !pending.isEmpty()) {
+			Deque<SAMRecord> reads = pending;
+			pending = new ArrayDeque<SAMRecord>();
+			for (SAMRecord read : reads) {
+				add(read);
+			}
+		}
+		
+		while (span > 0 && getBucket(0).isEmpty()) {
+			getBucket(0).clear();
+			head = (head + 1) % MAX_CACHE_SPAN;
+			span -= 1;
+			cacheStart += 1;
+		}
+	}
+	
+	private SAMRecord peekFirst() {
+		advance();
+		return getBucket(0).peek();
+	}
+	
+	private SAMRecord pollFirst() {
+		advance();
+		size -= 1;
+		return getBucket(0).poll();
+	}
+	
+	static int getAdjustedStart(SAMRecord read) {
+		int start = read.getAlignmentStart();
+		
+		if (read.getCigarLength() > 0 && read.getCigar().getCigarElement(0).getOperator() == CigarOperator.I) {
+			start = start - 1;
+		}
+		
+		return start;
 	}
 
 	@Override
@@ -59,36 +175,47 @@ public class ForwardShiftInsertIterator implements Iterator<SAMRecord> {
 		throw new UnsupportedOperationException();
 	}
 	
-	static class InsertShiftSAMRecord implements Comparable<InsertShiftSAMRecord> {
-		private SAMRecord read;
+	/**
+	 * Reads sharing an adjusted alignment start, in input order.
+	 */
+	static class ReadBucket {
+		private SAMRecord[] reads = new SAMRecord[16];
+		private int size = 0;
+		private int next = 0;
 		
-		InsertShiftSAMRecord(SAMRecord read) {
-			this.read = read;
+		void add(SAMRecord read) {
+			if (size == reads.length) {
+				reads = Arrays.copyOf(reads, size * 2);
+			}
+			reads[size++] = read;
 		}
 		
-		public int getAlignmentStart() {
-			int start = read.getAlignmentStart();
-			
-			if (read.getCigarLength() > 0 && read.getCigar().getCigarElement(0).getOperator() == CigarOperator.I) {
-				start = start - 1;
-			}
-			
-			return start;
+		boolean isEmpty() {
+			return next == size;
 		}
-
-		@Override
-		public int compareTo(InsertShiftSAMRecord that) {
-			int compare = this.read.getReferenceIndex() - that.read.getReferenceIndex();
-			if (compare == 0) {
-				compare = this.getAlignmentStart() - that.getAlignmentStart();
-			}
-			if (compare == 0) {
-				compare = this.read.getReadName().compareTo(that.read.getReadName());
-			}
-			if (compare == 0) {
-				compare = this.read.getFlags() - that.read.getFlags();
+		
+		SAMRecord peek() {
+			return reads[next];
+		}
+		
+		SAMRecord poll() {
+			SAMRecord read = reads[next];
+			reads[next++] = null;
+			return read;
+		}
+		
+		boolean contains(SAMRecord read) {
+			for (int i=next; i<size; i++) {
+				if (reads[i].getFlags() == read.getFlags() && reads[i].getReadName().equals(read.getReadName())) {
+					return true;
+				}
 			}
-			return compare;
+			return false;
+		}
+		
+		void clear() {
+			size = 0;
+			next = 0;
 		}
 	}
 }
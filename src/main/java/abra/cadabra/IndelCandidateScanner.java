@@ -0,0 +1,117 @@
+package abra.cadabra;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import abra.Feature;
+
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMFileReader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.util.CloseableIterator;
+
+/**
+ * Identifies windows containing candidate somatic indel loci prior to the locus walk.
+ * A candidate locus is the reference position preceding an insertion or deletion in
+ * a non duplicate read aligned to an assembled contig (YA tag).  Loci without such a read
+ * cannot produce a call.
+ * 
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class IndelCandidateScanner {
+	
+	// Candidates within this distance are evaluated in a single window
+	private static final int MAX_CANDIDATE_GAP = 200;
+	
+	private List<Feature> windows = new ArrayList<Feature>();
+	private String chromosome = null;
+	private int[] positions = new int[1024];
+	private int numPositions = 0;
+
+	/**
+	 * Returns windows sorted by coordinate.  If region is null, the entire BAM is scanned.
+	 */
+	public List<Feature> scan(String bam, Feature region) {
+		
+		SAMFileReader reader = new SAMFileReader(new File(bam));
+		reader.setValidationStringency(ValidationStringency.SILENT);
+		
+		CloseableIterator<SAMRecord> iter;
+		if (region != null) {
+			iter = reader.queryOverlapping(region.getSeqname(),
+					(int) Math.max(region.getStart()-1, 1), (int) region.getEnd()+1);
+		} else {
+			iter = reader.iterator();
+		}
+		
+		while (iter.hasNext()) {
+			SAMRecord read = iter.next();
+			
+			if (!read.getReadUnmappedFlag() && !read.getDuplicateReadFlag() && read.getAttribute("YA") != null) {
+				if (!read.getReferenceName().equals(chromosome)) {
+					flush();
+					chromosome = read.getReferenceName();
+				}
+				
+				addCandidates(read, region);
+			}
+		}
+		
+		flush();
+		
+		iter.close();
+		reader.close();
+		
+		return windows;
+	}
+	
+	private void addCandidates(SAMRecord read, Feature region) {
+		int refPos = read.getAlignmentStart();
+		
+		for (CigarElement element : read.getCigar().getCigarElements()) {
+			if (element.getOperator() == CigarOperator.M) {
+				refPos += element.getLength();
+			} else if (element.getOperator() == CigarOperator.I) {
+				addPosition(refPos-1, region);
+			} else if (element.getOperator() == CigarOperator.D) {
+				addPosition(refPos-1, region);
+				refPos += element.getLength();
+			}
+		}
+	}
+	
+	private void addPosition(int position, Feature region) {
+		if (region == null || (position >= region.getStart() && position <= region.getEnd())) {
+			if (numPositions == positions.length) {
+				positions = Arrays.copyOf(positions, positions.length * 2);
+			}
+			positions[numPositions++] = position;
+		}
+	}
+	
+	// Merge the current chromosome's candidates into windows
+	private void flush() {
+		if (numPositions > 0) {
+			Arrays.sort(positions, 0, numPositions);
+			
+			int start = positions[0];
+			int end = positions[0];
+			
+			for (int i=1; i<numPositions; i++) {
+				if (positions[i] - end > MAX_CANDIDATE_GAP) {
+					windows.add(new Feature(chromosome, start, end));
+					start = positions[i];
+				}
+				end = positions[i];
+			}
+			
+			windows.add(new Feature(chromosome, start, end));
+		}
+		
+		numPositions = 0;
+	}
+}
@@ -0,0 +1,98 @@
+package abra.cadabra;
+
+import java.util.Arrays;
+
+/**
+ * Base, edge, indel and strand counts for the reads at a single locus held in primitive arrays.
+ * Instances are cleared and reused from one locus to the next.
+ *
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class LocusCounts {
+
+	// Base indices
+	static final int A = 0;
+	static final int C = 1;
+	static final int T = 2;
+	static final int G = 3;
+	static final int N = 4;
+	static final int INDEL = 5;
+
+	static final char[] BASES = { 'A', 'C', 'T', 'G' };
+
+	private int[] baseCounts = new int[N+1];
+	private int[] edgeCounts = new int[N+1];
+	// Strand counts include indels
+	private int[] forwardCounts = new int[INDEL+1];
+	private int[] reverseCounts = new int[INDEL+1];
+	private int indelCount;
+
+	public void clear() {
+		Arrays.fill(baseCounts, 0);
+		Arrays.fill(edgeCounts, 0);
+		Arrays.fill(forwardCounts, 0);
+		Arrays.fill(reverseCounts, 0);
+		indelCount = 0;
+	}
+
+	/**
+	 * Counts a read's base at this locus.  If the read contains an indel at this locus, the read's
+	 * strand is counted for the indel rather than the base.
+	 */
+	public void add(char base, boolean isNearEdge, boolean isIndel, boolean isNegativeStrand) {
+		int idx = getIndex(base);
+
+		baseCounts[idx] += 1;
+		if (isNearEdge) {
+			edgeCounts[idx] += 1;
+		}
+
+		if (isIndel) {
+			indelCount += 1;
+			idx = INDEL;
+		}
+
+		if (idx != N) {
+			if (!isNegativeStrand) {
+				forwardCounts[idx] += 1;
+			} else {
+				reverseCounts[idx] += 1;
+			}
+		}
+	}
+
+	static int getIndex(char base) {
+		switch (base) {
+			case 'A':
+				return A;
+			case 'C':
+				return C;
+			case 'T':
+				return T;
+			case 'G':
+				return G;
+			default:
+				return N;
+		}
+	}
+
+	public int getCount(int idx) {
+		return baseCounts[idx];
+	}
+
+	public int getEdgeCount(int idx) {
+		return edgeCounts[idx];
+	}
+
+	public int getForwardCount(int idx) {
+		return forwardCounts[idx];
+	}
+
+	public int getReverseCount(int idx) {
+		return reverseCounts[idx];
+	}
+
+	public int getIndelCount() {
+		return indelCount;
+	}
+}
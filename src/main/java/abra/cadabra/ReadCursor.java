@@ -0,0 +1,173 @@
+package abra.cadabra;
+
+import java.util.List;
+
+import htsjdk.samtools.Cigar;
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.TextCigarCodec;
+
+/**
+ * Tracks a read's Cigar position as the pileup advances along the reference.
+ * Cigar elements that cannot affect the current or any subsequent locus are skipped,
+ * so evaluating a read at consecutive loci does not require walking the Cigar from the start.
+ * 
+ * Loci are expected in increasing order.  Moving backwards resets the cursor.
+ * 
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class ReadCursor {
+
+	private SAMRecord read;
+	private List<CigarElement> elements;
+	
+	private int elementIdx;
+	private int readIdx;
+	// Reference position at start of current element.  Skipped regions (N) are not counted.
+	private int refPos;
+	// Reference position at start of current element including skipped regions.
+	private int refPosWithSkips;
+	private int lastLocus = -1;
+	
+	// Assembled contig info from the YA tag
+	private boolean isContigParsed = false;
+	private int contigPosition;
+	private Cigar contigCigar;
+	
+	public ReadCursor(SAMRecord read) {
+		this.read = read;
+		this.elements = read.getCigar().getCigarElements();
+		reset();
+	}
+	
+	private void reset() {
+		elementIdx = 0;
+		readIdx = 0;
+		refPos = read.getAlignmentStart();
+		refPosWithSkips = read.getAlignmentStart();
+		lastLocus = -1;
+	}
+	
+	/**
+	 * Advances past all Cigar elements that end before the specified locus.
+	 */
+	public void advance(int locus) {
+		if (locus < lastLocus) {
+			reset();
+		}
+		
+		lastLocus = locus;
+		
+		while (elementIdx < elements.size()) {
+			CigarElement element = elements.get(elementIdx);
+			int length = element.getLength();
+			
+			switch (element.getOperator()) {
+				case M:
+					if (locus < refPosWithSkips + length) {
+						return;
+					}
+					readIdx += length;
+					refPos += length;
+					refPosWithSkips += length;
+					break;
+				case I:
+					// Insertions are reported at the adjacent reference positions
+					if (locus <= refPos) {
+						return;
+					}
+					readIdx += length;
+					break;
+				case D:
+					// Deletions are reported through the base following the deletion
+					if (locus <= refPos + length || locus < refPosWithSkips + length) {
+						return;
+					}
+					refPos += length;
+					refPosWithSkips += length;
+					break;
+				case N:
+					if (locus < refPosWithSkips + length) {
+						return;
+					}
+					refPosWithSkips += length;
+					break;
+				case S:
+					readIdx += length;
+					break;
+				case H:
+					break;
+				default:
+					return;
+			}
+			
+			elementIdx += 1;
+		}
+	}
+	
+	public SAMRecord getRead() {
+		return read;
+	}
+	
+	public List<CigarElement> getCigarElements() {
+		return elements;
+	}
+	
+	/**
+	 * Index of the first Cigar element that may overlap the current locus
+	 */
+	public int getElementIndex() {
+		return elementIdx;
+	}
+	
+	/**
+	 * Read index at the start of the current Cigar element
+	 */
+	public int getReadIndex() {
+		return readIdx;
+	}
+	
+	/**
+	 * Reference position at the start of the current Cigar element, excluding skipped regions
+	 */
+	public int getReferencePosition() {
+		return refPos;
+	}
+
+	/**
+	 * Reference position at the start of the current Cigar element, including skipped regions
+	 */
+	public int getReferencePositionWithSkips() {
+		return refPosWithSkips;
+	}
+	
+	/**
+	 * Returns true if the read has been aligned to an assembled contig. 
+	 */
+	public boolean hasContig() {
+		parseContig();
+		return contigCigar != null;
+	}
+	
+	public int getContigPosition() {
+		parseContig();
+		return contigPosition;
+	}
+	
+	public Cigar getContigCigar() {
+		parseContig();
+		return contigCigar;
+	}
+	
+	private void parseContig() {
+		if (!isContigParsed) {
+			String contigInfo = read.getStringAttribute("YA");
+			if (contigInfo != null) {
+				String[] fields = contigInfo.split(":");
+				contigPosition = Integer.parseInt(fields[1]);
+				contigCigar = TextCigarCodec.decode(fields[2]);
+			}
+			isContigParsed = true;
+		}
+	}
+}
@@ -5,24 +5,72 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
+import abra.Feature;
+
 import htsjdk.samtools.CigarOperator;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMFileReader;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.util.CloseableIterator;
 
 public class ReadLocusReader implements Iterable<ReadsAtLocus> {
 
 	private SAMFileReader samReader;
+	private Feature region;
+	private CloseableIterator<SAMRecord> query;
 	
 	public ReadLocusReader(String samFile) {
         samReader = new SAMFileReader(new File(samFile));
         samReader.setValidationStringency(ValidationStringency.SILENT);
 	}
 	
+	/**
+	 * Iterates over loci using reads overlapping the specified region.  Requires an indexed BAM.
+	 * Loci outside of the region may be returned for reads spanning the region boundaries.
+	 */
+	public ReadLocusReader(String samFile, Feature region) {
+		this(samFile);
+		this.region = region;
+	}
+	
+	/**
+	 * Restricts subsequent iteration to the specified region.  Any prior iteration is closed.
+	 */
+	public void setRegion(Feature region) {
+		closeQuery();
+		this.region = region;
+	}
+	
+	public boolean hasIndex() {
+		return samReader.hasIndex();
+	}
+	
 	@Override
 	public Iterator<ReadsAtLocus> iterator() {
-		return new ReadLocusIterator(samReader);
+		closeQuery();
+		
+		if (region != null) {
+			// Pad by 1 to include reads with a leading insertion adjacent to the region
+			query = samReader.queryOverlapping(region.getSeqname(),
+					(int) Math.max(region.getStart()-1, 1), (int) region.getEnd()+1);
+		} else {
+			query = samReader.iterator();
+		}
+		
+		return new ReadLocusIterator(query);
+	}
+	
+	private void closeQuery() {
+		if (query != null) {
+			query.close();
+			query = null;
+		}
+	}
+	
+	public void close() {
+		closeQuery();
+		samReader.close();
 	}
 	
 	public SAMFileHeader getSamHeader() {
@@ -34,12 +82,18 @@ public class ReadLocusReader implements Iterable<ReadsAtLocus> {
 		private Iterator<SAMRecord> samIter;
 		private String currentChr = "";
 		private int currentPos = -1;
-		private List<SAMRecord> readCache = new ArrayList<SAMRecord>();
+		private List<ReadCursor> readCache = new ArrayList<ReadCursor>();
 		private ReadsAtLocus nextCache;
 		
-		public ReadLocusIterator(SAMFileReader samReader) {
+		// Per locus read lists are reused.  hasNext() looks ahead one locus, so the list
+		// returned by the previous call to next() must remain intact while the next is filled.
+		private List<ReadCursor> locusReads0 = new ArrayList<ReadCursor>();
+		private List<ReadCursor> locusReads1 = new ArrayList<ReadCursor>();
+		private int locusReadsIdx = 0;
+		
+		public ReadLocusIterator(Iterator<SAMRecord> iter) {
 	        	  
-	        samIter = new ForwardShiftInsertIterator(samReader.iterator());
+	        samIter = new ForwardShiftInsertIterator(iter);
 //	        samIter = samReader.iterator();
 		}
 		
@@ -59,7 +113,8 @@ public class ReadLocusReader implements Iterable<ReadsAtLocus> {
 				return ret;
 			}
 			
-			List<SAMRecord> reads = new ArrayList<SAMRecord>();
+			locusReadsIdx = 1 - locusReadsIdx;
+			List<ReadCursor> reads = locusReadsIdx == 0 ? locusReads0 : locusReads1;
 			
 			loadReadsIntoCache();
 			
@@ -85,7 +140,7 @@ public class ReadLocusReader implements Iterable<ReadsAtLocus> {
 				shouldReadFromFile = true;
 			}
 			else {
-				SAMRecord last = readCache.get(readCache.size()-1);
+				SAMRecord last = readCache.get(readCache.size()-1).getRead();
 				if (getAlignmentStart(last) <= currentPos && last.getReferenceName().equals(currentChr)) {
 					shouldReadFromFile = true;
 				}
@@ -102,7 +157,7 @@ public class ReadLocusReader implements Iterable<ReadsAtLocus> {
 						currentPos = getAlignmentStart(read);
 					}
 					
-					readCache.add(read);
+					readCache.add(new ReadCursor(read));
 					
 					if (getAlignmentStart(read) > currentPos || !read.getReferenceName().equals(currentChr)) {
 						shouldReadFromFile = false;
@@ -122,24 +177,26 @@ public class ReadLocusReader implements Iterable<ReadsAtLocus> {
 		}
 		
 		// Returns true if current position is advanced to new locus
-		private boolean getCachedReadsAtCurrentLocus(List<SAMRecord> reads) {
+		private boolean getCachedReadsAtCurrentLocus(List<ReadCursor> reads) {
 			
 			reads.clear();
 			
-			Iterator<SAMRecord> cacheIter = readCache.iterator();
-			
 			String nextChr = null;
 			int nextPos = -1;
 			
-			while (cacheIter.hasNext()) {
-				SAMRecord read = cacheIter.next();
+			// Cache is compacted in place as reads are removed
+			int cacheSize = 0;
+			
+			for (int i=0; i<readCache.size(); i++) {
+				ReadCursor cursor = readCache.get(i);
+				SAMRecord read = cursor.getRead();
 				
 				if (read.getAlignmentEnd() < currentPos && read.getReferenceName().equals(currentChr)) {
 					// We've gone past the end of this read, so remove from cache.
-					cacheIter.remove();
+					continue;
 				} else if (getAlignmentStart(read) <= currentPos && read.getAlignmentEnd() >= currentPos) {
 					// This read spans the current locus of interest.
-					reads.add(read);
+					reads.add(cursor);
 				} else {
 					// This read is beyond the current locus.
 					if (nextChr == null) {
@@ -147,8 +204,12 @@ public class ReadLocusReader implements Iterable<ReadsAtLocus> {
 						nextPos = getAlignmentStart(read);
 					}
 				}
+				
+				readCache.set(cacheSize++, cursor);
 			}
 			
+			readCache.subList(cacheSize, readCache.size()).clear();
+			
 			if (reads.isEmpty() && nextChr != null) {
 				currentChr = nextChr;
 				currentPos = nextPos;
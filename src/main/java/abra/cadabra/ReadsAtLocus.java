@@ -2,16 +2,15 @@ package abra.cadabra;
 
 import java.util.List;
 
-import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMSequenceDictionary;
 
 public class ReadsAtLocus {
 
 	private String chr;
 	private int position;
-	private List<SAMRecord> reads;
+	private List<ReadCursor> reads;
 	
-	public ReadsAtLocus(String chr, int position, List<SAMRecord> reads) {
+	public ReadsAtLocus(String chr, int position, List<ReadCursor> reads) {
 		this.chr = chr;
 		this.position = position;
 		this.reads = reads;
@@ -25,15 +24,18 @@ public class ReadsAtLocus {
 		return position;
 	}
 
-	public List<SAMRecord> getReads() {
+	/**
+	 * Returns cursors for reads overlapping this locus.  Cursors are shared across loci.
+	 */
+	public List<ReadCursor> getReads() {
 		return reads;
 	}
 	
 	public String toString() {
 		String s = chr + ":" + position;
 		
-		for (SAMRecord read : reads) {
-			s += "," + read.getReadName();
+		for (ReadCursor read : reads) {
+			s += "," + read.getRead().getReadName();
 		}
 		
 		return s;
@@ -1,20 +1,28 @@
 package abra.cadabra;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.text.DecimalFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
-import htsjdk.samtools.Cigar;
 import htsjdk.samtools.CigarElement;
 import htsjdk.samtools.CigarOperator;
 import htsjdk.samtools.SAMRecord;
 
+import abra.AbraRunnable;
 import abra.CompareToReference2;
+import abra.Feature;
+import abra.ThreadManager;
 
 public class SimpleCaller {
 	
-	private ReadLocusReader sample;
+	// Genome partition size used when calling with multiple threads
+	private static final int PARTITION_SIZE = 10000000;
+	
 	private CompareToReference2 c2r;
 	private DecimalFormat df = new DecimalFormat("0.000");
 	
@@ -23,20 +31,39 @@ public class SimpleCaller {
 	private int minMapq;
 	private int minDistanceFromIndel;
 	
-	private List<CachedCall> callCache = new ArrayList<CachedCall>();
+	// Pending calls in position order.  Calls are held until they are known to be
+	// sufficiently distant from indels.
+	private ArrayDeque<CachedCall> callCache = new ArrayDeque<CachedCall>();
+	
+	private PrintStream output = System.out;
 	
 	private static int MIN_BASE_QUALITY = 20;
 	
 	private FishersExactTest fishers = new FishersExactTest();
 	
-	// Indices into orientation counts
-	int aIdx = 0;
-	int cIdx = 2;
-	int tIdx = 4;
-	int gIdx = 6;
-	int indelIdx = 8;
-
+	public SimpleCaller() {
+	}
+	
+	// Copies settings and reference for processing of a single partition
+	private SimpleCaller(SimpleCaller caller, PrintStream output) {
+		this.c2r = caller.c2r;
+		this.minAltFraction = caller.minAltFraction;
+		this.minAltObs = caller.minAltObs;
+		this.minMapq = caller.minMapq;
+		this.minDistanceFromIndel = caller.minDistanceFromIndel;
+		this.output = output;
+	}
+	
 	public void call(String reference, String bam, float minAltFraction, int minAltObs, int minMapq, int minDistanceFromIndel) throws Exception {
+		call(reference, bam, minAltFraction, minAltObs, minMapq, minDistanceFromIndel, 1);
+	}
+	
+	/**
+	 * If multiple threads are specified, the genome is partitioned and each partition is processed
+	 * independently using indexed queries.  Partitions are padded by minDistanceFromIndel, so indels
+	 * near partition boundaries filter calls as in single threaded mode.
+	 */
+	public void call(String reference, String bam, float minAltFraction, int minAltObs, int minMapq, int minDistanceFromIndel, int numThreads) throws Exception {
 		this.minAltFraction = minAltFraction;
 		this.minAltObs = minAltObs;
 		this.minMapq = minMapq;
@@ -47,7 +74,63 @@ public class SimpleCaller {
 		
 		outputHeader();
 		
-		this.sample = new ReadLocusReader(bam);
+		if (numThreads > 1) {
+			callByPartition(bam, numThreads);
+		} else {
+			ReadLocusReader sample = new ReadLocusReader(bam);
+			process(sample, null);
+			sample.close();
+		}
+		
+		System.err.println("Done.");
+	}
+	
+	private void callByPartition(final String bam, int numThreads) throws IOException, InterruptedException {
+		List<Feature> partitions = new ArrayList<Feature>();
+		
+		ReadLocusReader reader = new ReadLocusReader(bam);
+		for (Feature partition : Cadabra.getPartitions(reader.getSamHeader().getSequenceDictionary(), PARTITION_SIZE)) {
+			if (c2r.containsChromosome(partition.getSeqname())) {
+				partitions.add(partition);
+			}
+		}
+		reader.close();
+		
+		System.err.println("Calling in " + partitions.size() + " partitions using " + numThreads + " threads");
+		
+		ThreadManager threadManager = new ThreadManager(numThreads);
+		ByteArrayOutputStream[] outputs = new ByteArrayOutputStream[partitions.size()];
+		
+		for (int i=0; i<partitions.size(); i++) {
+			outputs[i] = new ByteArrayOutputStream();
+			final Feature partition = partitions.get(i);
+			final SimpleCaller caller = new SimpleCaller(this, new PrintStream(outputs[i]));
+			
+			threadManager.spawnThread(new AbraRunnable(threadManager) {
+				@Override
+				public void go() throws Exception {
+					// Include loci within minDistanceFromIndel of the partition for indel filtering
+					Feature padded = new Feature(partition.getSeqname(), Math.max(partition.getStart() - minDistanceFromIndel, 1),
+							partition.getEnd() + minDistanceFromIndel);
+					ReadLocusReader sample = new ReadLocusReader(bam, padded);
+					caller.process(sample, partition);
+					sample.close();
+					caller.output.flush();
+				}
+			});
+		}
+		
+		threadManager.waitForAllThreadsToComplete();
+		
+		for (ByteArrayOutputStream partitionOutput : outputs) {
+			partitionOutput.writeTo(System.out);
+		}
+		
+		System.out.flush();
+	}
+	
+	// Walks all loci in the sample.  If region is specified, only calls within the region are output.
+	private void process(ReadLocusReader sample, Feature region) {
 		
 		String lastChromosome = "";
 		
@@ -55,6 +138,10 @@ public class SimpleCaller {
 		
 		Iterator<ReadsAtLocus> sampleIter = sample.iterator();
 		
+		// Per locus counters are reused across loci
+		LocusCounts counts = new LocusCounts();
+		BaseInfo baseInfo = new BaseInfo();
+		
 		while (sampleIter.hasNext()) {
 			ReadsAtLocus reads = sampleIter.next();
 			
@@ -65,19 +152,7 @@ public class SimpleCaller {
 				flushCache();
 			}
 			
-			int a = 0;
-			int c = 0;
-			int t = 0;
-			int g = 0;
-			int n = 0;
-			
-			int aAtEdge = 0;
-			int cAtEdge = 0;
-			int tAtEdge = 0;
-			int gAtEdge = 0;
-			
-			//TODO: Encapsulate in class
-			int[] orientationCounts = new int[] { 0,0,0,0,0,0,0,0,0,0 };
+			counts.clear();
 			
 			if (!c2r.containsChromosome(reads.getChromosome())) {
 				System.err.println("Chromosome: [" + reads.getChromosome() + "] not in reference.  Assuming we've reached unaligned pile and stopping.");
@@ -92,79 +167,24 @@ public class SimpleCaller {
 //					System.out.println("yo.");
 //				}
 				
-				int numIndels = 0;
-				
-				for (SAMRecord read : reads.getReads()) {
+				for (ReadCursor cursor : reads.getReads()) {
+					SAMRecord read = cursor.getRead();
 					
 					if (read.getMappingQuality() >= this.minMapq && !read.getReadUnmappedFlag()) {
-					
-						BaseInfo baseInfo = getBaseAtReferencePosition(read, reads.getPosition());
-						int baseCountIdx = -1;
-						
-						switch(baseInfo.base) {
-							case 'A':
-								a++;
-								if (baseInfo.isNearEdge) {
-									aAtEdge++;
-								}
-								baseCountIdx = aIdx;
-								break;
-							case 'C':
-								c++;
-								if (baseInfo.isNearEdge) {
-									cAtEdge++;
-								}
-								baseCountIdx = cIdx;
-								break;
-							case 'T':
-								t++;
-								if (baseInfo.isNearEdge) {
-									tAtEdge++;
-								}
-								baseCountIdx = tIdx;
-								break;
-							case 'G':
-								g++;
-								if (baseInfo.isNearEdge) {
-									gAtEdge++;
-								}
-								baseCountIdx = gIdx;
-								break;
-							default:
-								n++;
-								break;
-						}
-						
-						if (baseInfo.isIndel) {
-							numIndels++;
-							baseCountIdx = indelIdx;
-						}
-						
-						if (baseCountIdx > -1) {
-							if (!read.getReadNegativeStrandFlag()) {
-								// Update forward orientation count
-								orientationCounts[baseCountIdx] += 1;
-							} else {
-								// Update reverse orientation count
-								orientationCounts[baseCountIdx+1] += 1;
-							}
-						}
+						getBaseAtReferencePosition(cursor, reads.getPosition(), baseInfo);
+						counts.add(baseInfo.base, baseInfo.isNearEdge, baseInfo.isIndel, read.getReadNegativeStrandFlag());
 					}
 				}
 				
-				if ((float) numIndels / (float) reads.getReads().size() > this.minAltFraction) {
+				if ((float) counts.getIndelCount() / (float) reads.getReads().size() > this.minAltFraction) {
 					// There is indel support at this locus.  Track it so we can filter nearby SNPs.
 					lastIndelPos = reads.getPosition();
 				}
 				
-				char[] bases = { 'A','C','T','G'};
-				int[] counts = {a,c,t,g};
-				int[] edgeCounts = { aAtEdge, cAtEdge, tAtEdge, gAtEdge };
-				
-				CallInfo callInfo = getAltBaseAndCounts(bases, counts, edgeCounts, ref, reads.getReads().size(), orientationCounts);
+				CallInfo callInfo = getAltBaseAndCounts(counts, ref, reads.getReads().size());
 				
 				// Require N number of alt obs not near edge of M block
-				if ((callInfo.altCount - callInfo.altEdgeCount) > this.minAltObs && callInfo.altCount > 0) {
+				if ((callInfo.altCount - callInfo.altEdgeCount) > this.minAltObs && callInfo.altCount > 0 && isInRegion(reads, region)) {
 					output(reads.getChromosome(), reads.getPosition(), callInfo, lastIndelPos);
 				}
 			}
@@ -173,7 +193,11 @@ public class SimpleCaller {
 		}
 		
 		flushCache();
-		System.err.println("Done.");
+	}
+	
+	private boolean isInRegion(ReadsAtLocus reads, Feature region) {
+		return region == null || (reads.getPosition() >= region.getStart() && reads.getPosition() <= region.getEnd() &&
+				reads.getChromosome().equals(region.getSeqname()));
 	}
 	
 	private void outputHeader() {
@@ -199,18 +223,18 @@ public class SimpleCaller {
 	}
 	
 	private void checkCache(int currPosition, int lastIndelPos) {
-		Iterator<CachedCall> iter = this.callCache.iterator();
-		while (iter.hasNext()) {
-			CachedCall call = iter.next();
-			if (Math.abs(call.position - lastIndelPos) < minDistanceFromIndel) {
-				// Too close to indel.  Discard call.
-				iter.remove();
-			} else if (currPosition >= call.position + minDistanceFromIndel) {
-				// We have progressed minDistanceFromIndel positions away from the call.  Safe to output
-				// Output the call and remove from cache
-				write(call.chromosome, call.position, call.callInfo);
-				iter.remove();
-			}
+		// Calls are cached in position order and calls preceding lastIndelPos by minDistanceFromIndel
+		// or more were not cached, so calls too close to the indel are at the tail.
+		while (!callCache.isEmpty() && Math.abs(callCache.peekLast().position - lastIndelPos) < minDistanceFromIndel) {
+			// Too close to indel.  Discard call.
+			callCache.pollLast();
+		}
+		
+		while (!callCache.isEmpty() && currPosition >= callCache.peekFirst().position + minDistanceFromIndel) {
+			// We have progressed minDistanceFromIndel positions away from the call.  Safe to output
+			// Output the call and remove from cache
+			CachedCall call = callCache.pollFirst();
+			write(call.chromosome, call.position, call.callInfo);
 		}
 	}
 	
@@ -268,88 +292,63 @@ public class SimpleCaller {
 			double phredFs = -10 * Math.log10(fs);
 			call.append(df.format(phredFs));
 			
-			System.out.println(call.toString());
+			output.println(call.toString());
 		}
 	}
 	
-	private CallInfo getAltBaseAndCounts(char[] bases, int[] counts, int[] edgeCounts, char ref, int totalDepth, int[] orientationCounts) {
+	private CallInfo getAltBaseAndCounts(LocusCounts counts, char ref, int totalDepth) {
 		int refCount = 0;
 		int altCount = 0;
 		int altEdgeCount = 0;
 		char alt = 'N';
 		
-		for (int i=0; i<bases.length; i++) {
-			if (bases[i] == ref) {
-				refCount = counts[i];
+		for (char base : LocusCounts.BASES) {
+			int idx = LocusCounts.getIndex(base);
+			if (base == ref) {
+				refCount = counts.getCount(idx);
 			} else {
-				if (counts[i] > altCount) {
-					alt = bases[i];
-					altCount = counts[i];
-					altEdgeCount = edgeCounts[i];
+				if (counts.getCount(idx) > altCount) {
+					alt = base;
+					altCount = counts.getCount(idx);
+					altEdgeCount = counts.getEdgeCount(idx);
 				}
 			}
 		}
 		
-		int refIdx = -1;
-		int altIdx = -1;
-				
-		switch (ref) {
-			case 'A':
-				refIdx = aIdx;
-				break;
-			case 'C':
-				refIdx = cIdx;
-				break;
-			case 'T':
-				refIdx = tIdx;
-				break;
-			case 'G':
-				refIdx = gIdx;
-				break;
-		}
-		
-		switch (alt) {
-			case 'A':
-				altIdx = aIdx;
-				break;
-			case 'C':
-				altIdx = cIdx;
-				break;
-			case 'T':
-				altIdx = tIdx;
-				break;
-			case 'G':
-				altIdx = gIdx;
-				break;
-		}
+		int refIdx = LocusCounts.getIndex(ref);
+		int altIdx = LocusCounts.getIndex(alt);
 		
 		int refF = 0;
 		int refR = 0;
 		int altF = 0;
 		int altR = 0;
 		
-		if (refIdx > -1 && altIdx > -1) {
-			refF = orientationCounts[refIdx];
-			refR = orientationCounts[refIdx+1];
-			altF = orientationCounts[altIdx];
-			altR = orientationCounts[altIdx+1];
+		if (refIdx != LocusCounts.N && altIdx != LocusCounts.N) {
+			refF = counts.getForwardCount(refIdx);
+			refR = counts.getReverseCount(refIdx);
+			altF = counts.getForwardCount(altIdx);
+			altR = counts.getReverseCount(altIdx);
 		}
 			
 		return new CallInfo(ref, refCount, alt, altCount, altEdgeCount, totalDepth, refF, refR, altF, altR);
 	}
 	
-	private BaseInfo getBaseAtReferencePosition(SAMRecord read, int refPos) {
+	// Populates baseInfo with the read's base at the specified reference position.
+	// The Cigar is walked starting from the read cursor.
+	private void getBaseAtReferencePosition(ReadCursor cursor, int refPos, BaseInfo baseInfo) {
 		boolean isNearEdge = false;
 		boolean isIndel = false;
-		int alignmentStart = read.getAlignmentStart();
-		Cigar cigar = read.getCigar();
+		SAMRecord read = cursor.getRead();
+		List<CigarElement> elements = cursor.getCigarElements();
 		
 		char base = 'N';
 		
-		int readIdx = 0;
-		int currRefPos = alignmentStart;
+		cursor.advance(refPos);
+		int readIdx = cursor.getReadIndex();
+		int currRefPos = cursor.getReferencePosition();
 		
-		for (CigarElement element : cigar.getCigarElements()) {
+		for (int i=cursor.getElementIndex(); i<elements.size(); i++) {
+			CigarElement element = elements.get(i);
 						
 			if (element.getOperator() == CigarOperator.M) {
 				readIdx += element.getLength();
@@ -395,7 +394,9 @@ public class SimpleCaller {
 			}			
 		}
 		
-		return new BaseInfo(Character.toUpperCase(base), isNearEdge, isIndel);
+		baseInfo.base = Character.toUpperCase(base);
+		baseInfo.isNearEdge = isNearEdge;
+		baseInfo.isIndel = isIndel;
 	}
 	
 	static class CallInfo {
@@ -428,12 +429,6 @@ public class SimpleCaller {
 		char base;
 		boolean isNearEdge;
 		boolean isIndel;
-		
-		BaseInfo(char base, boolean isNearEdge, boolean isIndel) {
-			this.base = base;
-			this.isNearEdge = isNearEdge;
-			this.isIndel = isIndel;
-		}
 	}
 	
 	static class CachedCall {
@@ -462,8 +457,9 @@ public class SimpleCaller {
 		int minAltObs = Integer.parseInt(args[3]);
 		int minMapq = Integer.parseInt(args[4]);
 		int minDistanceFromIndel = Integer.parseInt(args[5]);
+		int numThreads = args.length > 6 ? Integer.parseInt(args[6]) : 1;
 	
-		c.call(reference, bam, minAllelicFraction, minAltObs, minMapq, minDistanceFromIndel);
+		c.call(reference, bam, minAllelicFraction, minAltObs, minMapq, minDistanceFromIndel, numThreads);
 		
 //		c.call("/home/lmose/reference/chr20/chr20.fa", "/home/lmose/dev/efseq/piotr_test1/calling/k101.sscs.chr20.bam", .003F, 2, 40, 50);
 //		c.call("/home/lmose/reference/chr21/chr21.fa", "/home/lmose/dev/efseq/piotr_test1/calling/tiny21.bam", .003F, 2, 40, 50);
@@ -5,6 +5,8 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 import htsjdk.samtools.CigarElement;
@@ -13,7 +15,9 @@ import htsjdk.samtools.ValidationStringency;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.util.CloseableIterator;
 
+import abra.AbraRunnable;
 import abra.CompareToReference2;
+import abra.ThreadManager;
 
 /**
  * Given a "VCF-like" file of variants to inspect, produces an output file with normal / tumor counts of each variant.
@@ -23,12 +27,26 @@ import abra.CompareToReference2;
  */
 public class SomaticLocusCaller {
 	
+	// Loci separated by less than this distance share a single BAM query
+	private static final int MAX_LOCUS_GAP = 1000;
+	
+	// Maximum span of a single BAM query.  Reads are streamed, so only reads overlapping
+	// the current locus are held in memory regardless of window size.
+	private static final int MAX_WINDOW_SIZE = 100000;
+	
+	// Windows are distributed across threads in batches
+	private static final int BATCHES_PER_THREAD = 4;
+	
 	private List<LocusInfo> loci = new ArrayList<LocusInfo>();
 	private CompareToReference2 c2r;
 	private int minBaseQual;
 	private double minMaf;
 
-	public void call(String normal, String tumor, String vcf, String reference, int minBaseQual, double minMaf) throws IOException {
+	public void call(String normal, String tumor, String vcf, String reference, int minBaseQual, double minMaf) throws IOException, InterruptedException {
+		call(normal, tumor, vcf, reference, minBaseQual, minMaf, 1);
+	}
+	
+	public void call(String normal, String tumor, String vcf, String reference, int minBaseQual, double minMaf, int numThreads) throws IOException, InterruptedException {
 		loadLoci(vcf);
 		c2r = new CompareToReference2();
 		c2r.init(reference);
@@ -36,24 +54,141 @@ public class SomaticLocusCaller {
 		this.minMaf = minMaf;
 		
 		System.err.println("Processing positions");
-
+		
+		List<List<LocusInfo>> windows = getWindows();
+		
+		System.err.println("Querying [" + windows.size() + "] windows using [" + numThreads + "] threads");
+		
+		if (numThreads > 1) {
+			ThreadManager threadManager = new ThreadManager(numThreads);
+			int batchSize = Math.max(windows.size() / (numThreads * BATCHES_PER_THREAD), 1);
+			
+			for (int i=0; i<windows.size(); i+=batchSize) {
+				final List<List<LocusInfo>> batch = windows.subList(i, Math.min(i+batchSize, windows.size()));
+				final String normalBam = normal;
+				final String tumorBam = tumor;
+				
+				threadManager.spawnThread(new AbraRunnable(threadManager) {
+					@Override
+					public void go() throws Exception {
+						processWindows(normalBam, tumorBam, batch);
+					}
+				});
+			}
+			
+			threadManager.waitForAllThreadsToComplete();
+		} else {
+			processWindows(normal, tumor, windows);
+		}
+		
+		System.err.println("Writing results");
+		
+		outputResults();
+	}
+	
+	// Groups loci sorted by position into windows of nearby loci on the same chromosome
+	private List<List<LocusInfo>> getWindows() {
+		List<LocusInfo> sorted = new ArrayList<LocusInfo>(loci);
+		
+		Collections.sort(sorted, new Comparator<LocusInfo>() {
+			@Override
+			public int compare(LocusInfo locus1, LocusInfo locus2) {
+				int compare = locus1.chromosome.compareTo(locus2.chromosome);
+				if (compare == 0) {
+					compare = locus1.posStart - locus2.posStart;
+				}
+				return compare;
+			}
+		});
+		
+		List<List<LocusInfo>> windows = new ArrayList<List<LocusInfo>>();
+		List<LocusInfo> window = null;
+		int windowStart = -1;
+		int windowStop = -1;
+		
+		for (LocusInfo locus : sorted) {
+			if (window == null || !locus.chromosome.equals(window.get(0).chromosome) ||
+				locus.posStart - windowStop > MAX_LOCUS_GAP || locus.posStop - windowStart > MAX_WINDOW_SIZE) {
+				
+				window = new ArrayList<LocusInfo>();
+				windows.add(window);
+				windowStart = locus.posStart;
+				windowStop = locus.posStop;
+			}
+			
+			window.add(locus);
+			windowStop = Math.max(windowStop, locus.posStop);
+		}
+		
+		return windows;
+	}
+	
+	private void processWindows(String normal, String tumor, List<List<LocusInfo>> windows) {
 		SAMFileReader normalReader = new SAMFileReader(new File(normal));
 		normalReader.setValidationStringency(ValidationStringency.SILENT);
 		
 		SAMFileReader tumorReader = new SAMFileReader(new File(tumor));
-		normalReader.setValidationStringency(ValidationStringency.SILENT);
-        
-		for (LocusInfo locus : loci) {
-			locus.normalCounts = getCounts(normalReader, locus);
-			locus.tumorCounts = getCounts(tumorReader, locus);
+		tumorReader.setValidationStringency(ValidationStringency.SILENT);
+		
+		for (List<LocusInfo> window : windows) {
+			
+			// Reference base is retrieved once per locus
+			for (LocusInfo locus : window) {
+				locus.actualRef = c2r.getSequence(locus.chromosome, locus.posStart, 1);
+			}
+			
+			countWindow(normalReader, window, false);
+			countWindow(tumorReader, window, true);
 		}
 		
 		normalReader.close();
 		tumorReader.close();
+	}
+	
+	// Streams reads overlapping the window's loci, which are sorted by start position.  Only reads
+	// that may overlap the current or a subsequent locus are retained.
+	private void countWindow(SAMFileReader reader, List<LocusInfo> window, boolean isTumor) {
+		int start = Integer.MAX_VALUE;
+		int stop = 0;
+		for (LocusInfo locus : window) {
+			start = Math.min(start, locus.posStart);
+			stop = Math.max(stop, locus.posStop);
+		}
 		
-		System.err.println("Writing results");
+		List<SAMRecord> activeReads = new ArrayList<SAMRecord>();
+		SAMRecord next = null;
 		
-		outputResults();
+		CloseableIterator<SAMRecord> iter = reader.queryOverlapping(window.get(0).chromosome, start, stop);
+		
+		for (LocusInfo locus : window) {
+			
+			// Read up to the end of the locus
+			if (next == null && iter.hasNext()) {
+				next = iter.next();
+			}
+			while (next != null && next.getAlignmentStart() <= locus.posStop) {
+				activeReads.add(next);
+				next = iter.hasNext() ? iter.next() : null;
+			}
+			
+			// Drop reads ending before this locus.  Subsequent loci do not start earlier.
+			int idx = 0;
+			for (SAMRecord read : activeReads) {
+				if (isOverlapping(read, locus)) {
+					activeReads.set(idx++, read);
+				}
+			}
+			activeReads.subList(idx, activeReads.size()).clear();
+			
+			Counts counts = getCounts(activeReads, locus);
+			if (isTumor) {
+				locus.tumorCounts = counts;
+			} else {
+				locus.normalCounts = counts;
+			}
+		}
+		
+		iter.close();
 	}
 	
 	private void outputResults() {
@@ -203,26 +338,28 @@ public class SomaticLocusCaller {
 		return new Object[] { 'N', (int) 0 };
 	}
 
-	private Counts getCounts(SAMFileReader reader, LocusInfo locus) {
+	// Reads overlapping the locus are selected from the window's active reads
+	private Counts getCounts(List<SAMRecord> reads, LocusInfo locus) {
 		
 		int depth = 0;
 		int altCount = 0;
 		int refCount = 0;
 		
-		CloseableIterator<SAMRecord> iter = reader.queryOverlapping(locus.chromosome, locus.posStart, locus.posStop);
-		while (iter.hasNext()) {
-			SAMRecord read = iter.next();
-			if (!read.getDuplicateReadFlag()) {
+		Character refBase = locus.actualRef.length() > 0 ? locus.actualRef.charAt(0) : 'N';
+		
+		for (SAMRecord read : reads) {
+			
+			if (read.getAlignmentStart() > locus.posStop) {
+				// Reads are sorted by start position.  No more overlapping reads.
+				break;
+			}
+			
+			if (!read.getDuplicateReadFlag() && isOverlapping(read, locus)) {
 				depth += 1;
 				
 				Object[] baseAndQual = getBaseAndQualAtPosition(read, locus.posStart);
 				Character base = (Character) baseAndQual[0];
 				int baseQual = (Integer) baseAndQual[1];
-				Character refBase = c2r.getSequence(locus.chromosome, locus.posStart, 1).charAt(0);
-				
-				// Override input with actual reference
-//				locus.ref = new String(new char[] { refBase });
-				locus.actualRef = new String(new char[] { refBase });
 				
 				if (locus.isIndel()) {
 					if (hasIndel(read, locus)) {
@@ -241,11 +378,15 @@ public class SomaticLocusCaller {
 			}
 		}
 		
-		iter.close();
-		
 		return new Counts(refCount, altCount, depth);
 	}
 	
+	// Equivalent to the BAM index overlap query.  Unmapped reads are treated as spanning a single base.
+	private boolean isOverlapping(SAMRecord read, LocusInfo locus) {
+		int end = read.getReadUnmappedFlag() ? read.getAlignmentStart() : read.getAlignmentEnd();
+		return end >= locus.posStart;
+	}
+	
 	private void loadLoci(String vcf) throws IOException {
 		BufferedReader reader = new BufferedReader(new FileReader(vcf));
 		
@@ -327,6 +468,7 @@ public class SomaticLocusCaller {
 		String reference = args[3];
 		int minBaseQual = Integer.parseInt(args[4]);
 		double minMaf = Double.parseDouble(args[5]);
+		int numThreads = args.length > 6 ? Integer.parseInt(args[6]) : 1;
 		
 
 //		String normal = "/home/lmose/dev/uncseq/oncomap/normal_test.bam";
@@ -345,6 +487,6 @@ public class SomaticLocusCaller {
 		double minMaf = .005;
 */
 		SomaticLocusCaller caller = new SomaticLocusCaller();
-		caller.call(normal, tumor, vcf, reference, minBaseQual, minMaf);
+		caller.call(normal, tumor, vcf, reference, minBaseQual, minMaf, numThreads);
 	}
 }
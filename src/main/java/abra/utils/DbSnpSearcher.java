@@ -1,20 +1,53 @@
 /* Copyright 2013 University of North Carolina at Chapel Hill.  All rights reserved. */
 package abra.utils;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.zip.GZIPInputStream;
 
+/**
+ * Annotates variants with nearby dbSNP variants of similar length.
+ * 
+ * dbSNP is held in a compact per chromosome index of sorted position / length arrays and
+ * packed names.  The index is written alongside the dbSNP file on first use and memory mapped
+ * on subsequent runs.  Each chromosome's arrays are mapped separately using offsets from the
+ * index header and accessed in place, so large indexes are neither limited to a single 2 GB
+ * mapping nor copied onto the heap.  Lookups resume from the previous lookup when input is sorted,
+ * effectively a merge join, and fall back to binary search otherwise.
+ * 
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
 public class DbSnpSearcher {
+	
+	private static final String INDEX_SUFFIX = ".idx";
+	private static final int INDEX_VERSION = 2;
+	
+	// Range start and end lookups are tracked independently
+	private static final int START_CURSOR = 0;
+	private static final int END_CURSOR = 1;
 
-	private SortedSet<Variant> variants = new TreeSet<Variant>();
+	private Map<String, ChromosomeVariants> variants = new HashMap<String, ChromosomeVariants>();
 	
 	public void run(String dbSnpFile, String variantFile) throws Exception {
 		load(dbSnpFile);
@@ -34,21 +67,24 @@ public class DbSnpSearcher {
 //			int fuzz = 100 + length;
 			int fuzz = 100;
 			
-			Variant floor = new Variant("", chr, pos-fuzz, length);
-			Variant ceil = new Variant("", chr, pos+fuzz, length);
-			
-			Set<Variant> matches = variants.subSet(floor, ceil);
-			
 			StringBuffer matchStr = new StringBuffer();
 			
 			boolean isMatch = false;
 			
-			for (Variant match : matches) {
-//				if (match.length == length) {
-				if (Math.abs(match.length - length) <= (length/3)+1) {
-					matchStr.append(match.toString());
-					matchStr.append(',');
-					isMatch = true;
+			ChromosomeVariants chromosomeVariants = variants.get(chr);
+			
+			if (chromosomeVariants != null) {
+				// Variants sorted by position, length and name within [pos-fuzz,length] and (pos+fuzz,length]
+				int first = chromosomeVariants.lowerBound(pos-fuzz, length, START_CURSOR);
+				int last = chromosomeVariants.lowerBound(pos+fuzz, length, END_CURSOR);
+				
+				for (int i=first; i<last; i++) {
+//					if (match.length == length) {
+					if (Math.abs(chromosomeVariants.lengths.get(i) - length) <= (length/3)+1) {
+						matchStr.append(chromosomeVariants.toString(i));
+						matchStr.append(',');
+						isMatch = true;
+					}
 				}
 			}
 			
@@ -66,11 +102,23 @@ public class DbSnpSearcher {
 	}
 	
 	private void load(String dbSnpFile) throws FileNotFoundException, IOException {
+		File index = new File(dbSnpFile + INDEX_SUFFIX);
 		
+		if (index.exists() && index.lastModified() >= new File(dbSnpFile).lastModified()) {
+			loadIndex(index);
+		} else {
+			build(dbSnpFile);
+			writeIndex(index);
+		}
+	}
+	
+	private void build(String dbSnpFile) throws FileNotFoundException, IOException {
 		
 		GZIPInputStream gzip = new GZIPInputStream(new FileInputStream(dbSnpFile));
 		BufferedReader br = new BufferedReader(new InputStreamReader(gzip));
 		
+		Map<String, ChromosomeBuilder> builders = new HashMap<String, ChromosomeBuilder>();
+		
 		String line = br.readLine();
 		
 		int count = 0;
@@ -82,9 +130,13 @@ public class DbSnpSearcher {
 			String name = fields[4];
 			int length = fields[8].length();
 			
-			Variant var = new Variant(name, chr, pos, length);
+			ChromosomeBuilder builder = builders.get(chr);
+			if (builder == null) {
+				builder = new ChromosomeBuilder();
+				builders.put(chr, builder);
+			}
 			
-			variants.add(var);
+			builder.add(pos, length, name);
 			
 			line = br.readLine();
 			count++;
@@ -93,60 +145,291 @@ public class DbSnpSearcher {
 		br.close();
 		gzip.close();
 		
+		for (String chr : builders.keySet()) {
+			variants.put(chr, builders.get(chr).build(chr));
+		}
+		
 //		System.err.println("" + count + " variants loaded");
 	}
 	
-	static class Variant implements Comparable<Variant> {
-
-		String name;
+	private void writeIndex(File index) throws IOException {
+		File temp = new File(index.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 20));
+		
+		List<ChromosomeVariants> chromosomes = new ArrayList<ChromosomeVariants>(variants.values());
+		
+		// The header size does not depend upon the section offsets
+		byte[] header = getIndexHeader(chromosomes, 0);
+		out.write(getIndexHeader(chromosomes, header.length));
+		
+		for (ChromosomeVariants chromosomeVariants : chromosomes) {
+			for (int i=0; i<chromosomeVariants.count; i++) {
+				out.writeInt(chromosomeVariants.positions.get(i));
+			}
+			for (int i=0; i<chromosomeVariants.count; i++) {
+				out.writeInt(chromosomeVariants.lengths.get(i));
+			}
+			for (int i=0; i<=chromosomeVariants.count; i++) {
+				out.writeInt(chromosomeVariants.nameOffsets.get(i));
+			}
+			for (int i=0; i<chromosomeVariants.names.limit(); i++) {
+				out.write(chromosomeVariants.names.get(i));
+			}
+		}
+		
+		out.close();
+		
+		if (!temp.renameTo(index)) {
+			System.err.println("Unable to write dbSNP index: " + index);
+			temp.delete();
+		}
+	}
+	
+	// Version, chromosome count, then per chromosome name, variant count, names length and section offset
+	private byte[] getIndexHeader(List<ChromosomeVariants> chromosomes, long headerLength) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		
+		out.writeInt(INDEX_VERSION);
+		out.writeInt(chromosomes.size());
+		
+		long offset = headerLength;
+		for (ChromosomeVariants chromosomeVariants : chromosomes) {
+			out.writeUTF(chromosomeVariants.chr);
+			out.writeInt(chromosomeVariants.count);
+			out.writeInt(chromosomeVariants.names.limit());
+			out.writeLong(offset);
+			offset += getSectionLength(chromosomeVariants.count, chromosomeVariants.names.limit());
+		}
+		
+		out.close();
+		
+		return bytes.toByteArray();
+	}
+	
+	private static long getSectionLength(int count, int namesLength) {
+		return 4L * count * 2 + 4L * (count+1) + namesLength;
+	}
+	
+	private void loadIndex(File index) throws IOException {
+		DataInputStream header = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+		
+		List<String> chromosomes = new ArrayList<String>();
+		List<int[]> sections = new ArrayList<int[]>();
+		List<Long> offsets = new ArrayList<Long>();
+		
+		try {
+			if (header.readInt() != INDEX_VERSION) {
+				throw new IOException("Unsupported dbSNP index version.  Remove: " + index);
+			}
+			
+			int numChromosomes = header.readInt();
+			
+			for (int i=0; i<numChromosomes; i++) {
+				chromosomes.add(header.readUTF());
+				int count = header.readInt();
+				int namesLength = header.readInt();
+				sections.add(new int[] { count, namesLength });
+				offsets.add(header.readLong());
+			}
+		} finally {
+			header.close();
+		}
+		
+		FileInputStream is = new FileInputStream(index);
+		FileChannel channel = is.getChannel();
+		
+		// Mappings remain valid after the channel is closed
+		for (int i=0; i<chromosomes.size(); i++) {
+			int count = sections.get(i)[0];
+			int namesLength = sections.get(i)[1];
+			long offset = offsets.get(i);
+			
+			IntBuffer positions = mapInts(channel, offset, count);
+			offset += 4L * count;
+			IntBuffer lengths = mapInts(channel, offset, count);
+			offset += 4L * count;
+			IntBuffer nameOffsets = mapInts(channel, offset, count+1);
+			offset += 4L * (count+1);
+			ByteBuffer names = channel.map(FileChannel.MapMode.READ_ONLY, offset, namesLength);
+			
+			String chr = chromosomes.get(i);
+			variants.put(chr, new ChromosomeVariants(chr, count, positions, lengths, nameOffsets, names));
+		}
+		
+		channel.close();
+		is.close();
+	}
+	
+	private IntBuffer mapInts(FileChannel channel, long offset, int count) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, offset, 4L * count).asIntBuffer();
+	}
+	
+	/**
+	 * Variants for a single chromosome sorted by position, length and name.
+	 */
+	static class ChromosomeVariants {
 		String chr;
-		int pos;
-		int length;
+		int count;
+		IntBuffer positions;
+		IntBuffer lengths;
+		// Names are stored as concatenated ASCII bytes.  Name i spans nameOffsets[i] to nameOffsets[i+1]
+		IntBuffer nameOffsets;
+		ByteBuffer names;
+		
+		// Result of the previous lookup per cursor.  Sorted input resumes from here.
+		private int[] lastIdx = new int[2];
+		private int[] lastPos = new int[] { Integer.MIN_VALUE, Integer.MIN_VALUE };
+		private int[] lastLength = new int[] { Integer.MIN_VALUE, Integer.MIN_VALUE };
 		
-		public Variant(String name, String chr, int pos, int length) {
-			this.name = name;
+		ChromosomeVariants(String chr, int count, IntBuffer positions, IntBuffer lengths, IntBuffer nameOffsets, ByteBuffer names) {
 			this.chr = chr;
-			this.pos = pos;
-			this.length = length;
+			this.count = count;
+			this.positions = positions;
+			this.lengths = lengths;
+			this.nameOffsets = nameOffsets;
+			this.names = names;
 		}
-				
-		@Override
-		public int compareTo(Variant that) {
-			// TODO Auto-generated method stub
-			int compare = this.chr.compareTo(that.chr);
+		
+		/**
+		 * Returns the index of the first variant with (position, length) >= (pos, length)
+		 */
+		int lowerBound(int pos, int length, int cursor) {
+			int idx;
 			
-			if (compare == 0) {
-				compare = this.pos - that.pos;
+			if (pos > lastPos[cursor] || (pos == lastPos[cursor] && length >= lastLength[cursor])) {
+				// Scan forward from the previous result, doubling the step until overshooting.
+				int low = lastIdx[cursor];
+				int step = 1;
+				while (low + step <= count && compare(low + step - 1, pos, length) < 0) {
+					low += step;
+					step *= 2;
+				}
+				idx = binarySearch(low, Math.min(low + step, count), pos, length);
+			} else {
+				idx = binarySearch(0, count, pos, length);
 			}
 			
-			if (compare == 0) {
-				compare = this.length - that.length;
+			lastIdx[cursor] = idx;
+			lastPos[cursor] = pos;
+			lastLength[cursor] = length;
+			
+			return idx;
+		}
+		
+		private int binarySearch(int low, int high, int pos, int length) {
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (compare(mid, pos, length) < 0) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
 			}
 			
+			return low;
+		}
+		
+		private int compare(int idx, int pos, int length) {
+			int compare = positions.get(idx) - pos;
 			if (compare == 0) {
-				compare = this.name.compareTo(that.name);
+				compare = lengths.get(idx) - length;
 			}
 			
 			return compare;
 		}
 		
-		@Override
-		public int hashCode() {
-			return name.hashCode();
+		String getName(int idx) {
+			byte[] name = new byte[nameOffsets.get(idx+1) - nameOffsets.get(idx)];
+			for (int i=0; i<name.length; i++) {
+				name[i] = names.get(nameOffsets.get(idx) + i);
+			}
+			return new String(name, Charset.forName("US-ASCII"));
+		}
+		
+		String toString(int idx) {
+			return getName(idx) + ":" + chr + ":" + positions.get(idx) + ":" + lengths.get(idx);
+		}
+	}
+	
+	/**
+	 * Accumulates a chromosome's variants in load order.
+	 */
+	static class ChromosomeBuilder {
+		private int[] positions = new int[1024];
+		private int[] lengths = new int[1024];
+		private List<String> names = new ArrayList<String>();
+		private boolean isSorted = true;
+		private int count = 0;
+		
+		void add(int pos, int length, String name) {
+			if (count == positions.length) {
+				positions = Arrays.copyOf(positions, count * 2);
+				lengths = Arrays.copyOf(lengths, count * 2);
+			}
+			
+			positions[count] = pos;
+			lengths[count] = length;
+			names.add(name);
+			
+			if (count > 0 && compare(count-1, count) > 0) {
+				isSorted = false;
+			}
+			
+			count += 1;
 		}
 		
-		@Override
-		public boolean equals(Object obj) {
-			Variant that = (Variant) obj;
+		private int compare(int idx1, int idx2) {
+			int compare = positions[idx1] - positions[idx2];
+			if (compare == 0) {
+				compare = lengths[idx1] - lengths[idx2];
+			}
+			if (compare == 0) {
+				compare = names.get(idx1).compareTo(names.get(idx2));
+			}
 			
-			return ((this.name.equals(that.name)) &&
-				(this.chr.equals(that.chr)) &&
-				(this.pos == that.pos) &&
-				(this.length == that.length));
+			return compare;
 		}
 		
-		public String toString() {
-			return name + ":" + chr + ":" + pos + ":" + length;
+		ChromosomeVariants build(String chr) {
+			Integer[] order = new Integer[count];
+			for (int i=0; i<count; i++) {
+				order[i] = i;
+			}
+			
+			// dbSNP is typically sorted by position already
+			if (!isSorted) {
+				Arrays.sort(order, new Comparator<Integer>() {
+					@Override
+					public int compare(Integer idx1, Integer idx2) {
+						return ChromosomeBuilder.this.compare(idx1, idx2);
+					}
+				});
+			}
+			
+			int[] sortedPositions = new int[count];
+			int[] sortedLengths = new int[count];
+			int[] nameOffsets = new int[count+1];
+			ByteArrayOutputStream packedNames = new ByteArrayOutputStream();
+			
+			int numUnique = 0;
+			
+			for (int i=0; i<count; i++) {
+				// Drop duplicate entries
+				if (i > 0 && compare(order[i-1], order[i]) == 0) {
+					continue;
+				}
+				
+				sortedPositions[numUnique] = positions[order[i]];
+				sortedLengths[numUnique] = lengths[order[i]];
+				byte[] name = names.get(order[i]).getBytes(Charset.forName("US-ASCII"));
+				packedNames.write(name, 0, name.length);
+				numUnique += 1;
+				nameOffsets[numUnique] = packedNames.size();
+			}
+			
+			return new ChromosomeVariants(chr, numUnique, IntBuffer.wrap(sortedPositions, 0, numUnique), IntBuffer.wrap(sortedLengths, 0, numUnique),
+					IntBuffer.wrap(nameOffsets, 0, numUnique+1), ByteBuffer.wrap(packedNames.toByteArray()));
 		}
 	}
 	
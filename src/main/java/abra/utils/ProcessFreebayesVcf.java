@@ -1,32 +1,38 @@
 /* Copyright 2013 University of North Carolina at Chapel Hill.  All rights reserved. */
 package abra.utils;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.util.HashMap;
-import java.util.Map;
-
 public class ProcessFreebayesVcf {
 	
+	private static final String TABLE = "foo_brca_germline_indel";
+	private static final String COLUMNS = "var_id,participant_id,chromosome,pos,gref,alt,indel_type,effect,impact,genes,gene,qual,depth,ref_cnt,alt_cnt,gt";
+	
+	private static final int NORMAL_FIELD = 9;
+	private static final byte[] HIGH = "HIGH".getBytes();
+	private static final byte[] MODERATE = "MODERATE".getBytes();
+	
 	public void processIndels(String participantId, String source, String vcf) throws Exception {
-		BufferedReader reader = new BufferedReader(new FileReader(vcf));
+		processIndels(participantId, source, vcf, null);
+	}
+	
+	/**
+	 * @param outputMode See {@link SqlRecordWriter}
+	 */
+	public void processIndels(String participantId, String source, String vcf, String outputMode) throws Exception {
+		VcfLineTokenizer reader = new VcfLineTokenizer(vcf);
+		reader.setTabDelimited(true);
+		
+		SqlRecordWriter writer = new SqlRecordWriter(TABLE, COLUMNS, outputMode);
 		
-		String line = reader.readLine();
-		while (line != null) {
+		while (reader.next()) {
 			
-			if (!line.startsWith("#") &&
-				((line.contains("HIGH") || line.contains("MODERATE")))) {
+			if (reader.lineContains(HIGH) || reader.lineContains(MODERATE)) {
 				
-				String[] fields = line.split("\t");
-				String chr = fields[0];
-				Integer pos = Integer.parseInt(fields[1]);
-				String ref = fields[3];
-				String alt = fields[4];
+				String chr = reader.getField(0);
+				int pos = reader.parseInt(1);
+				String ref = reader.getField(3);
+				String alt = reader.getField(4);
 				if (!alt.contains(",")) {
-					int qual = (int) Float.parseFloat(fields[5]);
-//					String filter = fields[6];
-					String infoStr = fields[7];
-					String normalStr = fields[9];
+					int qual = (int) Float.parseFloat(reader.getField(5));
 					
 					String indelType = "UNK";
 					if (ref.length() > 1) {
@@ -35,9 +41,9 @@ public class ProcessFreebayesVcf {
 						indelType = quote("INS");
 					}
 					
-					String info = parseInfo(infoStr);
+					String info = parseInfo(reader);
 					
-					String countsAndGt = parseFormat(normalStr);
+					String countsAndGt = parseFormat(reader, NORMAL_FIELD);
 					
 					String varId = chr + ":" + pos + ":" + ref + ":" + alt + ":" + participantId;
 					
@@ -62,36 +68,16 @@ public class ProcessFreebayesVcf {
 					str.append('\t');
 					str.append(countsAndGt);
 					
-					System.out.println(sql(str.toString()));
+					writer.write(str.toString());
 				}
 			}
-			
-			line = reader.readLine();
 		}
 		
+		writer.close();
 		reader.close();
 	}
 	
-	private String sql(String rec) {
-		rec = rec.replaceAll("\t", ",");
-		
-//		String sql = "INSERT INTO somatic_indel (" +
-//				"var_id,participant_id,chromosome,pos,gref,alt,source,indel_type,dp_filter,repeat_filter,ihpol_filter,bcnoise_filter,qsi_ref_filter,qsi,tqsi,nt,qsi_nt,tqsi_nt,sgt,ru,rc,ic,ihp,effect,impact,genes,gene,normal_dp1,normal_dp2,normal_tar1,normal_tar2,normal_tir1,normal_tir2,tumor_dp1,tumor_dp2,tumor_tar1,tumor_tar2,tumor_tir1,tumor_tir2" +
-//				") VALUES ("+
-//				rec + 
-//				");";
-		
-		String sql = "INSERT INTO foo_brca_germline_indel (" +
-				"var_id,participant_id,chromosome,pos,gref,alt,indel_type,effect,impact,genes,gene,qual,depth,ref_cnt,alt_cnt,gt" +
-				") VALUES ("+
-				rec + 
-				");";
-
-		
-		return sql;
-	}
-	
-	private String parseFormat(String format) {
+	private String parseFormat(VcfLineTokenizer reader, int field) {
 		StringBuffer str = new StringBuffer();
 		//DP:DP2:TAR:TIR:TOR:DP50:FDP50:SUBDP50
 		//394:394:205,205:171,172:21,21:384.36:0.51:0.00
@@ -103,9 +89,7 @@ public class ProcessFreebayesVcf {
 		// GT
 		// 1|1
 		
-		format = format.replace("|", "/");
-		
-		String gt = format.split(":")[0];
+		String gt = reader.getSubField(field, ':', 0).replace('|', '/');
 		
 		return "0\t0\t0\t" + quote(gt);
 		
@@ -142,22 +126,6 @@ public class ProcessFreebayesVcf {
 		return output.toString();
 	}
 	
-	private Map<String, String> getInfoMap(String info) {
-		
-		Map<String, String> map = new HashMap<String, String>();
-		
-		String[] fields = info.split(";");
-		
-		for (int i=0; i<fields.length; i++) {
-			String[] field = fields[i].split("=");
-			if (field.length == 2) {
-				map.put(field[0], field[1]);
-			}
-		}
-		
-		return map;
-	}
-	
 	private String appendString(String orig, String addition) {
 		if (orig == null) {
 			orig = addition;
@@ -213,14 +181,12 @@ public class ProcessFreebayesVcf {
 		return "'" + str + "'";
 	}
 	
-	private String parseInfo(String info) {
+	private String parseInfo(VcfLineTokenizer reader) {
 		// EFF
 		
-		Map<String, String> map = getInfoMap(info);
-		
 		StringBuffer str = new StringBuffer();
 		
-		str.append(parseEffect(map.get("EFF")));
+		str.append(parseEffect(reader.getInfo("EFF")));
 		
 		return str.toString();
 	}
@@ -237,6 +203,8 @@ public class ProcessFreebayesVcf {
 //		String vcf = "/home/lmose/dev/vcf/all.germline.indels.abra.ann.vcf";
 //		String vcf = "/home/lmose/dev/vcf/freebayes/fb.test.vcf";
 		
-		p.processIndels(participantId, source, vcf);
+		String outputMode = args.length > 2 ? args[2] : null;
+		
+		p.processIndels(participantId, source, vcf, outputMode);
 	}
 }
@@ -1,109 +1,87 @@
 /* Copyright 2013 University of North Carolina at Chapel Hill.  All rights reserved. */
 package abra.utils;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.util.HashMap;
-import java.util.Map;
-
 public class ProcessIsaacVcf {
 	
+	private static final String TABLE = "abra_brca_germline_indel";
+	private static final String COLUMNS = "var_id,participant_id,chromosome,pos,gref,alt,indel_type,effect,impact,genes,gene,qual,filter,depth,ref_cnt,alt_cnt";
+	
+	private static final int NORMAL_FIELD = 9;
+	
 	public void processIndels(String participantId, String source, String vcf) throws Exception {
-		BufferedReader reader = new BufferedReader(new FileReader(vcf));
-		
-		String line = reader.readLine();
-		while (line != null) {
-			
-			if (!line.startsWith("#")) {
-//				((line.contains("HIGH") || line.contains("MODERATE")))) {
+		processIndels(participantId, source, vcf, null);
+	}
+	
+	/**
+	 * @param outputMode See {@link SqlRecordWriter}
+	 */
+	public void processIndels(String participantId, String source, String vcf, String outputMode) throws Exception {
+		VcfLineTokenizer reader = new VcfLineTokenizer(vcf);
+		reader.setTabDelimited(true);
+		
+		SqlRecordWriter writer = new SqlRecordWriter(TABLE, COLUMNS, outputMode);
+		
+		while (reader.next()) {
+			String chr = reader.getField(0);
+			int pos = reader.parseInt(1);
+			String ref = reader.getField(3);
+			String alt = reader.getField(4);
+			if (!alt.contains(",")) {
+				int qual = (int) Float.parseFloat(reader.getField(5));
+				String filter = reader.getField(6);
 				
-				String[] fields = line.split("\t");
-				String chr = fields[0];
-				Integer pos = Integer.parseInt(fields[1]);
-				String ref = fields[3];
-				String alt = fields[4];
-				if (!alt.contains(",")) {
-					int qual = (int) Float.parseFloat(fields[5]);
-					String filter = fields[6];
-					String infoStr = fields[7];
-					String normalStr = fields[9];
-					
-					String indelType = "UNK";
-					if (ref.length() > 1) {
-						indelType = quote("DEL");
-					} else if (alt.length() > 1) {
-						indelType = quote("INS");
-					}
-					
-					String info = parseInfo(infoStr);
-					
-					String normalCounts = parseFormat(normalStr);
-					
-					String varId = chr + ":" + pos + ":" + ref + ":" + alt + ":" + participantId;
-					
-					StringBuffer str = new StringBuffer();
-					str.append(quote(varId));
-					str.append('\t');
-					str.append(quote(participantId));
-					str.append('\t');				
-					str.append(quote(chr));
-					str.append('\t');
-					str.append(pos);
-					str.append('\t');
-					str.append(quote(ref));
-					str.append('\t');
-					str.append(quote(alt));
-					str.append('\t');
-					str.append(indelType);
-					str.append('\t');
-					str.append(info);
-					str.append('\t');
-					str.append(qual);
-					str.append('\t');
-					str.append(quote(filter));
-					str.append('\t');
-					str.append(normalCounts);
-					
-					System.out.println(sql(str.toString()));
+				String indelType = "UNK";
+				if (ref.length() > 1) {
+					indelType = quote("DEL");
+				} else if (alt.length() > 1) {
+					indelType = quote("INS");
 				}
+				
+				String info = parseInfo(reader);
+				
+				String normalCounts = parseFormat(reader, NORMAL_FIELD);
+				
+				String varId = chr + ":" + pos + ":" + ref + ":" + alt + ":" + participantId;
+				
+				StringBuffer str = new StringBuffer();
+				str.append(quote(varId));
+				str.append('\t');
+				str.append(quote(participantId));
+				str.append('\t');				
+				str.append(quote(chr));
+				str.append('\t');
+				str.append(pos);
+				str.append('\t');
+				str.append(quote(ref));
+				str.append('\t');
+				str.append(quote(alt));
+				str.append('\t');
+				str.append(indelType);
+				str.append('\t');
+				str.append(info);
+				str.append('\t');
+				str.append(qual);
+				str.append('\t');
+				str.append(quote(filter));
+				str.append('\t');
+				str.append(normalCounts);
+				
+				writer.write(str.toString());
 			}
-			
-			line = reader.readLine();
 		}
 		
+		writer.close();
 		reader.close();
 	}
 	
-	private String sql(String rec) {
-		rec = rec.replaceAll("\t", ",");
-		
-//		String sql = "INSERT INTO somatic_indel (" +
-//				"var_id,participant_id,chromosome,pos,gref,alt,source,indel_type,dp_filter,repeat_filter,ihpol_filter,bcnoise_filter,qsi_ref_filter,qsi,tqsi,nt,qsi_nt,tqsi_nt,sgt,ru,rc,ic,ihp,effect,impact,genes,gene,normal_dp1,normal_dp2,normal_tar1,normal_tar2,normal_tir1,normal_tir2,tumor_dp1,tumor_dp2,tumor_tar1,tumor_tar2,tumor_tir1,tumor_tir2" +
-//				") VALUES ("+
-//				rec + 
-//				");";
-		
-		String sql = "INSERT INTO abra_brca_germline_indel (" +
-				"var_id,participant_id,chromosome,pos,gref,alt,indel_type,effect,impact,genes,gene,qual,filter,depth,ref_cnt,alt_cnt" +
-				") VALUES ("+
-				rec + 
-				");";
-
-		
-		return sql;
-	}
-	
-	private String parseFormat(String format) {
+	private String parseFormat(VcfLineTokenizer reader, int field) {
 		StringBuffer str = new StringBuffer();
 		//DP:DP2:TAR:TIR:TOR:DP50:FDP50:SUBDP50
 		//394:394:205,205:171,172:21,21:384.36:0.51:0.00
 		
-		String[] fields = format.split(":");
-		
-		int depth = Integer.parseInt(fields[3]);
-		String[] counts = fields[4].split(",");
-		int refCount = Integer.parseInt(counts[0]);
-		int altCount = Integer.parseInt(counts[1]);
+		int depth = reader.parseSubFieldInt(field, ':', 3);
+		int refCount = reader.parseSubFieldInt(field, ':', 4, ',', 0);
+		int altCount = reader.parseSubFieldInt(field, ':', 4, ',', 1);
 		
 		str.append(depth);
 		str.append('\t');
@@ -140,22 +118,6 @@ public class ProcessIsaacVcf {
 		return output.toString();
 	}
 	
-	private Map<String, String> getInfoMap(String info) {
-		
-		Map<String, String> map = new HashMap<String, String>();
-		
-		String[] fields = info.split(";");
-		
-		for (int i=0; i<fields.length; i++) {
-			String[] field = fields[i].split("=");
-			if (field.length == 2) {
-				map.put(field[0], field[1]);
-			}
-		}
-		
-		return map;
-	}
-	
 	private String appendString(String orig, String addition) {
 		if (orig == null) {
 			orig = addition;
@@ -211,14 +173,12 @@ public class ProcessIsaacVcf {
 		return "'" + str + "'";
 	}
 	
-	private String parseInfo(String info) {
+	private String parseInfo(VcfLineTokenizer reader) {
 		// EFF
 		
-		Map<String, String> map = getInfoMap(info);
-		
 		StringBuffer str = new StringBuffer();
 		
-		str.append(parseEffect(map.get("EFF")));
+		str.append(parseEffect(reader.getInfo("EFF")));
 		
 		return str.toString();
 	}
@@ -234,6 +194,8 @@ public class ProcessIsaacVcf {
 		String source = "";
 //		String vcf = "/home/lmose/dev/vcf/all.germline.indels.abra.ann.vcf";
 		
-		p.processIndels(participantId, source, vcf);
+		String outputMode = args.length > 2 ? args[2] : null;
+		
+		p.processIndels(participantId, source, vcf, outputMode);
 	}
 }
@@ -1,130 +1,97 @@
 /* Copyright 2013 University of North Carolina at Chapel Hill.  All rights reserved. */
 package abra.utils;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.util.HashMap;
-import java.util.Map;
-
 public class ProcessStrelkaVcf {
 	
+	private static final String TABLE = "somatic_indel";
+	private static final String COLUMNS = "var_id,participant_id,chromosome,pos,gref,alt,source,indel_type,dp_filter,repeat_filter,ihpol_filter,bcnoise_filter,qsi_ref_filter,qsi,tqsi,nt,qsi_nt,tqsi_nt,sgt,ru,rc,ic,ihp,effect,impact,genes,gene,normal_dp1,normal_dp2,normal_tar1,normal_tar2,normal_tir1,normal_tir2,tumor_dp1,tumor_dp2,tumor_tar1,tumor_tar2,tumor_tir1,tumor_tir2";
+	
+	private static final int NORMAL_FIELD = 9;
+	private static final int TUMOR_FIELD = 10;
+	
 	public void processIndels(String participantId, String source, String vcf) throws Exception {
-		BufferedReader reader = new BufferedReader(new FileReader(vcf));
-		
-		String line = reader.readLine();
-		while (line != null) {
+		processIndels(participantId, source, vcf, null);
+	}
+	
+	/**
+	 * @param outputMode See {@link SqlRecordWriter}
+	 */
+	public void processIndels(String participantId, String source, String vcf, String outputMode) throws Exception {
+		VcfLineTokenizer reader = new VcfLineTokenizer(vcf);
+		reader.setTabDelimited(true);
+		
+		SqlRecordWriter writer = new SqlRecordWriter(TABLE, COLUMNS, outputMode);
+		
+		while (reader.next()) {
+			String chr = reader.getField(0);
+			int pos = reader.parseInt(1);
+			String ref = reader.getField(3);
+			String alt = reader.getField(4);
+			String filterStr = reader.getField(6);
 			
-			if (!line.startsWith("#")) {
-//				((line.contains("HIGH") || line.contains("MODERATE")))) {
-				
-				String[] fields = line.split("\t");
-				String chr = fields[0];
-				Integer pos = Integer.parseInt(fields[1]);
-				String ref = fields[3];
-				String alt = fields[4];
-				String filterStr = fields[6];
-				String infoStr = fields[7];
-				String normalStr = fields[9];
-				String tumorStr = fields[10];
-				
-				String indelType = "UNK";
-				if (ref.length() > 1) {
-					indelType = quote("DEL");
-				} else if (alt.length() > 1) {
-					indelType = quote("INS");
-				}
-				
-				String filter = parseFilter(filterStr);
-				String info = parseInfo(infoStr);
-				
-				String normalCounts = parseFormat(normalStr);
-				String tumorCounts = parseFormat(tumorStr);
-				
-				String varId = chr + ":" + pos + ":" + ref + ":" + alt + ":" + participantId;
-				
-				StringBuffer str = new StringBuffer();
-				str.append(quote(varId));
-				str.append('\t');
-				str.append(quote(participantId));
-				str.append('\t');				
-				str.append(quote(chr));
-				str.append('\t');
-				str.append(pos);
-				str.append('\t');
-				str.append(quote(ref));
-				str.append('\t');
-				str.append(quote(alt));
-				str.append('\t');
-				str.append(quote(source));
-				str.append('\t');
-				str.append(indelType);
-				str.append('\t');
-				str.append(filter);
-				str.append('\t');
-				str.append(info);
-				str.append('\t');
-				str.append(normalCounts);
-				str.append('\t');
-				str.append(tumorCounts);
-				
-				System.out.println(sql(str.toString()));
+			String indelType = "UNK";
+			if (ref.length() > 1) {
+				indelType = quote("DEL");
+			} else if (alt.length() > 1) {
+				indelType = quote("INS");
 			}
 			
-			line = reader.readLine();
+			String filter = parseFilter(filterStr);
+			String info = parseInfo(reader);
+			
+			String normalCounts = parseFormat(reader, NORMAL_FIELD);
+			String tumorCounts = parseFormat(reader, TUMOR_FIELD);
+			
+			String varId = chr + ":" + pos + ":" + ref + ":" + alt + ":" + participantId;
+			
+			StringBuffer str = new StringBuffer();
+			str.append(quote(varId));
+			str.append('\t');
+			str.append(quote(participantId));
+			str.append('\t');				
+			str.append(quote(chr));
+			str.append('\t');
+			str.append(pos);
+			str.append('\t');
+			str.append(quote(ref));
+			str.append('\t');
+			str.append(quote(alt));
+			str.append('\t');
+			str.append(quote(source));
+			str.append('\t');
+			str.append(indelType);
+			str.append('\t');
+			str.append(filter);
+			str.append('\t');
+			str.append(info);
+			str.append('\t');
+			str.append(normalCounts);
+			str.append('\t');
+			str.append(tumorCounts);
+			
+			writer.write(str.toString());
 		}
 		
+		writer.close();
 		reader.close();
 	}
 	
-	private String sql(String rec) {
-		rec = rec.replaceAll("\t", ",");
-		
-		String sql = "INSERT INTO somatic_indel (" +
-				"var_id,participant_id,chromosome,pos,gref,alt,source,indel_type,dp_filter,repeat_filter,ihpol_filter,bcnoise_filter,qsi_ref_filter,qsi,tqsi,nt,qsi_nt,tqsi_nt,sgt,ru,rc,ic,ihp,effect,impact,genes,gene,normal_dp1,normal_dp2,normal_tar1,normal_tar2,normal_tir1,normal_tir2,tumor_dp1,tumor_dp2,tumor_tar1,tumor_tar2,tumor_tir1,tumor_tir2" +
-				") VALUES ("+
-				rec + 
-				");";
-		
-		return sql;
-	}
-	
-	private String parseFormat(String format) {
+	private String parseFormat(VcfLineTokenizer reader, int field) {
 		StringBuffer str = new StringBuffer();
 		//DP:DP2:TAR:TIR:TOR:DP50:FDP50:SUBDP50
 		//394:394:205,205:171,172:21,21:384.36:0.51:0.00
 		
-		String[] fields = format.split(":");
-		
-		String dp = fields[0];
-		String dp2 = fields[1];
-		String[] tar = fields[2].split(",");
-		String[] tir = fields[3].split(",");
-		String[] tor = fields[4].split(",");
-		String dp50 = fields[5];
-		String fdp50 = fields[6];
-		String subdp50 = fields[7];
-
-		str.append(dp);
+		str.append(reader.getSubField(field, ':', 0));
 		str.append('\t');
-		str.append(dp2);
+		str.append(reader.getSubField(field, ':', 1));
 		str.append('\t');
-		str.append(tar[0]);
+		str.append(reader.getSubField(field, ':', 2, ',', 0));
 		str.append('\t');
-		str.append(tar[1]);
+		str.append(reader.getSubField(field, ':', 2, ',', 1));
 		str.append('\t');
-		str.append(tir[0]);
+		str.append(reader.getSubField(field, ':', 3, ',', 0));
 		str.append('\t');
-		str.append(tir[1]);
-//		str.append('\t');
-//		str.append(tor[0]);
-//		str.append('\t');
-//		str.append(tor[1]);
-//		str.append('\t');
-//		str.append(dp50);
-//		str.append('\t');
-//		str.append(fdp50);
-//		str.append('\t');
-//		str.append(subdp50);
+		str.append(reader.getSubField(field, ':', 3, ',', 1));
 		
 		return str.toString();
 	}
@@ -145,22 +112,6 @@ public class ProcessStrelkaVcf {
 		return output.toString();
 	}
 	
-	private Map<String, String> getInfoMap(String info) {
-		
-		Map<String, String> map = new HashMap<String, String>();
-		
-		String[] fields = info.split(";");
-		
-		for (int i=0; i<fields.length; i++) {
-			String[] field = fields[i].split("=");
-			if (field.length == 2) {
-				map.put(field[0], field[1]);
-			}
-		}
-		
-		return map;
-	}
-	
 	private String appendString(String orig, String addition) {
 		if (orig == null) {
 			orig = addition;
@@ -216,34 +167,32 @@ public class ProcessStrelkaVcf {
 		return "'" + str + "'";
 	}
 	
-	private String parseInfo(String info) {
+	private String parseInfo(VcfLineTokenizer reader) {
 		// QSI,TQSI,NT,QSI_NT,TQSI_NT,SGT,RU,RC,IC,IHP,EFF
 		
-		Map<String, String> map = getInfoMap(info);
-		
 		StringBuffer str = new StringBuffer();
 		
-		str.append(map.get("QSI"));
+		str.append(reader.getInfo("QSI"));
 		str.append('\t');
-		str.append(map.get("TQSI"));
+		str.append(reader.getInfo("TQSI"));
 		str.append('\t');
-		str.append(quote(map.get("NT")));
+		str.append(quote(reader.getInfo("NT")));
 		str.append('\t');
-		str.append(map.get("QSI_NT"));
+		str.append(reader.getInfo("QSI_NT"));
 		str.append('\t');
-		str.append(map.get("TQSI_NT"));
+		str.append(reader.getInfo("TQSI_NT"));
 		str.append('\t');
-		str.append(quote(map.get("SGT")));
+		str.append(quote(reader.getInfo("SGT")));
 		str.append('\t');
-		str.append(quote(map.get("RU")));
+		str.append(quote(reader.getInfo("RU")));
 		str.append('\t');
-		str.append(map.get("RC"));
+		str.append(reader.getInfo("RC"));
 		str.append('\t');
-		str.append(map.get("IC"));
+		str.append(reader.getInfo("IC"));
 		str.append('\t');
-		str.append(map.get("IHP"));
+		str.append(reader.getInfo("IHP"));
 		str.append('\t');
-		str.append(parseEffect(map.get("EFF")));
+		str.append(parseEffect(reader.getInfo("EFF")));
 		
 		return str.toString();
 	}
@@ -254,7 +203,8 @@ public class ProcessStrelkaVcf {
 		String participantId = args[0];
 		String source = args[1];
 		String vcf = args[2];
+		String outputMode = args.length > 3 ? args[3] : null;
 		
-		p.processIndels(participantId, source, vcf);
+		p.processIndels(participantId, source, vcf, outputMode);
 	}
 }
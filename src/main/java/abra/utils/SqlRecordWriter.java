@@ -0,0 +1,117 @@
+/* Copyright 2013 University of North Carolina at Chapel Hill.  All rights reserved. */
+package abra.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+
+/**
+ * Writes tab delimited records to stdout for loading into a results database.
+ * String values are expected to be single quoted and unquoted null indicates a missing value.
+ *
+ * Supported output modes are:
+ * <ul>
+ * <li>One INSERT statement per record (default)</li>
+ * <li>Multi-row INSERT statements containing up to the specified number of records</li>
+ * <li>COPY style tab separated values with quotes removed and \N for null</li>
+ * </ul>
+ *
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class SqlRecordWriter {
+
+	public static final String TSV = "tsv";
+
+	private static final String NULL = "null";
+	private static final String COPY_NULL = "\\N";
+
+	private PrintStream out;
+	private String insert;
+
+	private boolean isTsv = false;
+	private int batchSize = 1;
+	private int batchCount = 0;
+
+	/**
+	 * @param mode null for one INSERT per record, "tsv" for COPY style output
+	 *             or the number of records per multi-row INSERT.
+	 */
+	public SqlRecordWriter(String table, String columns, String mode) {
+		if (mode != null) {
+			if (mode.equals(TSV)) {
+				isTsv = true;
+			} else {
+				batchSize = Integer.parseInt(mode);
+				if (batchSize < 1) {
+					throw new IllegalArgumentException("Invalid batch size: " + mode);
+				}
+			}
+		}
+
+		insert = "INSERT INTO " + table + " (" + columns + ") VALUES ";
+		out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+	}
+
+	public void write(String rec) {
+		if (isTsv) {
+			writeTsv(rec);
+		} else if (batchSize == 1) {
+			out.print(insert);
+			out.print('(');
+			out.print(rec.replace('\t', ','));
+			out.println(");");
+		} else {
+			if (batchCount == 0) {
+				out.println(insert);
+			} else {
+				out.println(',');
+			}
+
+			out.print('(');
+			out.print(rec.replace('\t', ','));
+			out.print(')');
+
+			batchCount += 1;
+			if (batchCount == batchSize) {
+				out.println(';');
+				batchCount = 0;
+			}
+		}
+	}
+
+	private void writeTsv(String rec) {
+		int start = 0;
+		while (start <= rec.length()) {
+			int end = rec.indexOf('\t', start);
+			if (end < 0) {
+				end = rec.length();
+			}
+
+			if (start > 0) {
+				out.print('\t');
+			}
+
+			if (end - start >= 2 && rec.charAt(start) == '\'' && rec.charAt(end-1) == '\'') {
+				out.print(rec.substring(start+1, end-1));
+			} else if (rec.regionMatches(start, NULL, 0, NULL.length()) && end - start == NULL.length()) {
+				out.print(COPY_NULL);
+			} else {
+				out.print(rec.substring(start, end));
+			}
+
+			start = end + 1;
+		}
+
+		out.println();
+	}
+
+	public void close() {
+		if (batchCount > 0) {
+			out.println(';');
+			batchCount = 0;
+		}
+
+		out.flush();
+	}
+}
@@ -0,0 +1,544 @@
+/* Copyright 2013 University of North Carolina at Chapel Hill.  All rights reserved. */
+package abra.utils;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads VCF records directly from a byte buffer.  Fields are located by offset
+ * within the current line and are only converted to Strings when requested.
+ * By default fields are delimited by runs of whitespace (consistent with line.split("\\s+")).
+ * In tab delimited mode each tab separates a field (consistent with line.split("\t")).
+ * INFO and FORMAT sub fields are located on demand.  Header lines are skipped.
+ *
+ * @author Lisle E. Mose (lmose at unc dot edu)
+ */
+public class VcfLineTokenizer {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	// Only the fixed columns and the first two samples are used.
+	private static final int MAX_FIELDS = 11;
+
+	private static final int INFO_FIELD = 7;
+
+	private static final byte[] EQUALS = { '=' };
+
+	private InputStream is;
+
+	// Bytes remaining in the file region to read
+	private long remaining;
+
+	private byte[] buf = new byte[BUFFER_SIZE];
+	private int bufLen = 0;
+
+	private int lineStart = 0;
+	private int lineEnd = 0;
+	private int nextLine = 0;
+
+	private int[] fieldStart = new int[MAX_FIELDS];
+	private int[] fieldEnd = new int[MAX_FIELDS];
+	private int numFields;
+
+	private boolean isEof = false;
+
+	private boolean isTabDelimited = false;
+
+	/**
+	 * Reads the entire file.
+	 */
+	public VcfLineTokenizer(String file) throws IOException {
+		this(file, 0, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Reads only the region of the file in [start, end).  start must be at the beginning of a line.
+	 */
+	public VcfLineTokenizer(String file, long start, long end) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		fis.getChannel().position(start);
+		this.is = fis;
+		this.remaining = end - start;
+	}
+
+	/**
+	 * If true, each tab separates a field and empty fields are retained.
+	 */
+	public void setTabDelimited(boolean isTabDelimited) {
+		this.isTabDelimited = isTabDelimited;
+	}
+
+	/**
+	 * Advances to the next record.  Returns false at end of input.
+	 */
+	public boolean next() throws IOException {
+
+		while (true) {
+			if (!findLine()) {
+				return false;
+			}
+
+			if (lineEnd > lineStart && buf[lineStart] != '#') {
+				tokenize();
+				return true;
+			}
+		}
+	}
+
+	// Locates the next line, refilling the buffer as needed.
+	private boolean findLine() throws IOException {
+		int idx = nextLine;
+
+		while (true) {
+			while (idx < bufLen && buf[idx] != '\n') {
+				idx++;
+			}
+
+			if (idx < bufLen) {
+				setLine(nextLine, idx);
+				nextLine = idx + 1;
+				return true;
+			}
+
+			if (isEof) {
+				if (nextLine < bufLen) {
+					// Last line lacks a newline
+					setLine(nextLine, bufLen);
+					nextLine = bufLen;
+					return true;
+				}
+				return false;
+			}
+
+			idx -= nextLine;
+			fill();
+		}
+	}
+
+	private void setLine(int start, int end) {
+		lineStart = start;
+		lineEnd = end;
+		if (lineEnd > lineStart && buf[lineEnd-1] == '\r') {
+			lineEnd--;
+		}
+	}
+
+	// Shifts the current partial line to the start of the buffer and reads more data.
+	private void fill() throws IOException {
+		int partial = bufLen - nextLine;
+
+		if (partial == buf.length) {
+			byte[] expanded = new byte[buf.length * 2];
+			System.arraycopy(buf, nextLine, expanded, 0, partial);
+			buf = expanded;
+		} else if (nextLine > 0) {
+			System.arraycopy(buf, nextLine, buf, 0, partial);
+		}
+
+		nextLine = 0;
+		bufLen = partial;
+
+		int toRead = (int) Math.min(buf.length - bufLen, remaining);
+		int read = toRead > 0 ? is.read(buf, bufLen, toRead) : -1;
+
+		if (read < 0) {
+			isEof = true;
+		} else {
+			bufLen += read;
+			remaining -= read;
+		}
+	}
+
+	private void tokenize() {
+		numFields = 0;
+		int idx = lineStart;
+
+		if (isTabDelimited) {
+			while (idx <= lineEnd && numFields < MAX_FIELDS) {
+				fieldStart[numFields] = idx;
+				while (idx < lineEnd && buf[idx] != '\t') {
+					idx++;
+				}
+				fieldEnd[numFields] = idx;
+				numFields++;
+				idx++;
+			}
+			return;
+		}
+
+		while (idx < lineEnd && numFields < MAX_FIELDS) {
+			while (idx < lineEnd && isWhitespace(buf[idx])) {
+				idx++;
+			}
+
+			if (idx < lineEnd) {
+				fieldStart[numFields] = idx;
+				while (idx < lineEnd && !isWhitespace(buf[idx])) {
+					idx++;
+				}
+				fieldEnd[numFields] = idx;
+				numFields++;
+			}
+		}
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == '\t' || b == ' ' || b == '\r' || b == '\f' || b == 0x0B;
+	}
+
+	private void checkField(int field) {
+		if (field >= numFields) {
+			throw new ArrayIndexOutOfBoundsException(field);
+		}
+	}
+
+	public String getLine() {
+		return new String(buf, lineStart, lineEnd - lineStart);
+	}
+
+	public String getField(int field) {
+		checkField(field);
+		return new String(buf, fieldStart[field], fieldEnd[field] - fieldStart[field]);
+	}
+
+	/**
+	 * Returns the delimited sub field as a String.  i.e. field.split(":")[subField]
+	 */
+	public String getSubField(int field, char delimiter, int subField) {
+		int start = subFieldStart(field, delimiter, subField);
+		return new String(buf, start, subFieldEnd(field, delimiter, start) - start);
+	}
+
+	/**
+	 * Returns the value of the specified INFO key or null if the key is not present
+	 * or does not have a value.  Consistent with a map of INFO entries, the last
+	 * occurrence of a key wins.
+	 */
+	public String getInfo(String key) {
+		checkField(INFO_FIELD);
+		int idx = fieldStart[INFO_FIELD];
+		int end = fieldEnd[INFO_FIELD];
+
+		String value = null;
+
+		while (idx < end) {
+			int entryEnd = idx;
+			while (entryEnd < end && buf[entryEnd] != ';') {
+				entryEnd++;
+			}
+
+			int keyLength = key.length();
+			if (entryEnd - idx > keyLength && buf[idx + keyLength] == '=' && regionEquals(idx, idx + keyLength, key)) {
+				int valueStart = idx + keyLength + 1;
+
+				// Trailing delimiters are dropped by split("=")
+				int valueEnd = entryEnd;
+				while (valueEnd > valueStart && buf[valueEnd-1] == '=') {
+					valueEnd--;
+				}
+
+				if (valueEnd > valueStart && indexOf(valueStart, valueEnd, EQUALS) < 0) {
+					value = new String(buf, valueStart, valueEnd - valueStart);
+				}
+			}
+
+			idx = entryEnd + 1;
+		}
+
+		return value;
+	}
+
+	public int getFieldLength(int field) {
+		checkField(field);
+		return fieldEnd[field] - fieldStart[field];
+	}
+
+	/**
+	 * Returns true if the field matches the specified ASCII bytes.
+	 */
+	public boolean fieldEquals(int field, byte[] value) {
+		checkField(field);
+		return regionEquals(fieldStart[field], fieldEnd[field], value);
+	}
+
+	public int parseInt(int field) {
+		checkField(field);
+		return parseInt(fieldStart[field], fieldEnd[field]);
+	}
+
+	/**
+	 * Returns true if the field contains the specified ASCII bytes.
+	 */
+	public boolean fieldContains(int field, byte[] value) {
+		checkField(field);
+		return indexOf(fieldStart[field], fieldEnd[field], value) >= 0;
+	}
+
+	/**
+	 * Returns true if the line contains the specified ASCII bytes.
+	 */
+	public boolean lineContains(byte[] value) {
+		return indexOf(lineStart, lineEnd, value) >= 0;
+	}
+
+	/**
+	 * Returns true if the delimited sub field (i.e. field.split(":")[subField]) matches
+	 * the specified ASCII bytes.
+	 */
+	public boolean subFieldEquals(int field, char delimiter, int subField, byte[] value) {
+		int start = subFieldStart(field, delimiter, subField);
+		return regionEquals(start, subFieldEnd(field, delimiter, start), value);
+	}
+
+	/**
+	 * Parses the indexed integer within a delimited sub field.
+	 * i.e. Integer.parseInt(field.split(":")[subField].split(",")[idx])
+	 */
+	public int parseSubFieldInt(int field, char delimiter, int subField, char delimiter2, int idx) {
+		int start = subFieldStart(field, delimiter, subField);
+		int end = subFieldEnd(field, delimiter, start);
+		start = nestedStart(start, end, delimiter2, idx);
+		return parseInt(start, nestedEnd(start, end, delimiter2));
+	}
+
+	/**
+	 * Returns the indexed value within a delimited sub field.
+	 * i.e. field.split(":")[subField].split(",")[idx]
+	 */
+	public String getSubField(int field, char delimiter, int subField, char delimiter2, int idx) {
+		int start = subFieldStart(field, delimiter, subField);
+		int end = subFieldEnd(field, delimiter, start);
+		start = nestedStart(start, end, delimiter2, idx);
+		return new String(buf, start, nestedEnd(start, end, delimiter2) - start);
+	}
+
+	private int nestedStart(int start, int end, char delimiter, int idx) {
+		for (int i=0; i<idx; i++) {
+			while (start < end && buf[start] != delimiter) {
+				start++;
+			}
+			if (start == end) {
+				throw new ArrayIndexOutOfBoundsException(idx);
+			}
+			start++;
+		}
+
+		return start;
+	}
+
+	private int nestedEnd(int start, int end, char delimiter) {
+		int idx = start;
+		while (idx < end && buf[idx] != delimiter) {
+			idx++;
+		}
+		return idx;
+	}
+
+	public int parseSubFieldInt(int field, char delimiter, int subField) {
+		int start = subFieldStart(field, delimiter, subField);
+		return parseInt(start, subFieldEnd(field, delimiter, start));
+	}
+
+	private int subFieldStart(int field, char delimiter, int subField) {
+		checkField(field);
+		int idx = fieldStart[field];
+		int end = fieldEnd[field];
+
+		for (int i=0; i<subField; i++) {
+			while (idx < end && buf[idx] != delimiter) {
+				idx++;
+			}
+			if (idx == end) {
+				throw new ArrayIndexOutOfBoundsException(subField);
+			}
+			idx++;
+		}
+
+		return idx;
+	}
+
+	private int subFieldEnd(int field, char delimiter, int start) {
+		int end = fieldEnd[field];
+		int idx = start;
+		while (idx < end && buf[idx] != delimiter) {
+			idx++;
+		}
+		return idx;
+	}
+
+	private boolean regionEquals(int start, int end, byte[] value) {
+		if (end - start != value.length) {
+			return false;
+		}
+
+		for (int i=0; i<value.length; i++) {
+			if (buf[start+i] != value[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private boolean regionEquals(int start, int end, String value) {
+		if (end - start != value.length()) {
+			return false;
+		}
+
+		for (int i=0; i<value.length(); i++) {
+			if (buf[start+i] != value.charAt(i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private int indexOf(int start, int end, byte[] value) {
+		int last = end - value.length;
+		for (int i=start; i<=last; i++) {
+			int j = 0;
+			while (j < value.length && buf[i+j] == value[j]) {
+				j++;
+			}
+			if (j == value.length) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	private int parseInt(int start, int end) {
+		if (start >= end) {
+			throw new NumberFormatException("Empty integer field");
+		}
+
+		boolean isNegative = false;
+		int idx = start;
+		if (buf[idx] == '-' || buf[idx] == '+') {
+			isNegative = buf[idx] == '-';
+			idx++;
+			if (idx == end) {
+				throw new NumberFormatException(new String(buf, start, end - start));
+			}
+		}
+
+		long value = 0;
+		while (idx < end) {
+			int digit = buf[idx++] - '0';
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException(new String(buf, start, end - start));
+			}
+			value = value * 10 + digit;
+			if (value > (long) Integer.MAX_VALUE + 1) {
+				throw new NumberFormatException(new String(buf, start, end - start));
+			}
+		}
+
+		value = isNegative ? -value : value;
+		if (value > Integer.MAX_VALUE) {
+			throw new NumberFormatException(new String(buf, start, end - start));
+		}
+
+		return (int) value;
+	}
+
+	/**
+	 * Returns true if the field's bytes equal the chars of the specified String.
+	 * Used to reuse chromosome names across consecutive records.
+	 */
+	public boolean fieldEquals(int field, String value) {
+		checkField(field);
+		return regionEquals(fieldStart[field], fieldEnd[field], value);
+	}
+
+	public void close() throws IOException {
+		is.close();
+	}
+
+	/**
+	 * Returns the byte range [start, end) of each chromosome's records keyed by chromosome in file order.
+	 * Header lines are excluded.  Returns null if a chromosome's records are not contiguous.
+	 */
+	public static Map<String, long[]> indexChromosomes(String file) throws IOException {
+		Map<String, long[]> offsets = new LinkedHashMap<String, long[]>();
+
+		FileInputStream is = new FileInputStream(file);
+		try {
+			byte[] buf = new byte[BUFFER_SIZE];
+			byte[] chr = new byte[256];
+
+			long offset = 0;
+
+			// State at the start of a line
+			boolean isLineStart = true;
+			boolean isRecord = false;
+			int chrLen = 0;
+			boolean isChrDone = false;
+
+			String currChr = null;
+			long[] currRange = null;
+			long lineOffset = 0;
+
+			int read = is.read(buf);
+			while (read >= 0) {
+				for (int i=0; i<read; i++) {
+					byte b = buf[i];
+
+					if (isLineStart) {
+						lineOffset = offset + i;
+						isRecord = b != '#' && b != '\n';
+						chrLen = 0;
+						isChrDone = false;
+						isLineStart = false;
+					}
+
+					if (b == '\n') {
+						isLineStart = true;
+						if (isRecord) {
+							if (currRange != null) {
+								currRange[1] = offset + i + 1;
+							}
+						}
+					} else if (isRecord && !isChrDone) {
+						if (isWhitespace(b)) {
+							isChrDone = true;
+							String name = new String(chr, 0, chrLen);
+							if (!name.equals(currChr)) {
+								if (offsets.containsKey(name)) {
+									return null;
+								}
+								currChr = name;
+								currRange = new long[] { lineOffset, lineOffset };
+								offsets.put(name, currRange);
+							}
+						} else {
+							if (chrLen == chr.length) {
+								byte[] expanded = new byte[chr.length * 2];
+								System.arraycopy(chr, 0, expanded, 0, chrLen);
+								chr = expanded;
+							}
+							chr[chrLen++] = b;
+						}
+					}
+				}
+
+				offset += read;
+				read = is.read(buf);
+			}
+
+			// Last line lacks a newline
+			if (!isLineStart && isRecord && currRange != null) {
+				currRange[1] = offset;
+			}
+		} finally {
+			is.close();
+		}
+
+		return offsets;
+	}
+}
@@ -3,6 +3,7 @@ package abra.utils.trio;
 public class LocusGenotype  {
 
 	private String chromosome;
+	private int chromosomeIdx;
 	private int pos;
 	private int end;
 	private String ref;
@@ -21,7 +22,15 @@ public class LocusGenotype  {
 //	private String filter;
 	
 	public LocusGenotype(String chromosome, int pos, int end, String ref, String alt1, String alt2, Genotype gt, double qual, double altAlleleFreq) {
+		this(chromosome, -1, pos, end, ref, alt1, alt2, gt, qual, altAlleleFreq);
+	}
+	
+	/**
+	 * chromosomeIdx is the chromosome's ordinal in the merge order.
+	 */
+	public LocusGenotype(String chromosome, int chromosomeIdx, int pos, int end, String ref, String alt1, String alt2, Genotype gt, double qual, double altAlleleFreq) {
 		this.chromosome = chromosome;
+		this.chromosomeIdx = chromosomeIdx;
 		this.pos = pos;
 		this.end = end;
 		this.ref = ref;
@@ -54,6 +63,10 @@ public class LocusGenotype  {
 		return chromosome;
 	}
 
+	public int getChromosomeIdx() {
+		return chromosomeIdx;
+	}
+
 	public int getPos() {
 		return pos;
 	}
@@ -1,31 +1,129 @@
 package abra.utils.trio;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import abra.AbraRunnable;
+import abra.ThreadManager;
+import abra.utils.VcfLineTokenizer;
 
 public class TrioAnalysis {
 	
 	public void run(String chromosomes, String father, String mother, String child, TrioVcfReader.Caller caller) throws IOException {
 		TrioVcfReader rdr = new TrioVcfReader(chromosomes, father, mother, child, caller);
-    	
-    	int l = 0;
+		process(rdr, System.out);
+		rdr.close();
+	}
+	
+	/**
+	 * Processes chromosomes in parallel using the byte offsets of each chromosome's records
+	 * within the input VCFs.  Output is written in chromosome order.
+	 */
+	public void run(String chromosomes, final String father, final String mother, final String child,
+			final TrioVcfReader.Caller caller, int numThreads) throws IOException, InterruptedException {
+		
+		if (numThreads <= 1) {
+			run(chromosomes, father, mother, child, caller);
+			return;
+		}
+		
+		final Map<String, Integer> chromosomeOrder = TrioVcfReader.loadChromosomeOrder(chromosomes);
+		
+		final Map<String, long[]> fatherOffsets = VcfLineTokenizer.indexChromosomes(father);
+		final Map<String, long[]> motherOffsets = VcfLineTokenizer.indexChromosomes(mother);
+		final Map<String, long[]> childOffsets = VcfLineTokenizer.indexChromosomes(child);
+		
+		if (fatherOffsets == null || motherOffsets == null || childOffsets == null) {
+			System.err.println("VCF records not grouped by chromosome.  Processing serially.");
+			run(chromosomes, father, mother, child, caller);
+			return;
+		}
+		
+		Set<String> chromosomeSet = new HashSet<String>();
+		chromosomeSet.addAll(fatherOffsets.keySet());
+		chromosomeSet.addAll(motherOffsets.keySet());
+		chromosomeSet.addAll(childOffsets.keySet());
+		
+		for (String chromosome : chromosomeSet) {
+			if (!chromosomeOrder.containsKey(chromosome)) {
+				throw new IllegalArgumentException("Chromosome: " + chromosome + " not found in chromosome file.");
+			}
+		}
+		
+		List<String> chromosomeList = new ArrayList<String>(chromosomeSet);
+		Collections.sort(chromosomeList, new Comparator<String>() {
+			@Override
+			public int compare(String chr1, String chr2) {
+				return chromosomeOrder.get(chr1) - chromosomeOrder.get(chr2);
+			}
+		});
+		
+		ThreadManager threadManager = new ThreadManager(numThreads);
+		ByteArrayOutputStream[] outputs = new ByteArrayOutputStream[chromosomeList.size()];
+		
+		for (int i=0; i<chromosomeList.size(); i++) {
+			final String chromosome = chromosomeList.get(i);
+			final ByteArrayOutputStream output = new ByteArrayOutputStream();
+			outputs[i] = output;
+			
+			threadManager.spawnThread(new AbraRunnable(threadManager) {
+				@Override
+				public void go() throws Exception {
+					TrioVcfReader rdr = new TrioVcfReader(chromosomeOrder,
+							getTokenizer(father, fatherOffsets, chromosome),
+							getTokenizer(mother, motherOffsets, chromosome),
+							getTokenizer(child, childOffsets, chromosome), caller);
+					
+					PrintStream out = new PrintStream(output);
+					process(rdr, out);
+					out.flush();
+					rdr.close();
+				}
+			});
+		}
+		
+		threadManager.waitForAllThreadsToComplete();
+		
+		for (ByteArrayOutputStream output : outputs) {
+			output.writeTo(System.out);
+		}
+		
+		System.out.flush();
+	}
+	
+	private VcfLineTokenizer getTokenizer(String vcf, Map<String, long[]> offsets, String chromosome) throws IOException {
+		long[] range = offsets.get(chromosome);
+		if (range == null) {
+			range = new long[] { 0, 0 };
+		}
+		
+		return new VcfLineTokenizer(vcf, range[0], range[1]);
+	}
+	
+	private void process(TrioVcfReader rdr, PrintStream out) {
     	for (TrioGenotype gt : rdr) {
     		if (gt.hasVariant()) {
-    			
-    			System.out.println(gt.summary());
+    			out.println(gt.summary());
     		}
-    		
-//    		if (l++ > 500) break;
     	}
 	}
 	
 	public static void usage() {
-		System.out.println("TrioAnalysis <caller: [fb|gatk]> <chromosome_file> <child.vcf> <mother.vcf> <father.vcf>");
+		System.out.println("TrioAnalysis <caller: [fb|gatk]> <chromosome_file> <child.vcf> <mother.vcf> <father.vcf> [num_threads]");
 		System.exit(-1);
 	}
 
     public static void main(String[] args) throws Exception {
     	
-    	if (args.length != 5) {
+    	if (args.length != 5 && args.length != 6) {
     		usage();
     	}
     	String caller = args[0];
@@ -34,6 +132,11 @@ public class TrioAnalysis {
     	String mother = args[3];
     	String father = args[4];
     	
+    	int numThreads = 1;
+    	if (args.length > 5) {
+    		numThreads = Integer.parseInt(args[5]);
+    	}
+    	
     	TrioVcfReader.Caller callerType = null;
     	if (caller.equals("fb")) {
     		callerType = TrioVcfReader.Caller.FREEBAYES;
@@ -44,7 +147,7 @@ public class TrioAnalysis {
     	}
     	
     	TrioAnalysis ta = new TrioAnalysis();
-    	ta.run(chromosomes, father, mother, child, callerType);
+    	ta.run(chromosomes, father, mother, child, callerType, numThreads);
     	
 //    	String chromosomes = "/home/lmose/dev/abra/trio/chromosomes.txt";
     	
@@ -8,15 +8,14 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.zip.GZIPInputStream;
 
 import abra.Feature;
 import abra.RegionLoader;
+import abra.utils.VcfLineTokenizer;
 import abra.utils.trio.LocusGenotype.Genotype;
 
 import htsjdk.samtools.SAMFileHeader;
@@ -34,6 +33,25 @@ import htsjdk.samtools.SAMRecord;
  */
 public class TrioVcfReader implements Iterable<TrioGenotype> {
     
+    // Spacing between chromosomes in the merge order.  Positions must be less than this value.
+    private static final long CHROMOSOME_SPACING = 1000000000;
+    
+    private static final byte[] REF_REF = "0/0".getBytes();
+    private static final byte[] REF_ALT = "0/1".getBytes();
+    private static final byte[] ALT_REF = "1/0".getBytes();
+    private static final byte[] ALT_ALT = "1/1".getBytes();
+    private static final byte[] ALT1_ALT2 = "1/2".getBytes();
+    
+    private static final byte[] PHASED_REF_REF = "0|0".getBytes();
+    private static final byte[] PHASED_REF_ALT = "0|1".getBytes();
+    private static final byte[] PHASED_ALT_REF = "1|0".getBytes();
+    private static final byte[] PHASED_ALT_ALT = "1|1".getBytes();
+    private static final byte[] PHASED_ALT1_ALT2 = "1|2".getBytes();
+    private static final byte[] PHASED_ALT2_ALT1 = "2|1".getBytes();
+    
+    private static final byte[] APRIM = "APRIM".getBytes();
+    private static final byte[] DPI = "DPI".getBytes();
+    
     private LocusGenotype cachedFather;
     private LocusGenotype cachedMother;
     private LocusGenotype cachedChild;
@@ -42,11 +60,16 @@ public class TrioVcfReader implements Iterable<TrioGenotype> {
     private SAMRecord lastRead;
     private int lineCnt = 0;
     
-    private BufferedReader father;
-    private BufferedReader mother;
-    private BufferedReader child;
+    private VcfLineTokenizer father;
+    private VcfLineTokenizer mother;
+    private VcfLineTokenizer child;
+    
+    private Map<String, Integer> chromosomeOrder;
     
-    private Map<String, Long> chromosomeOrder;
+    // Chromosome of the previous record parsed.  VCF records are grouped by chromosome, so
+    // the ordinal lookup is only needed when the chromosome changes.
+    private String lastChromosome = null;
+    private int lastChromosomeIdx = -1;
     
     static final String NO_CHROMOSOME = "";
     
@@ -58,62 +81,47 @@ public class TrioVcfReader implements Iterable<TrioGenotype> {
 	private Caller caller;
     
     public TrioVcfReader(String chromosomeFile, String father, String mother, String child, Caller caller) throws IOException {
-    	
+    	this(loadChromosomeOrder(chromosomeFile), new VcfLineTokenizer(father),
+    			new VcfLineTokenizer(mother), new VcfLineTokenizer(child), caller);
+    }
+    
+    /**
+     * Merges the specified VCF records using a preloaded chromosome order.
+     * Tokenizers may be limited to a single chromosome.
+     */
+    TrioVcfReader(Map<String, Integer> chromosomeOrder, VcfLineTokenizer father, VcfLineTokenizer mother,
+    		VcfLineTokenizer child, Caller caller) {
+    	this.chromosomeOrder = chromosomeOrder;
+    	this.father = father;
+    	this.mother = mother;
+    	this.child = child;
     	this.caller = caller;
-//    	GtfLoader loader = new GtfLoader();
-//		List<Feature> regions = loader.load(regionsGtf);
-//    	
-//        regionIter = regions.iterator();
-//        if (regionIter.hasNext()) {
-//        	currentRegion = regionIter.next();
-//        }
-    	
-    	initChromosomeOrder(chromosomeFile);
-    	
-		//GZIPInputStream fatherGzip = new GZIPInputStream(new FileInputStream(father));
-		//GZIPInputStream motherGzip = new GZIPInputStream(new FileInputStream(mother));
-		//GZIPInputStream childGzip = new GZIPInputStream(new FileInputStream(child));
-    	
-		//this.father = new BufferedReader(new InputStreamReader(fatherGzip));
-//		this.mother = new BufferedReader(new InputStreamReader(motherGzip));
-//		this.child = new BufferedReader(new InputStreamReader(childGzip));
-		
-		
-		
-//		String l = this.father.readLine();
-//		while (l != null) {
-//			System.out.println(l);
-//			l = this.father.readLine();
-//		}
-		
-    	this.father = new BufferedReader(new FileReader(father));
-    	this.mother = new BufferedReader(new FileReader(mother));
-    	this.child = new BufferedReader(new FileReader(child));
     }
     
-    private void initChromosomeOrder(String chromosomeFile) throws IOException {
+    /**
+     * Returns the ordinal of each chromosome listed in the specified file.
+     */
+    static Map<String, Integer> loadChromosomeOrder(String chromosomeFile) throws IOException {
     	
-    	chromosomeOrder = new HashMap<String, Long>();
+    	Map<String, Integer> chromosomeOrder = new HashMap<String, Integer>();
     	
     	BufferedReader reader = new BufferedReader(new FileReader(chromosomeFile));
 
-    	long order = 0;
+    	int order = 0;
     	String chromosome = reader.readLine();
     	
     	while (chromosome != null) {
     		chromosome = chromosome.trim();
     		chromosomeOrder.put(chromosome, order);
-    		order += 1000000000;
+    		order += 1;
     		chromosome = reader.readLine();
     	}
     	
     	chromosomeOrder.put(NO_CHROMOSOME, order);
     	
     	reader.close();
-    }
-    
-    private long getChromosomeVal(String chr) {
-    	return chromosomeOrder.get(chr);
+    	
+    	return chromosomeOrder;
     }
     
     public void close() throws IOException {
@@ -122,7 +130,7 @@ public class TrioVcfReader implements Iterable<TrioGenotype> {
         child.close();
     }
     
-    private LocusGenotype parseLine(String line) {
+    private LocusGenotype parseLine(VcfLineTokenizer line) {
     	LocusGenotype lgt = null;
     	
     	if (caller == Caller.FREEBAYES) {
@@ -138,180 +146,153 @@ public class TrioVcfReader implements Iterable<TrioGenotype> {
     	return lgt;
     }
     
-    private LocusGenotype parseIsaacLine(String line) {
-//    	if (line == null) {
-//    		return LocusGenotype.REFERENCE;
-//    	}
+    // Resolves the chromosome String and ordinal for the current record.
+    private void resolveChromosome(VcfLineTokenizer line) {
+    	if (lastChromosome == null || !line.fieldEquals(0, lastChromosome)) {
+    		String chr = line.getField(0);
+    		Integer idx = chromosomeOrder.get(chr);
+    		if (idx == null) {
+    			throw new IllegalArgumentException("Chromosome: " + chr + " not found in chromosome file.");
+    		}
+    		lastChromosome = chr;
+    		lastChromosomeIdx = idx;
+    	}
+    }
+    
+    private LocusGenotype newLocusGenotype(VcfLineTokenizer line, int pos, Genotype gt, double qual, double altAlleleFreq) {
+    	String alt = line.getField(4);
+    	String alt1 = alt;
+    	String alt2 = null;
+    	
+    	// Consistent with alt.split(",") trailing empty strings are dropped
+    	int comma = alt.indexOf(',');
+    	if (comma >= 0) {
+    		alt1 = alt.substring(0, comma);
+    		int alt2End = alt.indexOf(',', comma+1);
+    		if (alt2End < 0) {
+    			alt2End = alt.length();
+    		}
+    		
+    		for (int i=comma+1; i<alt.length(); i++) {
+    			if (alt.charAt(i) != ',') {
+    				alt2 = alt.substring(comma+1, alt2End);
+    				break;
+    			}
+    		}
+    	}
+    	
+    	return new LocusGenotype(lastChromosome, lastChromosomeIdx, pos, pos, line.getField(3), alt1, alt2, gt, qual, altAlleleFreq);
+    }
+    
+    // Returns true if ref and first alt differ in length and one of them is a single base
+    private boolean isSimpleIndel(VcfLineTokenizer line) {
+    	int refLength = line.getFieldLength(3);
+    	int alt1Length = getAlt1Length(line);
+    	return (refLength > 1 && alt1Length == 1) || (refLength == 1 && alt1Length > 1);
+    }
+    
+    private int getAlt1Length(VcfLineTokenizer line) {
+    	String alt = line.getField(4);
+    	int comma = alt.indexOf(',');
+    	return comma >= 0 ? comma : alt.length();
+    }
+    
+    private Genotype parseUnphasedGenotype(VcfLineTokenizer line, boolean isAltRefHet) {
+    	Genotype gt;
+    	
+    	if (line.subFieldEquals(9, ':', 0, REF_REF)) {
+			gt = Genotype.REF_REF;
+		} else if (line.subFieldEquals(9, ':', 0, REF_ALT) || (isAltRefHet && line.subFieldEquals(9, ':', 0, ALT_REF))) {
+			gt = Genotype.REF_ALT1;
+		} else if (line.subFieldEquals(9, ':', 0, ALT_ALT)) {
+			gt = Genotype.ALT1_ALT1;
+		} else if (line.subFieldEquals(9, ':', 0, ALT1_ALT2)) {
+			gt = Genotype.ALT1_ALT2;
+		} else {			
+			gt = Genotype.UNK;
+		}
+    	
+    	return gt;
+    }
+    
+    private LocusGenotype parseIsaacLine(VcfLineTokenizer line) {
     	try {
-	    	String[] fields = line.split("\\s+");
-	    	
-	    	String chr = fields[0];
-	    	int pos = Integer.parseInt(fields[1]);
-	    	int end = pos;
-	    	
-	    	String ref = fields[3];
-	    	String[] alt = fields[4].split(",");
-	    	double qual = Double.parseDouble(fields[5]);
-//	    	String filter = fields[6];
-//	    	String info = fields[7];
+	    	resolveChromosome(line);
+	    	int pos = line.parseInt(1);
+	    	double qual = Double.parseDouble(line.getField(5));
 	    	
-//	    	int endIdx = info.indexOf("END=");
-//	    	if (endIdx >= 0) {
-//	    		int endStopIdx = info.indexOf(";");
-//	    		end = Integer.parseInt(info.substring(endIdx+4, endStopIdx));
-//	    	}
-	    	
-	    	Genotype gt = null;
+	    	Genotype gt = parseUnphasedGenotype(line, true);
 	    	double altAlleleFreq = 0.0;
 	    	
-	    	
-	    	String gtString = fields[9].split(":")[0];
-	    	
-	    	if (gtString.equals("0/0")) {
-				gt = Genotype.REF_REF;
-			} else if (gtString.equals("0/1") || gtString.equals("1/0")) {
-				gt = Genotype.REF_ALT1;
-			} else if (gtString.equals("1/1")) {
-				gt = Genotype.ALT1_ALT1;
-			} else if (gtString.equals("1/2")) {
-				gt = Genotype.ALT1_ALT2;
-			} else {			
-				gt = Genotype.UNK;
-			}
-	    	
-	    	if ((gt == Genotype.REF_ALT1) && ((ref.length() > 1 && alt[0].length() == 1) || (ref.length() == 1 && alt[0].length() > 1))) {
-	    		//String ad = fields[9].split(":")[1];
+	    	if ((gt == Genotype.REF_ALT1) && isSimpleIndel(line)) {
 	    		int adIdx = -1;
-	    		if (fields[8].contains("DPI")) {
+	    		if (line.fieldContains(8, DPI)) {
 	    			adIdx = 4;
 	    		} else {
 	    			adIdx = 5;
 	    		}
-	    		String ad = fields[9].split(":")[adIdx];
-	    		double ad1 = Integer.parseInt(ad.split(",")[0]);
-	    		double ad2 = Integer.parseInt(ad.split(",")[1]);
-//	    		double ad2 = Integer.parseInt(fields[9].split(":")[4]);
+	    		double ad1 = line.parseSubFieldInt(9, ':', adIdx, ',', 0);
+	    		double ad2 = line.parseSubFieldInt(9, ':', adIdx, ',', 1);
 	    		altAlleleFreq = ad2/(ad1+ad2);
-	    		
-//	    		if (altAlleleFreq < .2) {
-//	    			return LocusGenotype.REFERENCE;
-//	    		}
-	    		
 	    	} else if (gt == Genotype.ALT1_ALT1) {
 	    		altAlleleFreq = 1.0;
 	    	}
 	    	
-	    	return new LocusGenotype(chr, pos, end, ref, alt[0], alt.length > 1 ? alt[1] : null, gt, qual, altAlleleFreq);
+	    	return newLocusGenotype(line, pos, gt, qual, altAlleleFreq);
     	} catch (NumberFormatException e) {
     		e.printStackTrace();
-    		throw new RuntimeException("Error processing: " + line);
+    		throw new RuntimeException("Error processing: " + line.getLine());
     	}
     }
     
-    private LocusGenotype parseGatkLine(String line) {
-//    	if (line == null) {
-//    		return LocusGenotype.REFERENCE;
-//    	}
+    private LocusGenotype parseGatkLine(VcfLineTokenizer line) {
     	try {
-	    	String[] fields = line.split("\\s+");
-	    	
-	    	String chr = fields[0];
-	    	int pos = Integer.parseInt(fields[1]);
-	    	int end = pos;
-	    	
-	    	String ref = fields[3];
-	    	String[] alt = fields[4].split(",");
-	    	double qual = Double.parseDouble(fields[5]);
-//	    	String filter = fields[6];
-//	    	String info = fields[7];
+	    	resolveChromosome(line);
+	    	int pos = line.parseInt(1);
+	    	double qual = Double.parseDouble(line.getField(5));
 	    	
-//	    	int endIdx = info.indexOf("END=");
-//	    	if (endIdx >= 0) {
-//	    		int endStopIdx = info.indexOf(";");
-//	    		end = Integer.parseInt(info.substring(endIdx+4, endStopIdx));
-//	    	}
-	    	
-	    	Genotype gt = null;
+	    	Genotype gt = parseUnphasedGenotype(line, false);
 	    	double altAlleleFreq = 0.0;
 	    	
-	    	
-	    	String gtString = fields[9].split(":")[0];
-	    	
-	    	if (gtString.equals("0/0")) {
-				gt = Genotype.REF_REF;
-			} else if (gtString.equals("0/1")) {
-				gt = Genotype.REF_ALT1;
-			} else if (gtString.equals("1/1")) {
-				gt = Genotype.ALT1_ALT1;
-			} else if (gtString.equals("1/2")) {
-				gt = Genotype.ALT1_ALT2;
-			} else {			
-				gt = Genotype.UNK;
-			}
-	    	
-	    	if ((gt == Genotype.REF_ALT1) && ((ref.length() > 1 && alt[0].length() == 1) || (ref.length() == 1 && alt[0].length() > 1))) {
-	    		String ad = fields[9].split(":")[1];
-	    		double depth = Integer.parseInt(fields[9].split(":")[2]);
-	    		double ad1 = Integer.parseInt(ad.split(",")[0]);
-	    		double ad2 = Integer.parseInt(ad.split(",")[1]);
-//	    		double ad2 = Integer.parseInt(fields[9].split(":")[4]);
+	    	if ((gt == Genotype.REF_ALT1) && isSimpleIndel(line)) {
+	    		// Depth is unused, but must be a valid integer
+	    		line.parseSubFieldInt(9, ':', 2);
+	    		double ad1 = line.parseSubFieldInt(9, ':', 1, ',', 0);
+	    		double ad2 = line.parseSubFieldInt(9, ':', 1, ',', 1);
 	    		altAlleleFreq = ad2/(ad1+ad2);
-	    		
-//	    		if (altAlleleFreq < .2) {
-//	    			return LocusGenotype.REFERENCE;
-//	    		}
-	    		
 	    	} else if (gt == Genotype.ALT1_ALT1) {
 	    		altAlleleFreq = 1.0;
 	    	}
 	    	
-	    	return new LocusGenotype(chr, pos, end, ref, alt[0], alt.length > 1 ? alt[1] : null, gt, qual, altAlleleFreq);
+	    	return newLocusGenotype(line, pos, gt, qual, altAlleleFreq);
     	} catch (NumberFormatException e) {
     		e.printStackTrace();
-    		throw new RuntimeException("Error processing: " + line);
+    		throw new RuntimeException("Error processing: " + line.getLine());
     	}
     }
 
     
-    private LocusGenotype parseFreebayesLine(String line) {
-//    	if (line == null) {
-//    		return LocusGenotype.REFERENCE;
-//    	}
+    private LocusGenotype parseFreebayesLine(VcfLineTokenizer line) {
     	try {
-	    	String[] fields = line.split("\\s+");
-	    	
-	    	String chr = fields[0];
-	    	int pos = Integer.parseInt(fields[1]);
-	    	int end = pos;
-	    	
-	    	String ref = fields[3];
-	    	String[] alt = fields[4].split(",");
-	    	double qual = Double.parseDouble(fields[5]);
-//	    	String filter = fields[6];
-//	    	String info = fields[7];
-	    	
-//	    	int endIdx = info.indexOf("END=");
-//	    	if (endIdx >= 0) {
-//	    		int endStopIdx = info.indexOf(";");
-//	    		end = Integer.parseInt(info.substring(endIdx+4, endStopIdx));
-//	    	}
+	    	resolveChromosome(line);
+	    	int pos = line.parseInt(1);
+	    	double qual = Double.parseDouble(line.getField(5));
 	    	
 	    	Genotype gt = null;
 	    	double altAlleleFreq = 0.0;
 	    	
-	    	if (line.contains("APRIM")) {
-	    		String gtString = fields[9];
-	    		if (gtString.equals("0|0")) {
+	    	if (line.lineContains(APRIM)) {
+	    		if (line.fieldEquals(9, PHASED_REF_REF)) {
 					gt = Genotype.REF_REF;
-				} else if (gtString.equals("0|1")) {
+				} else if (line.fieldEquals(9, PHASED_REF_ALT)) {
 					gt = Genotype.REF_ALT1;
-				} else if (gtString.equals("1|0")) {
+				} else if (line.fieldEquals(9, PHASED_ALT_REF)) {
 					gt = Genotype.REF_ALT1;
-				} else if (gtString.equals("1|1")) {
+				} else if (line.fieldEquals(9, PHASED_ALT_ALT)) {
 					gt = Genotype.ALT1_ALT1;
-				} else if (gtString.equals("1|2")) {
+				} else if (line.fieldEquals(9, PHASED_ALT1_ALT2)) {
 					gt = Genotype.ALT1_ALT2;
-				} else if (gtString.equals("2|1")) {
+				} else if (line.fieldEquals(9, PHASED_ALT2_ALT1)) {
 					gt = Genotype.ALT1_ALT2;
 				} else {			
 					gt = Genotype.UNK;
@@ -319,54 +300,21 @@ public class TrioVcfReader implements Iterable<TrioGenotype> {
 	    		
 	    		altAlleleFreq = 1.0;
 	    	} else {
-	    	
-		    	String gtString = fields[9].split(":")[0];
-		    	
-		    	
+	    		gt = parseUnphasedGenotype(line, true);
 		    	
-		    	if (gtString.equals("0/0")) {
-					gt = Genotype.REF_REF;
-				} else if (gtString.equals("0/1") || gtString.equals("1/0")) {
-					gt = Genotype.REF_ALT1;
-				} else if (gtString.equals("1/1")) {
-					gt = Genotype.ALT1_ALT1;
-				} else if (gtString.equals("1/2")) {
-					gt = Genotype.ALT1_ALT2;
-				} else {			
-					gt = Genotype.UNK;
-				}
-		    	
-		    	
-		    	
-	//	    	if ((gt == Genotype.REF_ALT1) && (fields[8].contains("DPI"))) {
-		    	if ((gt == Genotype.REF_ALT1) && ((ref.length() > 1 && alt[0].length() == 1) || (ref.length() == 1 && alt[0].length() > 1))) {
-//		    		String ad = fields[9].split(":")[4];
-//		    		double depth = Integer.parseInt(fields[9].split(":")[1]);
-		    		double ad1 = Integer.parseInt(fields[9].split(":")[3]);
-		    		double ad2 = Integer.parseInt(fields[9].split(":")[5]);
-	//	    		String[] alleleDepth = ad.split(",");
-	//	    		double ad1 = Integer.parseInt(alleleDepth[0]);
-	//	    		double ad2 = Integer.parseInt(alleleDepth[1]);
+		    	if ((gt == Genotype.REF_ALT1) && isSimpleIndel(line)) {
+		    		double ad1 = line.parseSubFieldInt(9, ':', 3);
+		    		double ad2 = line.parseSubFieldInt(9, ':', 5);
 		    		altAlleleFreq = ad2/(ad1+ad2);
-		    		
-//		    		if (altAlleleFreq < .2) {
-//		    			return LocusGenotype.REFERENCE;
-//		    		}
-
-//		    		altAlleleFreq = ad2/(depth);
-		    		
-	//	    		if (altAlleleFreq < .2) {
-	//	    			gt = Genotype.REF_REF;
-	//	    		}
 		    	} else if (gt == Genotype.ALT1_ALT1) {
 		    		altAlleleFreq = 1.0;
 		    	}
 	    	}
 	    	
-	    	return new LocusGenotype(chr, pos, end, ref, alt[0], alt.length > 1 ? alt[1] : null, gt, qual, altAlleleFreq);
+	    	return newLocusGenotype(line, pos, gt, qual, altAlleleFreq);
     	} catch (NumberFormatException e) {
     		e.printStackTrace();
-    		throw new RuntimeException("Error processing: " + line);
+    		throw new RuntimeException("Error processing: " + line.getLine());
     	}
     }
     
@@ -376,56 +324,31 @@ public class TrioVcfReader implements Iterable<TrioGenotype> {
     	LocusGenotype child  = null;
     	
     	try {
-    		String fatherLine = null;
-    		String motherLine = null;
-    		String childLine = null;
-    		
     		if (cachedFather != null) {
     			father = cachedFather;
     			cachedFather = null;
-    		} else {
-	    		fatherLine = this.father.readLine();
-	    		while (fatherLine != null && fatherLine.startsWith("#")) {
-	    			fatherLine = this.father.readLine();
-	    		}
+    		} else if (this.father.next()) {
+    			father = parseLine(this.father);
     		}
     		
     		if (cachedMother != null) {
 	    		mother = cachedMother;
 	    		cachedMother = null;
-	    	} else {
-	    		motherLine = this.mother.readLine();
-	    		while(motherLine != null && motherLine.startsWith("#")) {
-	    			motherLine = this.mother.readLine();
-	    		}
+	    	} else if (this.mother.next()) {
+	    		mother = parseLine(this.mother);
 	    	}
     		
     		if (cachedChild != null) {
 	    		child = cachedChild;
 	    		cachedChild = null;
-	    	} else {
-	    		childLine = this.child.readLine();
-	    		while(childLine != null && childLine.startsWith("#")) {
-	    			childLine = this.child.readLine();
-	    		}
+	    	} else if (this.child.next()) {
+	    		child = parseLine(this.child);
 	    	}
     		
-        	if (fatherLine == null && motherLine == null && childLine == null) {
+        	if (father == null && mother == null && child == null) {
         		// We're at the end of all 3 vcfs.
         		return null;
         	}
-    		
-        	if (fatherLine != null) {
-        		father = parseLine(fatherLine);
-        	}
-
-        	if (motherLine != null) {
-        		mother = parseLine(motherLine);
-        	}
-        	
-        	if (childLine != null) {
-        		child = parseLine(childLine);
-        	}
 
     	} catch (IOException e) {
     		e.printStackTrace();
@@ -441,22 +364,15 @@ public class TrioVcfReader implements Iterable<TrioGenotype> {
 //    		System.out.println("here");
 //    	}
     	
-    	List<Long> ends = new ArrayList<Long>();
+    	long minEnd = Long.MAX_VALUE;
     	if (father != null) {
-    		ends.add(getEnd(father));
+    		minEnd = Math.min(minEnd, getEnd(father));
     	}
     	if (mother != null) {
-    		ends.add(getEnd(mother));
+    		minEnd = Math.min(minEnd, getEnd(mother));
     	}
     	if (child != null) {
-    		ends.add(getEnd(child));
-    	}
-    	
-    	long minEnd = Long.MAX_VALUE;
-    	for (long end : ends) {
-    		if (end < minEnd) {
-    			minEnd = end;
-    		}
+    		minEnd = Math.min(minEnd, getEnd(child));
     	}
     	
     	if (child != null && getEnd(child) > minEnd) {
@@ -540,7 +456,7 @@ public class TrioVcfReader implements Iterable<TrioGenotype> {
     }
    
     private long getEnd(LocusGenotype lg) {
-    	return getChromosomeVal(lg.getChromosome()) + lg.getEnd();
+    	return lg.getChromosomeIdx() * CHROMOSOME_SPACING + lg.getEnd();
     }
 
     public Iterator<TrioGenotype> iterator() {
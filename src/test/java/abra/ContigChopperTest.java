@@ -0,0 +1,69 @@
+/* Copyright 2013 University of North Carolina at Chapel Hill.  All rights reserved. */
+package abra;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import htsjdk.samtools.SAMRecord;
+
+import org.testng.annotations.Test;
+
+public class ContigChopperTest {
+
+	@Test (groups = "unit")
+	public void testDrop() {
+		Map<String, SAMRecord> chunks = new HashMap<String, SAMRecord>();
+		chunks.put("ACGTACGTAA", null);
+		chunks.put("GTACGT", null);
+		chunks.put("TTTT", null);
+		chunks.put("CGTAAC", null);
+		chunks.put("ACGT", null);
+		
+		Set<String> expected = new HashSet<String>();
+		expected.add("ACGTACGTAA");
+		expected.add("TTTT");
+		expected.add("CGTAAC");
+		
+		assertEquals(new ContigChopper().drop(chunks).keySet(), expected);
+	}
+	
+	@Test (groups = "unit")
+	public void testDropRandom() {
+		Random random = new Random(1);
+		String bases = "ACGT";
+		
+		for (int iter=0; iter<50; iter++) {
+			StringBuffer contig = new StringBuffer();
+			for (int i=0; i<200; i++) {
+				contig.append(bases.charAt(random.nextInt(2)));
+			}
+			
+			Map<String, SAMRecord> chunks = new HashMap<String, SAMRecord>();
+			for (int i=0; i<40; i++) {
+				int start = random.nextInt(150);
+				int end = start + 5 + random.nextInt(45);
+				chunks.put(contig.substring(start, end), null);
+			}
+			
+			Set<String> expected = new HashSet<String>();
+			for (String read : chunks.keySet()) {
+				boolean isContained = false;
+				for (String read2 : chunks.keySet()) {
+					if (read2.length() > read.length() && read2.contains(read)) {
+						isContained = true;
+					}
+				}
+				if (!isContained) {
+					expected.add(read);
+				}
+			}
+			
+			assertEquals(new ContigChopper().drop(chunks).keySet(), expected);
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/* Copyright 2013 University of North Carolina at Chapel Hill.  All rights reserved. */
+package abra;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+public class KmerSizeEvaluatorTest {
+
+	@Test (groups = "unit")
+	public void testIdentifyMinKmer() {
+		// Repeat of length 8 followed by a single mismatch requires a kmer spanning 2 mismatches
+		List<String> bases = Arrays.asList("ACGTTGCAAAGGCCTTACGTTGCAGATC");
+		assertEquals(KmerSizeEvaluator.identifyMinKmer(100, bases), 11);
+
+		// Homopolymer never resolves
+		bases = Arrays.asList("AAAAAAAAAAAA");
+		assertEquals(KmerSizeEvaluator.identifyMinKmer(10, bases), 11);
+		assertEquals(KmerSizeEvaluator.identifyMinKmer(9, bases), 9);
+
+		// Read length at or below the minimum kmer is not evaluated
+		assertEquals(KmerSizeEvaluator.identifyMinKmer(5, bases), 5);
+	}
+
+	@Test (groups = "unit")
+	public void testIdentifyMinKmerRandom() {
+		Random random = new Random(1);
+		String alphabet = "ACGT";
+
+		for (int iter=0; iter<100; iter++) {
+			List<String> bases = new ArrayList<String>();
+			int numSequences = 1 + random.nextInt(3);
+			for (int i=0; i<numSequences; i++) {
+				StringBuffer sequence = new StringBuffer();
+				int length = random.nextInt(150);
+				// Small alphabets produce near duplicate kmers across a range of sizes
+				int numBases = 2 + random.nextInt(3);
+				for (int j=0; j<length; j++) {
+					sequence.append(alphabet.charAt(random.nextInt(numBases)));
+				}
+				bases.add(sequence.toString());
+			}
+
+			int readLength = 1 + random.nextInt(60);
+
+			assertEquals(KmerSizeEvaluator.identifyMinKmer(readLength, bases), bruteForceMinKmer(readLength, bases));
+		}
+	}
+
+	private int bruteForceMinKmer(int readLength, List<String> basesList) {
+		int k = KmerSizeEvaluator.MIN_KMER;
+		while (k < readLength && !isHammingDistanceAtLeast2(basesList, k)) {
+			k += 2;
+		}
+		return k;
+	}
+
+	private boolean isHammingDistanceAtLeast2(List<String> basesList, int k) {
+		List<String> kmers = new ArrayList<String>();
+		for (String bases : basesList) {
+			for (int i=0; i<=bases.length()-k; i++) {
+				kmers.add(bases.substring(i, i+k));
+			}
+		}
+
+		for (int i=0; i<kmers.size(); i++) {
+			for (int j=i+1; j<kmers.size(); j++) {
+				int dist = 0;
+				for (int b=0; b<k; b++) {
+					if (kmers.get(i).charAt(b) != kmers.get(j).charAt(b)) {
+						dist++;
+					}
+				}
+				if (dist < 2) {
+					return false;
+				}
+			}
+		}
+
+		return true;
+	}
+}
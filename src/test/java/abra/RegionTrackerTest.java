@@ -0,0 +1,59 @@
+package abra;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class RegionTrackerTest {
+
+	@Test (groups = "unit")
+	public void testIsInRegion() {
+		// Unsorted, with a long region containing a shorter one
+		List<Feature> regions = Arrays.asList(
+				new Feature("chr2", 500, 600),
+				new Feature("chr1", 1000, 2000),
+				new Feature("chr1", 100, 200),
+				new Feature("chr1", 50, 5000));
+
+		RegionTracker tracker = new RegionTracker(regions);
+
+		Assert.assertTrue(tracker.isInRegion("chr1", 3000, 3100));
+		Assert.assertTrue(tracker.isInRegion("chr1", 1, 50));
+		Assert.assertTrue(tracker.isInRegion("chr1", 5000, 5100));
+		Assert.assertTrue(tracker.isInRegion("chr2", 400, 500));
+		Assert.assertTrue(tracker.isInRegion("chr2", 600, 700));
+
+		Assert.assertFalse(tracker.isInRegion("chr1", 1, 49));
+		Assert.assertFalse(tracker.isInRegion("chr1", 5001, 5100));
+		Assert.assertFalse(tracker.isInRegion("chr2", 601, 700));
+		Assert.assertFalse(tracker.isInRegion("chr3", 1, 10000));
+	}
+
+	@Test (groups = "unit")
+	public void testIsInRegionRandom() {
+		Random random = new Random(1);
+		List<Feature> regions = new ArrayList<Feature>();
+		for (int i=0; i<200; i++) {
+			int start = random.nextInt(10000);
+			regions.add(new Feature("chr1", start, start + random.nextInt(300)));
+		}
+
+		RegionTracker tracker = new RegionTracker(regions);
+
+		for (int i=0; i<5000; i++) {
+			int start = random.nextInt(11000);
+			int end = start + random.nextInt(150);
+
+			boolean isOverlap = false;
+			for (Feature region : regions) {
+				isOverlap |= region.overlaps("chr1", start, end);
+			}
+
+			Assert.assertEquals(tracker.isInRegion("chr1", start, end), isOverlap);
+		}
+	}
+}
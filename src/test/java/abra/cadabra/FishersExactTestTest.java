@@ -0,0 +1,97 @@
+package abra.cadabra;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+public class FishersExactTestTest {
+
+	@Test (groups = "unit")
+	public void testSmallTable() {
+		FishersExactTest test = new FishersExactTest();
+		
+		// [[3,1],[1,3]]
+		assertEquals(test.oneTailedTest(3, 1, 1, 3), 17.0 / 70.0, 1e-12);
+		assertEquals(test.twoTailedTest(3, 1, 1, 3), 34.0 / 70.0, 1e-12);
+	}
+	
+	@Test (groups = "unit")
+	public void testDeepTableIsNotRescaled() {
+		FishersExactTest test = new FishersExactTest();
+		
+		// Scaling all counts down changes the p-value, so compare against a 10x deeper table.
+		double p = test.oneTailedTest(4000, 20, 4000, 80);
+		double deepP = test.oneTailedTest(40000, 200, 40000, 800);
+		
+		assertEquals(p, expectedOneTailed(4000, 20, 4000, 80), p * 1e-6);
+		assertEquals(deepP, expectedOneTailed(40000, 200, 40000, 800), deepP * 1e-6);
+	}
+	
+	@Test (groups = "unit")
+	public void testLogFactorial() {
+		double expected = 0;
+		for (int i=1; i<=2000000; i++) {
+			expected += Math.log(i);
+			if (i == 1000 || i == 1048576 || i == 2000000) {
+				assertEquals(FishersExactTest.logFactorial(i), expected, expected * 1e-12);
+			}
+		}
+	}
+	
+	@Test (groups = "unit")
+	public void testBulk() {
+		FishersExactTest test = new FishersExactTest();
+		
+		double[] pValues = test.oneTailedTest(new int[] { 3, 10, 3 }, new int[] { 1, 0, 1 }, new int[] { 1, 10, 1 }, new int[] { 3, 5, 3 });
+		
+		assertEquals(pValues.length, 3);
+		assertEquals(pValues[0], 17.0 / 70.0, 1e-12);
+		assertEquals(pValues[1], test.oneTailedTest(10, 0, 10, 5), 1e-12);
+		assertEquals(pValues[2], pValues[0], 0);
+	}
+	
+	// Independent calculation using the ratio of successive table probabilities.
+	// Weights are relative to the observed table and normalized across all tables with the same margins.
+	private double expectedOneTailed(int r1c1, int r1c2, int r2c1, int r2c2) {
+		List<Double> upperWeights = new ArrayList<Double>();
+		List<Double> allWeights = new ArrayList<Double>();
+		allWeights.add(0.0);
+		upperWeights.add(0.0);
+		
+		int a = r1c1, b = r1c2, c = r2c1, d = r2c2;
+		double logWeight = 0;
+		while (b > 0 && c > 0) {
+			logWeight += Math.log((double) b * c / ((double) (a+1) * (d+1)));
+			a++; b--; c--; d++;
+			allWeights.add(logWeight);
+			if (logWeight <= 0) {
+				upperWeights.add(logWeight);
+			}
+		}
+		
+		a = r1c1; b = r1c2; c = r2c1; d = r2c2;
+		logWeight = 0;
+		while (a > 0 && d > 0) {
+			logWeight += Math.log((double) a * d / ((double) (b+1) * (c+1)));
+			a--; b++; c++; d--;
+			allWeights.add(logWeight);
+		}
+		
+		double max = Collections.max(allWeights);
+		double total = 0;
+		for (double weight : allWeights) {
+			total += Math.exp(weight - max);
+		}
+		
+		double tail = 0;
+		for (double weight : upperWeights) {
+			tail += Math.exp(weight - max);
+		}
+		
+		return tail / total;
+	}
+}
@@ -0,0 +1,110 @@
+package abra.cadabra;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+
+public class ForwardShiftInsertIteratorTest {
+
+	@Test (groups = "unit")
+	public void testLeadingInsertShiftedBack() {
+		SAMFileHeader header = getHeader();
+		List<SAMRecord> reads = new ArrayList<SAMRecord>();
+		reads.add(newRead(header, "r1", 0, 100, "50M"));
+		reads.add(newRead(header, "r2", 0, 101, "50M"));
+		reads.add(newRead(header, "r3", 0, 102, "2I48M"));
+		reads.add(newRead(header, "r4", 1, 10, "50M"));
+
+		List<SAMRecord> output = readAll(reads);
+
+		assertEquals(output.size(), 4);
+		assertEquals(output.get(0).getReadName(), "r1");
+		assertEquals(output.get(1).getReadName(), "r2");
+		assertEquals(output.get(2).getReadName(), "r3");
+		assertEquals(output.get(3).getReadName(), "r4");
+
+		reads.add(2, newRead(header, "r5", 0, 102, "50M"));
+		reads.add(3, newRead(header, "r6", 0, 102, "1I49M"));
+
+		output = readAll(reads);
+
+		assertEquals(output.size(), 6);
+		// Reads at the same adjusted start are returned in input order
+		assertEquals(output.get(2).getReadName(), "r6");
+		assertEquals(output.get(3).getReadName(), "r3");
+		assertEquals(output.get(4).getReadName(), "r5");
+	}
+
+	@Test (groups = "unit")
+	public void testManyReadsAtOneStart() {
+		SAMFileHeader header = getHeader();
+		List<SAMRecord> reads = new ArrayList<SAMRecord>();
+		int count = 0;
+		for (int pos=1000; pos<1010; pos++) {
+			for (int i=0; i<2000; i++) {
+				String cigar = (i % 100) == 0 ? "1I49M" : "50M";
+				reads.add(newRead(header, "r" + count++, 0, pos, cigar));
+			}
+		}
+		// Far ahead of the previous reads
+		reads.add(newRead(header, "r" + count++, 0, 50000, "50M"));
+
+		List<SAMRecord> output = readAll(reads);
+
+		assertEquals(output.size(), reads.size());
+		for (int i=1; i<output.size(); i++) {
+			assertTrue(ForwardShiftInsertIterator.getAdjustedStart(output.get(i-1)) <= ForwardShiftInsertIterator.getAdjustedStart(output.get(i)));
+		}
+	}
+
+	@Test (groups = "unit")
+	public void testShiftedDuplicateDropped() {
+		SAMFileHeader header = getHeader();
+		List<SAMRecord> reads = new ArrayList<SAMRecord>();
+		reads.add(newRead(header, "r1", 0, 100, "50M"));
+		reads.add(newRead(header, "r1", 0, 101, "1I49M"));
+		reads.add(newRead(header, "r2", 0, 100, "50M"));
+		reads.add(newRead(header, "r2", 0, 100, "50M"));
+
+		List<SAMRecord> output = readAll(reads);
+
+		// Only the read duplicated by a leading insert shift is dropped
+		assertEquals(output.size(), 3);
+	}
+
+	private List<SAMRecord> readAll(List<SAMRecord> reads) {
+		List<SAMRecord> output = new ArrayList<SAMRecord>();
+		ForwardShiftInsertIterator iter = new ForwardShiftInsertIterator(reads.iterator());
+		while (iter.hasNext()) {
+			output.add(iter.next());
+		}
+		return output;
+	}
+
+	private SAMFileHeader getHeader() {
+		SAMSequenceDictionary dict = new SAMSequenceDictionary();
+		dict.addSequence(new SAMSequenceRecord("chr1", 1000000));
+		dict.addSequence(new SAMSequenceRecord("chr2", 1000000));
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSequenceDictionary(dict);
+		return header;
+	}
+
+	private SAMRecord newRead(SAMFileHeader header, String name, int referenceIndex, int start, String cigar) {
+		SAMRecord read = new SAMRecord(header);
+		read.setReadName(name);
+		read.setReferenceIndex(referenceIndex);
+		read.setAlignmentStart(start);
+		read.setCigarString(cigar);
+		return read;
+	}
+}